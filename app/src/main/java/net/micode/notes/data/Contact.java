@@ -17,18 +17,30 @@
 package net.micode.notes.data;
 
 import android.content.Context;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.Data;
 import android.telephony.PhoneNumberUtils;
 import android.util.Log;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 
 public class Contact {
-    private static HashMap<String, String> sContactCache;  // 静态哈希图，用于缓存联系人名称和电话号码
     private static final String TAG = "Contact";  // 日志标签
 
+    private static final int MAX_CACHE_SIZE = 256;  // 最多缓存的电话号码数
+
+    private static final long CACHE_TTL = 10 * 60 * 1000;  // 缓存有效期，单位毫秒
+
+    private static final int PREFETCH_BATCH_SIZE = 20;  // 批量预取时每次查询的号码数
+
     // SQL查询条件，用于匹配电话号码
     private static final String CALLER_ID_SELECTION = "PHONE_NUMBERS_EQUAL(" + Phone.NUMBER
             + ",?) AND " + Data.MIMETYPE + "='" + Phone.CONTENT_ITEM_TYPE + "'"
@@ -37,14 +49,51 @@ public class Contact {
             + " FROM phone_lookup"
             + " WHERE min_match = '+')";
 
-    // 根据电话号码获取联系人名称的静态方法
-    public static String getContact(Context context, String phoneNumber) {
-        if (sContactCache == null) {
-            sContactCache = new HashMap<String, String>();  // 初始化缓存
+    // 批量查询中单个号码的匹配条件
+    private static final String CALLER_ID_BATCH_TERM = "(PHONE_NUMBERS_EQUAL(" + Phone.NUMBER
+            + ",?) AND " + Data.RAW_CONTACT_ID + " IN "
+            + "(SELECT raw_contact_id "
+            + " FROM phone_lookup"
+            + " WHERE min_match = '+'))";
+
+    /**
+     * 缓存项，name为null表示该号码没有对应的联系人
+     */
+    private static class CacheEntry {
+        final String name;
+        final long time;
+
+        CacheEntry(String name, long time) {
+            this.name = name;
+            this.time = time;
         }
+    }
+
+    // 按访问顺序排列的LRU缓存，所有访问都在Contact.class上同步
+    private static final LinkedHashMap<String, CacheEntry> sContactCache =
+            new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                    return size() > MAX_CACHE_SIZE;
+                }
+            };
+
+    private static long sHitCount;  // 缓存命中次数
+    private static long sMissCount;  // 缓存未命中次数
+
+    private static ContentObserver sContactsObserver;  // 联系人变化时清空缓存
+
+    // 根据电话号码获取联系人名称的静态方法，没有对应联系人时返回null
+    public static String getContact(Context context, String phoneNumber) {
+        registerObserver(context);
 
-        if (sContactCache.containsKey(phoneNumber)) {  // 如果缓存中已有此电话号码
-            return sContactCache.get(phoneNumber);  // 直接返回联系人名称
+        synchronized (Contact.class) {
+            CacheEntry entry = getFreshEntry(phoneNumber);
+            if (entry != null) {  // 命中缓存，包括已知没有联系人的号码
+                sHitCount++;
+                return entry.name;
+            }
+            sMissCount++;
         }
 
         // 替换查询条件中的通配符并执行数据库查询
@@ -57,20 +106,157 @@ public class Contact {
                 new String[] { phoneNumber },
                 null);
 
-        if (cursor != null && cursor.moveToFirst()) {  // 查询结果非空并可读取第一条数据
+        String name = null;
+        if (cursor != null) {
             try {
-                String name = cursor.getString(0);  // 获取联系人名称
-                sContactCache.put(phoneNumber, name);  // 将电话号码和联系人名称放入缓存
-                return name;  // 返回联系人名称
+                if (cursor.moveToFirst()) {  // 查询结果非空并可读取第一条数据
+                    name = cursor.getString(0);  // 获取联系人名称
+                } else {  // 未匹配到任何联系人
+                    Log.d(TAG, "No contact matched with number:" + phoneNumber);
+                }
             } catch (IndexOutOfBoundsException e) {  // 捕获并记录异常
                 Log.e(TAG, "Cursor get string error " + e.toString());
                 return null;
             } finally {
                 cursor.close();  // 关闭游标
             }
-        } else {  // 未匹配到任何联系人
-            Log.d(TAG, "No contact matched with number:" + phoneNumber);
+        } else {
+            // 查询失败时不缓存，下次重试
             return null;
         }
+
+        putEntry(phoneNumber, name);
+        return name;
+    }
+
+    // 只从缓存中获取联系人名称，不查询联系人数据库，未缓存或没有联系人时返回null
+    public static synchronized String peekContact(String phoneNumber) {
+        CacheEntry entry = getFreshEntry(phoneNumber);
+        return entry != null ? entry.name : null;
+    }
+
+    // 号码是否已有未过期的缓存结果（包括没有联系人的结果）
+    public static synchronized boolean isCached(String phoneNumber) {
+        return getFreshEntry(phoneNumber) != null;
+    }
+
+    /**
+     * 批量查询未缓存的号码并放入缓存，每次查询合并多个号码，
+     * 返回其中找到联系人的号码数
+     */
+    public static int prefetch(Context context, Collection<String> phoneNumbers) {
+        registerObserver(context);
+
+        List<String> missing = new ArrayList<String>();
+        synchronized (Contact.class) {
+            for (String number : new LinkedHashSet<String>(phoneNumbers)) {
+                if (getFreshEntry(number) != null) {
+                    sHitCount++;
+                } else {
+                    sMissCount++;
+                    missing.add(number);
+                }
+            }
+        }
+
+        int found = 0;
+        for (int start = 0; start < missing.size(); start += PREFETCH_BATCH_SIZE) {
+            List<String> batch = missing.subList(start,
+                    Math.min(start + PREFETCH_BATCH_SIZE, missing.size()));
+            found += queryBatch(context, batch);
+        }
+        return found;
+    }
+
+    // 一次查询一批号码，结果中的号码再与每个输入号码比较以确定对应关系
+    private static int queryBatch(Context context, List<String> phoneNumbers) {
+        StringBuilder selection = new StringBuilder();
+        selection.append(Data.MIMETYPE).append("='").append(Phone.CONTENT_ITEM_TYPE)
+                .append("' AND (");
+        for (int i = 0; i < phoneNumbers.size(); i++) {
+            if (i > 0) {
+                selection.append(" OR ");
+            }
+            selection.append(CALLER_ID_BATCH_TERM.replace("+",
+                    PhoneNumberUtils.toCallerIDMinMatch(phoneNumbers.get(i))));
+        }
+        selection.append(')');
+
+        Cursor cursor = context.getContentResolver().query(
+                Data.CONTENT_URI,
+                new String[] { Phone.DISPLAY_NAME, Phone.NUMBER },
+                selection.toString(),
+                phoneNumbers.toArray(new String[phoneNumbers.size()]),
+                null);
+        if (cursor == null) {
+            return 0;
+        }
+
+        LinkedHashMap<String, String> names = new LinkedHashMap<String, String>();
+        try {
+            while (cursor.moveToNext()) {
+                String name = cursor.getString(0);
+                String number = cursor.getString(1);
+                for (String phoneNumber : phoneNumbers) {
+                    if (!names.containsKey(phoneNumber)
+                            && PhoneNumberUtils.compare(phoneNumber, number)) {
+                        names.put(phoneNumber, name);
+                    }
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        for (String phoneNumber : phoneNumbers) {
+            putEntry(phoneNumber, names.get(phoneNumber));
+        }
+        return names.size();
+    }
+
+    public static synchronized long getHitCount() {
+        return sHitCount;
+    }
+
+    public static synchronized long getMissCount() {
+        return sMissCount;
+    }
+
+    public static synchronized void clearCache() {
+        sContactCache.clear();
+    }
+
+    // 获取未过期的缓存项，过期项直接移除
+    private static CacheEntry getFreshEntry(String phoneNumber) {
+        CacheEntry entry = sContactCache.get(phoneNumber);
+        if (entry != null && System.currentTimeMillis() - entry.time > CACHE_TTL) {
+            sContactCache.remove(phoneNumber);
+            entry = null;
+        }
+        return entry;
+    }
+
+    private static synchronized void putEntry(String phoneNumber, String name) {
+        sContactCache.put(phoneNumber, new CacheEntry(name, System.currentTimeMillis()));
+    }
+
+    // 首次使用时监听联系人数据库，联系人有任何变化都使缓存失效
+    private static synchronized void registerObserver(Context context) {
+        if (sContactsObserver != null) {
+            return;
+        }
+        sContactsObserver = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                clearCache();
+            }
+        };
+        try {
+            context.getApplicationContext().getContentResolver().registerContentObserver(
+                    ContactsContract.AUTHORITY_URI, true, sContactsObserver);
+        } catch (SecurityException e) {
+            // 没有联系人权限时只依靠缓存有效期
+            Log.w(TAG, "register contacts observer failed: " + e.toString());
+        }
     }
-}
\ No newline at end of file
+}
@@ -61,6 +61,62 @@ public class Notes {
      */
     public static final Uri CONTENT_DATA_URI = Uri.parse("content://" + AUTHORITY + "/data");
 
+    /**
+     * Read-only Uri to query notes left joined with their data rows in one
+     * pass; columns shared by both tables must be qualified with the table
+     * name, e.g. "note._id"
+     */
+    public static final Uri CONTENT_NOTE_DATA_URI = Uri.parse("content://" + AUTHORITY
+            + "/note_data");
+
+    /**
+     * Query parameter of {@link #CONTENT_NOTE_URI} limiting the number of
+     * returned rows, used to load the notes list page by page
+     */
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+    /**
+     * Method of {@link android.content.ContentResolver#call} returning, for each
+     * compiled statement shape of the provider, its hit and compile counts
+     */
+    public static final String METHOD_STATEMENT_STATS = "statement_stats";
+
+    /**
+     * Method of {@link android.content.ContentResolver#call} setting how many
+     * milliseconds change notifications outside of batches are held back to be
+     * merged, given as the arg; returns the previous value under the same key
+     */
+    public static final String METHOD_SET_NOTIFY_DEBOUNCE = "set_notify_debounce";
+
+    /**
+     * Method of {@link android.content.ContentResolver#call} moving the notes in
+     * {@link #EXTRA_IDS} to the folder given as the arg with a few set-based
+     * statements; folder counts are recomputed once instead of per row. Returns
+     * the number of moved notes in {@link #EXTRA_COUNT}
+     */
+    public static final String METHOD_BULK_MOVE = "bulk_move";
+
+    /**
+     * Method of {@link android.content.ContentResolver#call} deleting the notes in
+     * {@link #EXTRA_IDS} like {@link #METHOD_BULK_MOVE} moves them. Returns the
+     * number of deleted notes in {@link #EXTRA_COUNT}
+     */
+    public static final String METHOD_BULK_DELETE = "bulk_delete";
+
+    /**
+     * Method of {@link android.content.ContentResolver#call} checking the notes
+     * count of every folder against its actual number of rows. Returns the
+     * inconsistent folders in {@link #EXTRA_IDS} with their recorded counts in
+     * {@link #EXTRA_COUNTS} and actual counts in {@link #EXTRA_ACTUAL_COUNTS};
+     * with the arg "repair" the counts are recomputed afterwards
+     */
+    public static final String METHOD_CHECK_FOLDER_COUNTS = "check_folder_counts";
+
+    public static final String EXTRA_IDS = "ids";
+    public static final String EXTRA_COUNT = "count";
+    public static final String EXTRA_COUNTS = "counts";
+    public static final String EXTRA_ACTUAL_COUNTS = "actual_counts";
+
     public interface NoteColumns {
         /**
          * The unique ID for a row
@@ -0,0 +1,759 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+import android.util.Log;
+import android.util.MalformedJsonException;
+
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 便签数据库的完整备份与恢复。备份文件是gzip压缩的JSON：头部记录格式名称、格式版本和数据库版本，
+ * 之后按表写出列名和每一行的值，文件夹、小部件绑定、提醒时间及GTask同步信息都原样保留。
+ * 导出和导入都逐行流式处理，不会把整个备份读入内存。
+ * 增量段使用同样的格式，头部额外列出被替换或删除的便签ID，只包含变化的便签及其数据行
+ */
+public class NotesBackup {
+    private static final String TAG = "NotesBackup";
+
+    public static final String FORMAT_NAME = "net.micode.notes.backup";
+
+    // 备份格式版本，只能恢复不高于该版本的备份
+    public static final int FORMAT_VERSION = 1;
+
+    private static final String KEY_FORMAT = "format";
+    private static final String KEY_VERSION = "version";
+    private static final String KEY_KIND = "kind";
+    private static final String KEY_DB_VERSION = "db_version";
+    private static final String KEY_CREATED = "created";
+    private static final String KEY_REPLACED = "replaced";
+    private static final String KEY_TABLES = "tables";
+    private static final String KEY_COLUMNS = "columns";
+    private static final String KEY_ROWS = "rows";
+
+    private static final String KIND_FULL = "full";
+    private static final String KIND_DELTA = "delta";
+
+    // 备份的表，按此顺序写出
+    private static final String[] TABLES = {
+            TABLE.NOTE,
+            TABLE.DATA
+    };
+
+    // 按ID查询变化的行时每次绑定的ID个数，不超过SQLite的参数上限
+    private static final int IDS_PER_QUERY = 500;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * 备份文件不是本应用的备份，版本过新或内容损坏
+     */
+    public static class FormatException extends IOException {
+        public FormatException(String message) {
+            super(message);
+        }
+    }
+
+    private NotesBackup() {
+    }
+
+    /**
+     * 把便签表和数据表的所有行写入输出流，返回备份的便签表行数。输出流由调用者关闭
+     */
+    public static int backup(Context context, OutputStream out) throws IOException {
+        SQLiteDatabase db = NotesDatabaseHelper.getInstance(context).getWritableDatabase();
+        // 两张表在同一个事务中读取，备份期间其他线程的写入不会让便签和数据行对不上。
+        // 行从游标直接写入输出流，不在内存中复制数据库；API 35以下没有只读事务，
+        // 写出期间其他线程的写入需要等待
+        db.beginTransactionNonExclusive();
+        try {
+            int notes = writeSegment(db, out, null, null);
+            db.setTransactionSuccessful();
+            return notes;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * 写出一个备份段，调用者负责开启事务
+     *
+     * @param changedIds 为null时写出完整备份，否则只写出这些便签及其数据行
+     * @param replacedIds 增量段中恢复前需要先删除的便签ID，包括变化和已删除的便签
+     */
+    static int writeSegment(SQLiteDatabase db, OutputStream out, long[] changedIds,
+            long[] replacedIds) throws IOException {
+        GZIPOutputStream gzip = new GZIPOutputStream(out, BUFFER_SIZE);
+        JsonWriter writer = new JsonWriter(new BufferedWriter(
+                new OutputStreamWriter(gzip, "UTF-8"), BUFFER_SIZE));
+        int notes = 0;
+
+        writer.beginObject();
+        writeHeader(writer, changedIds == null ? KIND_FULL : KIND_DELTA, db.getVersion());
+        if (changedIds != null) {
+            writer.name(KEY_REPLACED).beginArray();
+            for (long id : replacedIds) {
+                writer.value(id);
+            }
+            writer.endArray();
+        }
+        writer.name(KEY_TABLES).beginObject();
+        for (String table : TABLES) {
+            writer.name(table);
+            int rows = writeTable(db, table, changedIds, writer);
+            if (TABLE.NOTE.equals(table)) {
+                notes = rows;
+            }
+        }
+        writer.endObject();
+        writer.endObject();
+
+        writer.flush();
+        gzip.finish();
+        return notes;
+    }
+
+    private static void writeHeader(JsonWriter writer, String kind, long dbVersion)
+            throws IOException {
+        writer.name(KEY_FORMAT).value(FORMAT_NAME);
+        writer.name(KEY_VERSION).value(FORMAT_VERSION);
+        writer.name(KEY_KIND).value(kind);
+        writer.name(KEY_DB_VERSION).value(dbVersion);
+        writer.name(KEY_CREATED).value(System.currentTimeMillis());
+    }
+
+    private static int writeTable(SQLiteDatabase db, String table, long[] noteIds,
+            JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name(KEY_COLUMNS).beginArray();
+        for (String column : getColumnNames(db, table)) {
+            writer.value(column);
+        }
+        writer.endArray();
+
+        int rows = 0;
+        writer.name(KEY_ROWS).beginArray();
+        if (noteIds == null) {
+            rows = writeRows(db.rawQuery("SELECT * FROM " + table + " ORDER BY "
+                    + NoteColumns.ID, null), writer);
+        } else {
+            String idColumn = TABLE.NOTE.equals(table) ? NoteColumns.ID : DataColumns.NOTE_ID;
+            for (int start = 0; start < noteIds.length; start += IDS_PER_QUERY) {
+                int end = Math.min(noteIds.length, start + IDS_PER_QUERY);
+                String[] args = new String[end - start];
+                StringBuilder sql = new StringBuilder("SELECT * FROM " + table + " WHERE "
+                        + idColumn + " IN (");
+                for (int i = start; i < end; i++) {
+                    sql.append(i == start ? "?" : ",?");
+                    args[i - start] = String.valueOf(noteIds[i]);
+                }
+                sql.append(") ORDER BY ").append(NoteColumns.ID);
+                rows += writeRows(db.rawQuery(sql.toString(), args), writer);
+            }
+        }
+        writer.endArray();
+        writer.endObject();
+        return rows;
+    }
+
+    // 表的列顺序就是SELECT *的结果顺序
+    private static String[] getColumnNames(SQLiteDatabase db, String table) {
+        Cursor c = db.rawQuery("SELECT * FROM " + table + " LIMIT 0", null);
+        try {
+            return c.getColumnNames();
+        } finally {
+            c.close();
+        }
+    }
+
+    private static int writeRows(Cursor c, JsonWriter writer) throws IOException {
+        int rows = 0;
+        try {
+            int columnCount = c.getColumnCount();
+            while (c.moveToNext()) {
+                writer.beginArray();
+                for (int i = 0; i < columnCount; i++) {
+                    switch (c.getType(i)) {
+                        case Cursor.FIELD_TYPE_NULL:
+                            writer.nullValue();
+                            break;
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            writer.value(c.getLong(i));
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            writer.value(c.getDouble(i));
+                            break;
+                        default:
+                            writer.value(c.getString(i));
+                            break;
+                    }
+                }
+                writer.endArray();
+                rows++;
+            }
+        } finally {
+            c.close();
+        }
+        return rows;
+    }
+
+    /**
+     * 用备份替换数据库中的所有便签，返回最终的便签表行数。第一个段必须是完整备份，
+     * 之后的增量段按顺序应用。整个恢复在一个事务中完成，失败时数据库保持原样；
+     * 恢复期间不执行触发器，派生数据在事务结束前统一重建。输入流由调用者关闭
+     */
+    public static int restore(Context context, InputStream... segments) throws IOException {
+        NotesDatabaseHelper helper = NotesDatabaseHelper.getInstance(context);
+        SQLiteDatabase db = helper.getWritableDatabase();
+        int notes;
+
+        db.beginTransaction();
+        try {
+            helper.dropTriggers(db);
+            db.delete(TABLE.DATA, null, null);
+            db.delete(TABLE.NOTE, null, null);
+            for (int i = 0; i < segments.length; i++) {
+                readSegment(db, openReader(segments[i]), i == 0 ? KIND_FULL : KIND_DELTA);
+            }
+            notes = (int) DatabaseUtils.queryNumEntries(db, TABLE.NOTE);
+            helper.rebuildDerivedState(db);
+            db.setTransactionSuccessful();
+        } catch (MalformedJsonException e) {
+            throw new FormatException(e.toString());
+        } catch (IllegalStateException e) {
+            // JsonReader遇到不符合预期的结构时抛出
+            throw new FormatException(e.toString());
+        } catch (NumberFormatException e) {
+            throw new FormatException(e.toString());
+        } finally {
+            db.endTransaction();
+        }
+
+        helper.checkpoint();
+        ContentResolver resolver = context.getContentResolver();
+        resolver.notifyChange(Notes.CONTENT_NOTE_URI, null);
+        resolver.notifyChange(Notes.CONTENT_DATA_URI, null);
+        Log.d(TAG, "restored " + notes + " notes from " + segments.length + " backup segments");
+        return notes;
+    }
+
+    private static JsonReader openReader(InputStream in) throws IOException {
+        return new JsonReader(new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(in, BUFFER_SIZE), "UTF-8"), BUFFER_SIZE));
+    }
+
+    private static void readSegment(SQLiteDatabase db, JsonReader reader, String expectedKind)
+            throws IOException {
+        Header header = new Header();
+        boolean hasTables = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (header.read(name, reader)) {
+                continue;
+            }
+            if (KEY_REPLACED.equals(name)) {
+                header.check(KIND_DELTA);
+                deleteNotes(db, reader);
+            } else if (KEY_TABLES.equals(name)) {
+                header.check(expectedKind);
+                hasTables = true;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String table = reader.nextName();
+                    if (TABLE.NOTE.equals(table) || TABLE.DATA.equals(table)) {
+                        readTable(db, table, reader);
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (!hasTables) {
+            throw new FormatException("no tables in backup");
+        }
+    }
+
+    // 触发器已删除，便签的数据行需要一起删除
+    private static void deleteNotes(SQLiteDatabase db, JsonReader reader) throws IOException {
+        SQLiteStatement deleteNote = db.compileStatement("DELETE FROM " + TABLE.NOTE
+                + " WHERE " + NoteColumns.ID + "=?");
+        SQLiteStatement deleteData = db.compileStatement("DELETE FROM " + TABLE.DATA
+                + " WHERE " + DataColumns.NOTE_ID + "=?");
+        try {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                long id = reader.nextLong();
+                deleteNote.bindLong(1, id);
+                deleteNote.executeUpdateDelete();
+                deleteData.bindLong(1, id);
+                deleteData.executeUpdateDelete();
+            }
+            reader.endArray();
+        } finally {
+            deleteNote.close();
+            deleteData.close();
+        }
+    }
+
+    // 按列名写入，数据库中已不存在的列跳过，备份中没有的列取默认值
+    private static void readTable(SQLiteDatabase db, String table, JsonReader reader)
+            throws IOException {
+        String[] columns = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (KEY_COLUMNS.equals(name)) {
+                columns = readColumns(reader);
+            } else if (KEY_ROWS.equals(name)) {
+                if (columns == null) {
+                    throw new FormatException("rows before columns in table " + table);
+                }
+                insertRows(db, table, columns, reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private static String[] readColumns(JsonReader reader) throws IOException {
+        ArrayList<String> list = new ArrayList<String>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            list.add(reader.nextString());
+        }
+        reader.endArray();
+        return list.toArray(new String[list.size()]);
+    }
+
+    private static void insertRows(SQLiteDatabase db, String table, String[] columns,
+            JsonReader reader) throws IOException {
+        HashSet<String> available = new HashSet<String>(
+                Arrays.asList(getColumnNames(db, table)));
+        boolean[] kept = new boolean[columns.length];
+        StringBuilder sql = new StringBuilder("INSERT OR REPLACE INTO " + table + "(");
+        StringBuilder values = new StringBuilder(") VALUES(");
+        boolean hasId = false;
+        for (int i = 0; i < columns.length; i++) {
+            // 列名会拼进SQL，只接受表中确实存在的列，且每列只取第一次出现
+            if (!available.remove(columns[i])) {
+                continue;
+            }
+            if (NoteColumns.ID.equals(columns[i])) {
+                hasId = true;
+            }
+            if (sql.charAt(sql.length() - 1) != '(') {
+                sql.append(',');
+                values.append(',');
+            }
+            sql.append(columns[i]);
+            values.append('?');
+            kept[i] = true;
+        }
+        if (!hasId) {
+            throw new FormatException("no id column in table " + table);
+        }
+        sql.append(values).append(')');
+
+        SQLiteStatement insert = db.compileStatement(sql.toString());
+        try {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                Object[] row = readRow(reader, columns.length, table);
+                int index = 1;
+                for (int i = 0; i < columns.length; i++) {
+                    if (kept[i]) {
+                        bindValue(insert, index++, row[i]);
+                    }
+                }
+                insert.executeInsert();
+                insert.clearBindings();
+            }
+            reader.endArray();
+        } finally {
+            insert.close();
+        }
+    }
+
+    private static Object[] readRow(JsonReader reader, int columnCount, String table)
+            throws IOException {
+        Object[] row = new Object[columnCount];
+        reader.beginArray();
+        for (int i = 0; i < columnCount; i++) {
+            if (!reader.hasNext()) {
+                throw new FormatException("too few values in table " + table);
+            }
+            row[i] = readValue(reader);
+        }
+        if (reader.hasNext()) {
+            throw new FormatException("too many values in table " + table);
+        }
+        reader.endArray();
+        return row;
+    }
+
+    // 整数读为Long，小数读为Double，布尔值按SQLite的习惯读为0或1
+    private static Object readValue(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        switch (token) {
+            case NULL:
+                reader.nextNull();
+                return null;
+            case NUMBER:
+                String number = reader.nextString();
+                if (number.indexOf('.') < 0 && number.indexOf('e') < 0
+                        && number.indexOf('E') < 0) {
+                    return Long.parseLong(number);
+                }
+                return Double.parseDouble(number);
+            case BOOLEAN:
+                return reader.nextBoolean() ? 1L : 0L;
+            case STRING:
+                return reader.nextString();
+            default:
+                throw new FormatException("unexpected " + token + " in row");
+        }
+    }
+
+    private static void bindValue(SQLiteStatement statement, int index, Object value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else if (value instanceof Long) {
+            statement.bindLong(index, (Long) value);
+        } else if (value instanceof Double) {
+            statement.bindDouble(index, (Double) value);
+        } else {
+            statement.bindString(index, (String) value);
+        }
+    }
+
+    private static void writeValue(JsonWriter writer, Object value) throws IOException {
+        if (value == null) {
+            writer.nullValue();
+        } else if (value instanceof Long) {
+            writer.value((Long) value);
+        } else if (value instanceof Double) {
+            writer.value((Double) value);
+        } else {
+            writer.value((String) value);
+        }
+    }
+
+    /**
+     * 把一个完整备份和其后的增量段合并成一个完整备份，不访问数据库。
+     * 增量段通常很小，先读入内存；完整备份逐行复制，跳过被替换的便签及其数据行，
+     * 最后写出增量段中各便签的最新内容。输入输出流由调用者关闭
+     */
+    static void compact(InputStream base, List<InputStream> deltas, OutputStream out)
+            throws IOException {
+        try {
+            Changes changes = new Changes();
+            for (InputStream delta : deltas) {
+                changes.read(openReader(delta));
+            }
+            copyWithChanges(openReader(base), changes, out);
+        } catch (MalformedJsonException e) {
+            throw new FormatException(e.toString());
+        } catch (IllegalStateException e) {
+            throw new FormatException(e.toString());
+        } catch (NumberFormatException e) {
+            throw new FormatException(e.toString());
+        }
+    }
+
+    private static void copyWithChanges(JsonReader reader, Changes changes, OutputStream out)
+            throws IOException {
+        GZIPOutputStream gzip = new GZIPOutputStream(out, BUFFER_SIZE);
+        JsonWriter writer = new JsonWriter(new BufferedWriter(
+                new OutputStreamWriter(gzip, "UTF-8"), BUFFER_SIZE));
+        Header header = new Header();
+        boolean hasTables = false;
+
+        reader.beginObject();
+        writer.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (header.read(name, reader)) {
+                continue;
+            }
+            if (!KEY_TABLES.equals(name)) {
+                reader.skipValue();
+                continue;
+            }
+            header.check(KIND_FULL);
+            hasTables = true;
+            writeHeader(writer, KIND_FULL, Math.max(header.mDbVersion, changes.mDbVersion));
+            writer.name(KEY_TABLES).beginObject();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String table = reader.nextName();
+                if (TABLE.NOTE.equals(table) || TABLE.DATA.equals(table)) {
+                    writer.name(table);
+                    copyTable(reader, writer, table, changes);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            writer.endObject();
+        }
+        reader.endObject();
+        writer.endObject();
+
+        if (!hasTables) {
+            throw new FormatException("no tables in backup");
+        }
+        writer.flush();
+        gzip.finish();
+    }
+
+    private static void copyTable(JsonReader reader, JsonWriter writer, String table,
+            Changes changes) throws IOException {
+        String[] columns = null;
+        int idIndex = -1;
+        String idColumn = TABLE.NOTE.equals(table) ? NoteColumns.ID : DataColumns.NOTE_ID;
+
+        reader.beginObject();
+        writer.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (KEY_COLUMNS.equals(name)) {
+                columns = readColumns(reader);
+                idIndex = Arrays.asList(columns).indexOf(idColumn);
+                String[] changedColumns = changes.mColumns.get(table);
+                if (idIndex < 0 || (changedColumns != null
+                        && !Arrays.equals(columns, changedColumns))) {
+                    throw new FormatException("columns of table " + table + " do not match");
+                }
+                writer.name(KEY_COLUMNS).beginArray();
+                for (String column : columns) {
+                    writer.value(column);
+                }
+                writer.endArray();
+            } else if (KEY_ROWS.equals(name)) {
+                if (columns == null) {
+                    throw new FormatException("rows before columns in table " + table);
+                }
+                writer.name(KEY_ROWS).beginArray();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    Object[] row = readRow(reader, columns.length, table);
+                    if (!(row[idIndex] instanceof Long)
+                            || !changes.mReplaced.contains(row[idIndex])) {
+                        writeRow(writer, row);
+                    }
+                }
+                reader.endArray();
+                List<Object[]> changedRows = changes.mRows.get(table);
+                if (changedRows != null) {
+                    for (Object[] row : changedRows) {
+                        writeRow(writer, row);
+                    }
+                }
+                writer.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        writer.endObject();
+    }
+
+    private static void writeRow(JsonWriter writer, Object[] row) throws IOException {
+        writer.beginArray();
+        for (Object value : row) {
+            writeValue(writer, value);
+        }
+        writer.endArray();
+    }
+
+    // 备份段头部，格式名称和版本必须出现在表之前
+    private static class Header {
+        private boolean mFormatChecked;
+        private String mKind = KIND_FULL;
+        private int mVersion;
+        private long mDbVersion;
+
+        boolean read(String name, JsonReader reader) throws IOException {
+            if (KEY_FORMAT.equals(name)) {
+                if (!FORMAT_NAME.equals(reader.nextString())) {
+                    throw new FormatException("not a notes backup");
+                }
+                mFormatChecked = true;
+            } else if (KEY_VERSION.equals(name)) {
+                mVersion = reader.nextInt();
+                if (mVersion < 1 || mVersion > FORMAT_VERSION) {
+                    throw new FormatException("unsupported backup version " + mVersion);
+                }
+            } else if (KEY_KIND.equals(name)) {
+                mKind = reader.nextString();
+            } else if (KEY_DB_VERSION.equals(name)) {
+                mDbVersion = reader.nextLong();
+            } else {
+                return false;
+            }
+            return true;
+        }
+
+        void check(String expectedKind) throws FormatException {
+            if (!mFormatChecked || mVersion == 0) {
+                throw new FormatException("missing backup header");
+            }
+            if (!expectedKind.equals(mKind)) {
+                throw new FormatException("expect " + expectedKind + " backup but got " + mKind);
+            }
+        }
+    }
+
+    // 按顺序叠加的增量段内容：被替换的便签ID以及这些便签的最新行
+    private static class Changes {
+        private final HashSet<Long> mReplaced = new HashSet<Long>();
+        private final HashMap<String, String[]> mColumns = new HashMap<String, String[]>();
+        private final TreeMap<Long, Object[]> mNotes = new TreeMap<Long, Object[]>();
+        private final TreeMap<Long, List<Object[]>> mData = new TreeMap<Long, List<Object[]>>();
+        private final HashMap<String, List<Object[]>> mRows = new HashMap<String, List<Object[]>>();
+        private long mDbVersion;
+
+        void read(JsonReader reader) throws IOException {
+            Header header = new Header();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (header.read(name, reader)) {
+                    continue;
+                }
+                if (KEY_REPLACED.equals(name)) {
+                    header.check(KIND_DELTA);
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        long id = reader.nextLong();
+                        mReplaced.add(id);
+                        mNotes.remove(id);
+                        mData.remove(id);
+                    }
+                    reader.endArray();
+                } else if (KEY_TABLES.equals(name)) {
+                    header.check(KIND_DELTA);
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String table = reader.nextName();
+                        if (TABLE.NOTE.equals(table) || TABLE.DATA.equals(table)) {
+                            readChangedTable(reader, table);
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            mDbVersion = Math.max(mDbVersion, header.mDbVersion);
+
+            // 合并后的行按ID排序，便签行在前，同一便签的数据行相邻
+            mRows.clear();
+            mRows.put(TABLE.NOTE, new ArrayList<Object[]>(mNotes.values()));
+            ArrayList<Object[]> data = new ArrayList<Object[]>();
+            for (List<Object[]> rows : mData.values()) {
+                data.addAll(rows);
+            }
+            mRows.put(TABLE.DATA, data);
+        }
+
+        private void readChangedTable(JsonReader reader, String table) throws IOException {
+            boolean isNote = TABLE.NOTE.equals(table);
+            String idColumn = isNote ? NoteColumns.ID : DataColumns.NOTE_ID;
+            String[] columns = null;
+            int idIndex = -1;
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (KEY_COLUMNS.equals(name)) {
+                    columns = readColumns(reader);
+                    idIndex = Arrays.asList(columns).indexOf(idColumn);
+                    String[] previous = mColumns.put(table, columns);
+                    if (idIndex < 0 || (previous != null && !Arrays.equals(previous, columns))) {
+                        throw new FormatException("columns of table " + table + " do not match");
+                    }
+                } else if (KEY_ROWS.equals(name)) {
+                    if (columns == null) {
+                        throw new FormatException("rows before columns in table " + table);
+                    }
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        Object[] row = readRow(reader, columns.length, table);
+                        if (!(row[idIndex] instanceof Long)) {
+                            throw new FormatException("bad id in table " + table);
+                        }
+                        Long id = (Long) row[idIndex];
+                        if (isNote) {
+                            mNotes.put(id, row);
+                        } else {
+                            List<Object[]> rows = mData.get(id);
+                            if (rows == null) {
+                                rows = new ArrayList<Object[]>();
+                                mData.put(id, rows);
+                            }
+                            rows.add(row);
+                        }
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+    }
+}
@@ -0,0 +1,448 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * 增量备份集。目录中保存一个完整的基础段、按顺序排列的增量段和一份清单，
+ * 清单记录上次备份时每条便签的版本号、修改时间和父ID。每次备份只需按ID顺序扫描便签表的这几列
+ * 与清单比对，只写出变化的便签和删除的便签ID；没有变化时不写任何段。
+ * 增量段累积过多时合并为新的基础段
+ */
+public class NotesBackupSet {
+    private static final String TAG = "NotesBackupSet";
+
+    private static final String MANIFEST_FILE = "manifest";
+    private static final String SEGMENT_PREFIX = "segment_";
+    private static final String SEGMENT_SUFFIX = ".backup";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final int MANIFEST_MAGIC = 0x4d4e4253;
+    private static final int MANIFEST_VERSION = 1;
+
+    // 增量段超过该数量，或总大小超过基础段的一半时合并
+    private static final int MAX_DELTA_SEGMENTS = 16;
+
+    // 扫描便签表时比对的列，便签ID升序与清单的顺序一致
+    private static final String SCAN_SQL = "SELECT " + NoteColumns.ID + ","
+            + NoteColumns.VERSION + "," + NoteColumns.MODIFIED_DATE + ","
+            + NoteColumns.PARENT_ID + " FROM " + TABLE.NOTE + " ORDER BY " + NoteColumns.ID;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File mDir;
+
+    public NotesBackupSet(File dir) {
+        mDir = dir;
+    }
+
+    /**
+     * 备份自上次备份以来变化的便签，没有基础段或数据库版本变化时写出完整备份。
+     * 返回写出的便签表行数，没有变化时返回0
+     */
+    public int backup(Context context) throws IOException {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("can not create backup dir " + mDir);
+        }
+        Manifest previous = readManifest();
+        SQLiteDatabase db = NotesDatabaseHelper.getInstance(context).getWritableDatabase();
+        // 数据库版本变化后表结构可能不同，新旧段不能合并，重新开始一个备份集
+        boolean full = previous == null || previous.mDbVersion != db.getVersion();
+        Manifest manifest = previous;
+        if (full) {
+            manifest = new Manifest();
+            manifest.mDbVersion = db.getVersion();
+            if (previous != null) {
+                manifest.mNextSegment = previous.mNextSegment;
+            }
+        }
+
+        String segment = SEGMENT_PREFIX + manifest.mNextSegment + SEGMENT_SUFFIX;
+        File tmp = new File(mDir, segment + TEMP_SUFFIX);
+        int notes;
+
+        // 扫描和写出在同一个事务中，清单与段的内容对应同一时刻的数据库；
+        // 行从游标直接写入文件，不在内存中复制数据库
+        Scan scan;
+        db.beginTransactionNonExclusive();
+        try {
+            scan = scan(db, manifest);
+            if (!full && scan.mChanged.isEmpty() && scan.mDeleted.isEmpty()) {
+                db.setTransactionSuccessful();
+                return 0;
+            }
+
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp), BUFFER_SIZE);
+            try {
+                if (full) {
+                    notes = NotesBackup.writeSegment(db, out, null, null);
+                } else {
+                    long[] changed = toArray(scan.mChanged);
+                    Arrays.sort(changed);
+                    HashSet<Long> replaced = new HashSet<Long>(scan.mChanged);
+                    replaced.addAll(scan.mDeleted);
+                    notes = NotesBackup.writeSegment(db, out, changed, toArray(replaced));
+                }
+            } finally {
+                out.close();
+            }
+            db.setTransactionSuccessful();
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        } finally {
+            db.endTransaction();
+        }
+        manifest.setNotes(scan);
+
+        commitSegment(tmp, segment);
+        manifest.mSegments.add(segment);
+        manifest.mNextSegment++;
+        writeManifest(manifest);
+        if (full) {
+            // 旧备份集的段以及清单损坏时留下的段都不再需要
+            deleteSegmentsExcept(segment);
+        }
+        Log.d(TAG, "backup " + notes + " notes to " + segment);
+
+        if (needsCompaction(manifest)) {
+            try {
+                compact(manifest);
+            } catch (IOException e) {
+                // 备份本身已经完成，合并失败时保留原有的段，下次备份再合并
+                Log.w(TAG, "compact backup segments failed: " + e.toString());
+            }
+        }
+        return notes;
+    }
+
+    /**
+     * 依次应用基础段和所有增量段，把数据库恢复到最后一次备份时的状态
+     */
+    public int restore(Context context) throws IOException {
+        Manifest manifest = readManifest();
+        if (manifest == null || manifest.mSegments.isEmpty()) {
+            throw new FileNotFoundException("no backup in " + mDir);
+        }
+        InputStream[] segments = new InputStream[manifest.mSegments.size()];
+        try {
+            for (int i = 0; i < segments.length; i++) {
+                segments[i] = new BufferedInputStream(new FileInputStream(
+                        new File(mDir, manifest.mSegments.get(i))), BUFFER_SIZE);
+            }
+            return NotesBackup.restore(context, segments);
+        } finally {
+            for (InputStream in : segments) {
+                closeQuietly(in);
+            }
+        }
+    }
+
+    /**
+     * 把基础段和所有增量段合并成一个新的基础段，不访问数据库
+     */
+    public void compact() throws IOException {
+        Manifest manifest = readManifest();
+        if (manifest != null && manifest.mSegments.size() > 1) {
+            compact(manifest);
+        }
+    }
+
+    private void compact(Manifest manifest) throws IOException {
+        String segment = SEGMENT_PREFIX + manifest.mNextSegment + SEGMENT_SUFFIX;
+        File tmp = new File(mDir, segment + TEMP_SUFFIX);
+        InputStream base = null;
+        ArrayList<InputStream> deltas = new ArrayList<InputStream>();
+        OutputStream out = null;
+        try {
+            List<String> segments = manifest.mSegments;
+            base = new BufferedInputStream(new FileInputStream(
+                    new File(mDir, segments.get(0))), BUFFER_SIZE);
+            for (int i = 1; i < segments.size(); i++) {
+                deltas.add(new BufferedInputStream(new FileInputStream(
+                        new File(mDir, segments.get(i))), BUFFER_SIZE));
+            }
+            out = new BufferedOutputStream(new FileOutputStream(tmp), BUFFER_SIZE);
+            NotesBackup.compact(base, deltas, out);
+            out.close();
+            out = null;
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        } finally {
+            closeQuietly(out);
+            closeQuietly(base);
+            for (InputStream in : deltas) {
+                closeQuietly(in);
+            }
+        }
+
+        commitSegment(tmp, segment);
+        List<String> obsolete = manifest.mSegments;
+        manifest.mSegments = new ArrayList<String>();
+        manifest.mSegments.add(segment);
+        manifest.mNextSegment++;
+        writeManifest(manifest);
+        deleteSegments(obsolete);
+        Log.d(TAG, "compact " + obsolete.size() + " backup segments into " + segment);
+    }
+
+    private boolean needsCompaction(Manifest manifest) {
+        int deltas = manifest.mSegments.size() - 1;
+        if (deltas <= 0) {
+            return false;
+        }
+        if (deltas > MAX_DELTA_SEGMENTS) {
+            return true;
+        }
+        long baseSize = new File(mDir, manifest.mSegments.get(0)).length();
+        long deltaSize = 0;
+        for (int i = 1; i < manifest.mSegments.size(); i++) {
+            deltaSize += new File(mDir, manifest.mSegments.get(i)).length();
+        }
+        return deltaSize * 2 > baseSize;
+    }
+
+    // 按ID顺序归并便签表与清单，找出新增或变化的便签以及已删除的便签
+    private static Scan scan(SQLiteDatabase db, Manifest manifest) {
+        Cursor c = db.rawQuery(SCAN_SQL, null);
+        try {
+            Scan scan = new Scan(c.getCount());
+            int index = 0;
+            while (c.moveToNext()) {
+                long id = c.getLong(0);
+                long version = c.getLong(1);
+                long modified = c.getLong(2);
+                long parentId = c.getLong(3);
+                while (index < manifest.mSize && manifest.mIds[index] < id) {
+                    scan.mDeleted.add(manifest.mIds[index++]);
+                }
+                if (index < manifest.mSize && manifest.mIds[index] == id) {
+                    // 文件夹移入回收站时其中便签的父ID由触发器修改，版本号和修改时间不变
+                    if (manifest.mVersions[index] != version
+                            || manifest.mModifiedDates[index] != modified
+                            || manifest.mParentIds[index] != parentId) {
+                        scan.mChanged.add(id);
+                    }
+                    index++;
+                } else {
+                    scan.mChanged.add(id);
+                }
+                scan.add(id, version, modified, parentId);
+            }
+            while (index < manifest.mSize) {
+                scan.mDeleted.add(manifest.mIds[index++]);
+            }
+            return scan;
+        } finally {
+            c.close();
+        }
+    }
+
+    private Manifest readManifest() {
+        File file = new File(mDir, MANIFEST_FILE);
+        if (!file.isFile()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file),
+                    BUFFER_SIZE));
+            if (in.readInt() != MANIFEST_MAGIC || in.readInt() != MANIFEST_VERSION) {
+                Log.w(TAG, "unknown backup manifest, start a new backup");
+                return null;
+            }
+            Manifest manifest = new Manifest();
+            manifest.mDbVersion = in.readInt();
+            manifest.mNextSegment = in.readInt();
+            int segments = in.readInt();
+            for (int i = 0; i < segments; i++) {
+                manifest.mSegments.add(in.readUTF());
+            }
+            int size = in.readInt();
+            manifest.allocate(size);
+            for (int i = 0; i < size; i++) {
+                manifest.mIds[i] = in.readLong();
+                manifest.mVersions[i] = in.readLong();
+                manifest.mModifiedDates[i] = in.readLong();
+                manifest.mParentIds[i] = in.readLong();
+            }
+            manifest.mSize = size;
+
+            for (String segment : manifest.mSegments) {
+                if (!new File(mDir, segment).isFile()) {
+                    Log.w(TAG, "backup segment " + segment + " is missing, start a new backup");
+                    return null;
+                }
+            }
+            return manifest;
+        } catch (IOException e) {
+            Log.w(TAG, "read backup manifest failed: " + e.toString());
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    // 先写临时文件再改名，中途失败时旧的清单仍然完整
+    private void writeManifest(Manifest manifest) throws IOException {
+        File tmp = new File(mDir, MANIFEST_FILE + TEMP_SUFFIX);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp), BUFFER_SIZE));
+        try {
+            out.writeInt(MANIFEST_MAGIC);
+            out.writeInt(MANIFEST_VERSION);
+            out.writeInt(manifest.mDbVersion);
+            out.writeInt(manifest.mNextSegment);
+            out.writeInt(manifest.mSegments.size());
+            for (String segment : manifest.mSegments) {
+                out.writeUTF(segment);
+            }
+            out.writeInt(manifest.mSize);
+            for (int i = 0; i < manifest.mSize; i++) {
+                out.writeLong(manifest.mIds[i]);
+                out.writeLong(manifest.mVersions[i]);
+                out.writeLong(manifest.mModifiedDates[i]);
+                out.writeLong(manifest.mParentIds[i]);
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(new File(mDir, MANIFEST_FILE))) {
+            tmp.delete();
+            throw new IOException("replace backup manifest failed");
+        }
+    }
+
+    private void commitSegment(File tmp, String segment) throws IOException {
+        if (!tmp.renameTo(new File(mDir, segment))) {
+            tmp.delete();
+            throw new IOException("create backup segment " + segment + " failed");
+        }
+    }
+
+    private void deleteSegments(List<String> segments) {
+        for (String segment : segments) {
+            if (!new File(mDir, segment).delete()) {
+                Log.w(TAG, "delete backup segment " + segment + " failed");
+            }
+        }
+    }
+
+    private void deleteSegmentsExcept(String keep) {
+        String[] names = mDir.list();
+        if (names == null) {
+            return;
+        }
+        ArrayList<String> segments = new ArrayList<String>();
+        for (String name : names) {
+            if (name.startsWith(SEGMENT_PREFIX) && !name.equals(keep)) {
+                segments.add(name);
+            }
+        }
+        deleteSegments(segments);
+    }
+
+    private static long[] toArray(HashSet<Long> ids) {
+        long[] array = new long[ids.size()];
+        int i = 0;
+        for (Long id : ids) {
+            array[i++] = id;
+        }
+        return array;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // 上次备份时各便签的状态，按便签ID升序排列
+    private static class Manifest {
+        int mDbVersion;
+        int mNextSegment = 1;
+        ArrayList<String> mSegments = new ArrayList<String>();
+        long[] mIds = new long[0];
+        long[] mVersions = new long[0];
+        long[] mModifiedDates = new long[0];
+        long[] mParentIds = new long[0];
+        int mSize;
+
+        void allocate(int size) {
+            mIds = new long[size];
+            mVersions = new long[size];
+            mModifiedDates = new long[size];
+            mParentIds = new long[size];
+        }
+
+        void setNotes(Scan scan) {
+            mIds = scan.mNotes.mIds;
+            mVersions = scan.mNotes.mVersions;
+            mModifiedDates = scan.mNotes.mModifiedDates;
+            mParentIds = scan.mNotes.mParentIds;
+            mSize = scan.mNotes.mSize;
+        }
+    }
+
+    // 一次扫描的结果：数据库当前的便签状态，以及相对清单新增、变化和删除的便签
+    private static class Scan {
+        final Manifest mNotes = new Manifest();
+        final HashSet<Long> mChanged = new HashSet<Long>();
+        final HashSet<Long> mDeleted = new HashSet<Long>();
+
+        Scan(int size) {
+            mNotes.allocate(size);
+        }
+
+        void add(long id, long version, long modified, long parentId) {
+            int i = mNotes.mSize++;
+            mNotes.mIds[i] = id;
+            mNotes.mVersions[i] = version;
+            mNotes.mModifiedDates[i] = modified;
+            mNotes.mParentIds[i] = parentId;
+        }
+    }
+}
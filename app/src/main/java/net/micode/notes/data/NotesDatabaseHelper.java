@@ -18,23 +18,37 @@ package net.micode.notes.data;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 import android.util.Log;
 
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.DataConstants;
 import net.micode.notes.data.Notes.NoteColumns;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class NotesDatabaseHelper extends SQLiteOpenHelper {
     private static final String DB_NAME = "note.db";  // 数据库名称
 
-    private static final int DB_VERSION = 4;  // 数据库版本号
+    private static final int DB_VERSION = 6;  // 数据库版本号
 
     // 定义表格名称接口
     public interface TABLE {
         public static final String NOTE = "note";  // 便签表
         public static final String DATA = "data";  // 数据表
+        public static final String NOTE_FTS = "note_fts";  // 全文检索虚拟表
+    }
+
+    // 全文检索表的列，docid与便签ID一致
+    public interface FtsColumns {
+        public static final String DOCID = "docid";  // 对应便签ID
+        public static final String SNIPPET = "snippet_text";  // 便签摘要
+        public static final String CONTENT = "content_text";  // 便签所有数据内容
     }
 
     private static final String TAG = "NotesDatabaseHelper";  // 日志标签
@@ -84,6 +98,68 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
             "CREATE INDEX IF NOT EXISTS note_id_index ON " +
                     TABLE.DATA + "(" + DataColumns.NOTE_ID + ");";
 
+    // SQL语句：便签列表按父文件夹过滤并按类型、修改时间排序
+    private static final String CREATE_NOTE_PARENT_INDEX_SQL =
+            "CREATE INDEX IF NOT EXISTS note_parent_type_modified_index ON " + TABLE.NOTE + "("
+                    + NoteColumns.PARENT_ID + "," + NoteColumns.TYPE + " DESC,"
+                    + NoteColumns.MODIFIED_DATE + " DESC);";
+
+    // SQL语句：桌面小部件按小部件ID查找便签
+    private static final String CREATE_NOTE_WIDGET_INDEX_SQL =
+            "CREATE INDEX IF NOT EXISTS note_widget_id_index ON " + TABLE.NOTE + "("
+                    + NoteColumns.WIDGET_ID + "," + NoteColumns.PARENT_ID + ");";
+
+    // SQL语句：开机恢复提醒时按提醒时间查找便签，索引覆盖该查询的全部列
+    private static final String CREATE_NOTE_ALERTED_DATE_INDEX_SQL =
+            "CREATE INDEX IF NOT EXISTS note_alerted_date_index ON " + TABLE.NOTE + "("
+                    + NoteColumns.ALERTED_DATE + "," + NoteColumns.TYPE + ");";
+
+    // 常用查询的第三项，表示查询不做过滤，只按索引顺序读取全表
+    private static final String QUERY_ORDER_ONLY = "order-only";
+
+    /**
+     * 需要走索引的常用查询，与界面、小部件及提醒中实际执行的查询保持一致，
+     * 打开数据库时用EXPLAIN QUERY PLAN逐一检查。每项为 {名称, SQL}，
+     * 只排序不过滤的查询再加一项 QUERY_ORDER_ONLY
+     */
+    private static final String[][] HOT_QUERIES = {
+            { "folder note list",
+                    "SELECT * FROM " + TABLE.NOTE + " WHERE " + NoteColumns.PARENT_ID + "=?"
+                            + " ORDER BY " + NoteColumns.TYPE + " DESC,"
+                            + NoteColumns.MODIFIED_DATE + " DESC," + NoteColumns.ID
+                            + " LIMIT 50" },
+            { "root note list",
+                    "SELECT * FROM " + TABLE.NOTE + " WHERE " + NoteColumns.PARENT_ID + "=? AND ("
+                            + NoteColumns.TYPE + "<>" + Notes.TYPE_SYSTEM + " OR ("
+                            + NoteColumns.ID + "=" + Notes.ID_CALL_RECORD_FOLDER + " AND "
+                            + NoteColumns.NOTES_COUNT + ">0))"
+                            + " ORDER BY " + NoteColumns.TYPE + " DESC,"
+                            + NoteColumns.MODIFIED_DATE + " DESC," + NoteColumns.ID
+                            + " LIMIT 50" },
+            { "note list next page",
+                    "SELECT * FROM " + TABLE.NOTE + " WHERE " + NoteColumns.PARENT_ID + "=? AND ("
+                            + NoteColumns.TYPE + "," + NoteColumns.MODIFIED_DATE + ")<=(?,?)"
+                            + " AND NOT (" + NoteColumns.TYPE + "=? AND "
+                            + NoteColumns.MODIFIED_DATE + "=? AND " + NoteColumns.ID + "<=?)"
+                            + " ORDER BY " + NoteColumns.TYPE + " DESC,"
+                            + NoteColumns.MODIFIED_DATE + " DESC," + NoteColumns.ID
+                            + " LIMIT 50" },
+            { "note list count",
+                    "SELECT COUNT(*) FROM " + TABLE.NOTE + " WHERE " + NoteColumns.PARENT_ID
+                            + "=? AND " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE },
+            { "note widget",
+                    "SELECT " + NoteColumns.ID + "," + NoteColumns.BG_COLOR_ID + ","
+                            + NoteColumns.SNIPPET + " FROM " + TABLE.NOTE
+                            + " WHERE " + NoteColumns.WIDGET_ID + "=? AND "
+                            + NoteColumns.PARENT_ID + "<>?" },
+            { "alarm init",
+                    "SELECT " + NoteColumns.ID + "," + NoteColumns.ALERTED_DATE
+                            + " FROM " + TABLE.NOTE + " WHERE " + NoteColumns.ALERTED_DATE
+                            + ">? AND " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE },
+            { "note data",
+                    "SELECT * FROM " + TABLE.DATA + " WHERE " + DataColumns.NOTE_ID + "=?" }
+    };
+
     // 增加文件夹便签数（更新触发器）
     private static final String NOTE_INCREASE_FOLDER_COUNT_ON_UPDATE_TRIGGER =
             "CREATE TRIGGER increase_folder_count_on_update "+
@@ -188,9 +264,261 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
                     "  WHERE " + NoteColumns.PARENT_ID + "=old." + NoteColumns.ID + ";" +
                     " END";
 
+    // SQL语句：创建全文检索虚拟表（FTS4，unicode61分词以支持非ASCII字符的大小写折叠）
+    private static final String CREATE_NOTE_FTS_TABLE_SQL =
+            "CREATE VIRTUAL TABLE IF NOT EXISTS " + TABLE.NOTE_FTS + " USING fts4(" +
+                    FtsColumns.SNIPPET + "," +
+                    FtsColumns.CONTENT + "," +
+                    "tokenize=unicode61)";
+
+    // 部分系统不支持unicode61分词器时退回默认分词器
+    private static final String CREATE_NOTE_FTS_TABLE_SIMPLE_SQL =
+            "CREATE VIRTUAL TABLE IF NOT EXISTS " + TABLE.NOTE_FTS + " USING fts4(" +
+                    FtsColumns.SNIPPET + "," +
+                    FtsColumns.CONTENT + ")";
+
+    // 某便签所有数据内容的拼接
+    private static final String DATA_CONTENT_OF_NOTE =
+            "(SELECT group_concat(" + DataColumns.CONTENT + ", ' ') FROM " + TABLE.DATA +
+                    " WHERE " + DataColumns.NOTE_ID + "=%s)";
+
+    // 回填全文检索表
+    private static final String BACKFILL_NOTE_FTS_SQL =
+            "INSERT INTO " + TABLE.NOTE_FTS + "(" + FtsColumns.DOCID + "," +
+                    FtsColumns.SNIPPET + "," + FtsColumns.CONTENT + ")" +
+                    " SELECT " + NoteColumns.ID + "," + NoteColumns.SNIPPET + "," +
+                    "IFNULL(" + String.format(DATA_CONTENT_OF_NOTE, TABLE.NOTE + "." + NoteColumns.ID) + ",'')" +
+                    " FROM " + TABLE.NOTE;
+
+    // 删除所属便签不存在的数据行
+    private static final String DELETE_ORPHAN_DATA_SQL =
+            "DELETE FROM " + TABLE.DATA + " WHERE " + DataColumns.NOTE_ID + " NOT IN" +
+                    " (SELECT " + NoteColumns.ID + " FROM " + TABLE.NOTE + ")";
+
+    // 便签摘要取自文本数据行的内容，与update_note_content_on_insert触发器的结果一致
+    private static final String REBUILD_NOTE_SNIPPET_SQL =
+            "UPDATE " + TABLE.NOTE + " SET " + NoteColumns.SNIPPET + "=IFNULL(" +
+                    "(SELECT " + DataColumns.CONTENT + " FROM " + TABLE.DATA +
+                    "  WHERE " + DataColumns.NOTE_ID + "=" + TABLE.NOTE + "." + NoteColumns.ID +
+                    "  AND " + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE + "'" +
+                    "  ORDER BY " + DataColumns.ID + " DESC LIMIT 1)," + NoteColumns.SNIPPET + ")" +
+                    " WHERE " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE;
+
+    // 文件夹的实际便签数，即以其为父ID的行数，按父ID索引计数
+    private static final String FOLDER_CHILD_COUNT =
+            "(SELECT COUNT(*) FROM " + TABLE.NOTE + " AS child" +
+                    "  WHERE child." + NoteColumns.PARENT_ID + "=" + TABLE.NOTE + "." + NoteColumns.ID + ")";
+
+    // 一次重算所有文件夹的便签数，与便签表各触发器维护的结果一致，只写入不一致的行
+    private static final String REBUILD_FOLDER_COUNT_SQL =
+            "UPDATE " + TABLE.NOTE + " SET " + NoteColumns.NOTES_COUNT + "=" + FOLDER_CHILD_COUNT +
+                    " WHERE " + NoteColumns.TYPE + "<>" + Notes.TYPE_NOTE +
+                    " AND " + NoteColumns.NOTES_COUNT + "<>" + FOLDER_CHILD_COUNT;
+
+    // 记录的便签数与实际行数不一致的文件夹：ID，记录的便签数，实际行数
+    private static final String CHECK_FOLDER_COUNT_SQL =
+            "SELECT " + NoteColumns.ID + "," + NoteColumns.NOTES_COUNT + "," + FOLDER_CHILD_COUNT +
+                    " FROM " + TABLE.NOTE +
+                    " WHERE " + NoteColumns.TYPE + "<>" + Notes.TYPE_NOTE +
+                    " AND " + NoteColumns.NOTES_COUNT + "<>" + FOLDER_CHILD_COUNT;
+
+    // 插入便签时同步全文检索表
+    private static final String NOTE_FTS_INSERT_ON_INSERT_TRIGGER =
+            "CREATE TRIGGER note_fts_insert_on_insert " +
+                    " AFTER INSERT ON " + TABLE.NOTE +
+                    " BEGIN" +
+                    "  INSERT INTO " + TABLE.NOTE_FTS + "(" + FtsColumns.DOCID + "," +
+                    FtsColumns.SNIPPET + "," + FtsColumns.CONTENT + ")" +
+                    "   VALUES(new." + NoteColumns.ID + ",new." + NoteColumns.SNIPPET + ",'');" +
+                    " END";
+
+    // 便签摘要变化时同步全文检索表
+    private static final String NOTE_FTS_UPDATE_ON_UPDATE_TRIGGER =
+            "CREATE TRIGGER note_fts_update_on_update " +
+                    " AFTER UPDATE OF " + NoteColumns.SNIPPET + " ON " + TABLE.NOTE +
+                    " BEGIN" +
+                    "  UPDATE " + TABLE.NOTE_FTS +
+                    "   SET " + FtsColumns.SNIPPET + "=new." + NoteColumns.SNIPPET +
+                    "  WHERE " + FtsColumns.DOCID + "=new." + NoteColumns.ID + ";" +
+                    " END";
+
+    // 删除便签时同步全文检索表
+    private static final String NOTE_FTS_DELETE_ON_DELETE_TRIGGER =
+            "CREATE TRIGGER note_fts_delete_on_delete " +
+                    " AFTER DELETE ON " + TABLE.NOTE +
+                    " BEGIN" +
+                    "  DELETE FROM " + TABLE.NOTE_FTS +
+                    "   WHERE " + FtsColumns.DOCID + "=old." + NoteColumns.ID + ";" +
+                    " END";
+
+    // 插入数据时更新全文检索表中的数据内容
+    private static final String DATA_FTS_UPDATE_ON_INSERT_TRIGGER =
+            "CREATE TRIGGER data_fts_update_on_insert " +
+                    " AFTER INSERT ON " + TABLE.DATA +
+                    " BEGIN" +
+                    "  UPDATE " + TABLE.NOTE_FTS +
+                    "   SET " + FtsColumns.CONTENT + "=IFNULL(" +
+                    String.format(DATA_CONTENT_OF_NOTE, "new." + DataColumns.NOTE_ID) + ",'')" +
+                    "  WHERE " + FtsColumns.DOCID + "=new." + DataColumns.NOTE_ID + ";" +
+                    " END";
+
+    // 更新数据时更新全文检索表中的数据内容
+    private static final String DATA_FTS_UPDATE_ON_UPDATE_TRIGGER =
+            "CREATE TRIGGER data_fts_update_on_update " +
+                    " AFTER UPDATE OF " + DataColumns.CONTENT + " ON " + TABLE.DATA +
+                    " BEGIN" +
+                    "  UPDATE " + TABLE.NOTE_FTS +
+                    "   SET " + FtsColumns.CONTENT + "=IFNULL(" +
+                    String.format(DATA_CONTENT_OF_NOTE, "new." + DataColumns.NOTE_ID) + ",'')" +
+                    "  WHERE " + FtsColumns.DOCID + "=new." + DataColumns.NOTE_ID + ";" +
+                    " END";
+
+    // 删除数据时更新全文检索表中的数据内容
+    private static final String DATA_FTS_UPDATE_ON_DELETE_TRIGGER =
+            "CREATE TRIGGER data_fts_update_on_delete " +
+                    " AFTER DELETE ON " + TABLE.DATA +
+                    " BEGIN" +
+                    "  UPDATE " + TABLE.NOTE_FTS +
+                    "   SET " + FtsColumns.CONTENT + "=IFNULL(" +
+                    String.format(DATA_CONTENT_OF_NOTE, "old." + DataColumns.NOTE_ID) + ",'')" +
+                    "  WHERE " + FtsColumns.DOCID + "=old." + DataColumns.NOTE_ID + ";" +
+                    " END";
+
+    private volatile Boolean mSearchIndexAvailable;  // 全文检索表是否可用，null表示尚未检查
+
+    private volatile StorageProfile mStorageProfile = StorageProfile.DEFAULT;  // 当前存储配置
+
+    // 通过打开参数交给系统的同步级别，系统在每个连接上设置；API 29以下为null
+    private String mOpenParamsSynchronous;
+
+    private boolean mQueryPlansChecked;  // 本进程是否已检查过常用查询的执行计划
+
+    /**
+     * 数据库存储配置：日志模式、同步级别、页缓存、临时表位置及WAL自动检查点间隔。
+     * 除日志模式外都是连接级的设置，只应用在主连接上，即执行所有写入和事务的连接；
+     * WAL模式下只读查询可能在其他连接上执行，那些连接使用SQLite的默认页缓存和临时表位置
+     */
+    public static class StorageProfile {
+        // 默认配置：WAL日志，写入时读取不被阻塞；NORMAL在WAL模式下只在检查点时同步，
+        // 断电时可能丢失最近的提交，但数据库不会损坏
+        public static final StorageProfile DEFAULT =
+                new StorageProfile(true, "NORMAL", 4096, true, 1000);
+
+        // 兼容配置：回滚日志及SQLite默认参数
+        public static final StorageProfile COMPATIBLE =
+                new StorageProfile(false, "FULL", 2000, false, 1000);
+
+        private final boolean mWalEnabled;
+        private final String mSynchronous;
+        private final int mCacheSizeKb;
+        private final boolean mTempStoreInMemory;
+        private final int mWalAutoCheckpoint;
+
+        /**
+         * @param synchronous OFF、NORMAL或FULL。API 29起作为打开参数作用于所有连接，
+         *                    API 28上只能在主连接上执行PRAGMA，写入都在主连接上，效果相同
+         * @param cacheSizeKb 主连接的页缓存大小，单位KB
+         * @param walAutoCheckpoint WAL达到多少页时自动检查点，0表示只手动检查点
+         */
+        public StorageProfile(boolean walEnabled, String synchronous, int cacheSizeKb,
+                boolean tempStoreInMemory, int walAutoCheckpoint) {
+            mWalEnabled = walEnabled;
+            mSynchronous = synchronous;
+            mCacheSizeKb = cacheSizeKb;
+            mTempStoreInMemory = tempStoreInMemory;
+            mWalAutoCheckpoint = walAutoCheckpoint;
+        }
+
+        public boolean isWalEnabled() {
+            return mWalEnabled;
+        }
+
+        public String getSynchronous() {
+            return mSynchronous;
+        }
+
+        public int getCacheSizeKb() {
+            return mCacheSizeKb;
+        }
+
+        public boolean isTempStoreInMemory() {
+            return mTempStoreInMemory;
+        }
+
+        public int getWalAutoCheckpoint() {
+            return mWalAutoCheckpoint;
+        }
+    }
+
     // 构造函数，初始化数据库
     public NotesDatabaseHelper(Context context) {
         super(context, DB_NAME, null, DB_VERSION);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            // 打开参数会覆盖WAL标志，所以要在启用WAL之前设置
+            setOpenParams(new SQLiteDatabase.OpenParams.Builder()
+                    .setSynchronousMode(mStorageProfile.getSynchronous())
+                    .build());
+            mOpenParamsSynchronous = mStorageProfile.getSynchronous();
+        }
+        setWriteAheadLoggingEnabled(mStorageProfile.isWalEnabled());
+    }
+
+    /**
+     * 切换存储配置，数据库已打开时立即生效
+     */
+    public synchronized void setStorageProfile(StorageProfile profile) {
+        mStorageProfile = profile;
+        setWriteAheadLoggingEnabled(profile.isWalEnabled());
+        applyStorageProfile(getWritableDatabase(), profile);
+    }
+
+    public StorageProfile getStorageProfile() {
+        return mStorageProfile;
+    }
+
+    /**
+     * 把WAL中已提交的内容写回数据库文件，不等待正在进行的读写
+     */
+    public void checkpoint() {
+        if (!mStorageProfile.isWalEnabled()) {
+            return;
+        }
+        try {
+            executePragma(getWritableDatabase(), "PRAGMA wal_checkpoint(PASSIVE)");
+        } catch (SQLiteException e) {
+            Log.w(TAG, "wal checkpoint failed: " + e.toString());
+        }
+    }
+
+    // 每次打开数据库时应用存储配置
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        applyStorageProfile(db, mStorageProfile);
+    }
+
+    // 只作用于执行PRAGMA的主连接，见 StorageProfile
+    private void applyStorageProfile(SQLiteDatabase db, StorageProfile profile) {
+        // 打开参数在数据库打开后不能再修改，同步级别与之不同时在主连接上覆盖
+        if (!profile.getSynchronous().equals(mOpenParamsSynchronous)) {
+            executePragma(db, "PRAGMA synchronous=" + profile.getSynchronous());
+        }
+        // 负数表示以KB为单位
+        executePragma(db, "PRAGMA cache_size=-" + profile.getCacheSizeKb());
+        executePragma(db, "PRAGMA temp_store="
+                + (profile.isTempStoreInMemory() ? "MEMORY" : "DEFAULT"));
+        if (profile.isWalEnabled()) {
+            executePragma(db, "PRAGMA wal_autocheckpoint=" + profile.getWalAutoCheckpoint());
+        }
+    }
+
+    // 部分PRAGMA会返回结果行，execSQL无法执行，统一通过查询执行
+    private static void executePragma(SQLiteDatabase db, String sql) {
+        Cursor c = db.rawQuery(sql, null);
+        try {
+            c.moveToFirst();
+        } finally {
+            c.close();
+        }
     }
 
     // 创建便签表
@@ -198,18 +526,85 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL(CREATE_NOTE_TABLE_SQL);
         reCreateNoteTableTriggers(db);
         createSystemFolder(db);
+        createNoteIndexes(db);
         Log.d(TAG, "note table has been created");
     }
 
+    // 创建便签表上常用查询的索引
+    private void createNoteIndexes(SQLiteDatabase db) {
+        db.execSQL(CREATE_NOTE_PARENT_INDEX_SQL);
+        db.execSQL(CREATE_NOTE_WIDGET_INDEX_SQL);
+        db.execSQL(CREATE_NOTE_ALERTED_DATE_INDEX_SQL);
+    }
+
+    /**
+     * 检查每个常用查询是否都用到了索引，返回未用到索引的查询名称
+     */
+    public List<String> verifyQueryPlans(SQLiteDatabase db) {
+        List<String> failed = new ArrayList<String>();
+        for (String[] query : HOT_QUERIES) {
+            boolean orderOnly = query.length > 2 && QUERY_ORDER_ONLY.equals(query[2]);
+            if (!usesIndex(db, query[1], orderOnly)) {
+                failed.add(query[0]);
+            }
+        }
+        return failed;
+    }
+
+    // 过滤查询的每张表都必须是SEARCH步骤，即按索引或主键定位；SCAN ... USING INDEX
+    // 仍会读完整个索引，只对只排序不过滤的查询才算用到索引。
+    // 分页查询还要求按索引顺序读取，排序用的临时B树会让LIMIT失去作用
+    private static boolean usesIndex(SQLiteDatabase db, String sql, boolean orderOnly) {
+        Cursor c = db.rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+        try {
+            int detailColumn = c.getColumnIndexOrThrow("detail");
+            boolean searched = false;
+            while (c.moveToNext()) {
+                String detail = c.getString(detailColumn);
+                if (detail == null) {
+                    continue;
+                }
+                if (detail.startsWith("SEARCH ")) {
+                    searched = true;
+                } else if (detail.startsWith("SCAN ")
+                        && (!orderOnly || !detail.contains(" USING "))) {
+                    Log.w(TAG, "scan in query plan: " + detail + " for " + sql);
+                    return false;
+                }
+                if (detail.startsWith("USE TEMP B-TREE FOR") && sql.contains(" LIMIT ")) {
+                    Log.w(TAG, "sort in paged query plan: " + detail + " for " + sql);
+                    return false;
+                }
+            }
+            if (!searched && !orderOnly) {
+                Log.w(TAG, "no index search in query plan for " + sql);
+                return false;
+            }
+        } finally {
+            c.close();
+        }
+        return true;
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (!mQueryPlansChecked) {
+            mQueryPlansChecked = true;
+            try {
+                List<String> failed = verifyQueryPlans(db);
+                if (!failed.isEmpty()) {
+                    Log.w(TAG, "hot queries without index: " + failed);
+                }
+            } catch (SQLiteException e) {
+                Log.w(TAG, "check query plans failed: " + e.toString());
+            }
+        }
+    }
+
     // 重新创建便签表的触发器
     private void reCreateNoteTableTriggers(SQLiteDatabase db) {
-        db.execSQL("DROP TRIGGER IF EXISTS increase_folder_count_on_update");
-        db.execSQL("DROP TRIGGER IF EXISTS decrease_folder_count_on_update");
-        db.execSQL("DROP TRIGGER IF EXISTS decrease_folder_count_on_delete");
-        db.execSQL("DROP TRIGGER IF EXISTS delete_data_on_delete");
-        db.execSQL("DROP TRIGGER IF EXISTS increase_folder_count_on_insert");
-        db.execSQL("DROP TRIGGER IF EXISTS folder_delete_notes_on_delete");
-        db.execSQL("DROP TRIGGER IF EXISTS folder_move_notes_on_trash");
+        dropNoteTableTriggers(db);
 
         db.execSQL(NOTE_INCREASE_FOLDER_COUNT_ON_UPDATE_TRIGGER);
         db.execSQL(NOTE_DECREASE_FOLDER_COUNT_ON_UPDATE_TRIGGER);
@@ -220,32 +615,77 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL(FOLDER_MOVE_NOTES_ON_TRASH_TRIGGER);
     }
 
-    // 创建系统文件夹
+    private void dropNoteTableTriggers(SQLiteDatabase db) {
+        dropFolderCountTriggers(db);
+        db.execSQL("DROP TRIGGER IF EXISTS delete_data_on_delete");
+        db.execSQL("DROP TRIGGER IF EXISTS folder_delete_notes_on_delete");
+        db.execSQL("DROP TRIGGER IF EXISTS folder_move_notes_on_trash");
+    }
+
+    /**
+     * 批量移动或删除前删除维护文件夹便签数的四个触发器，之后的修改不再逐行更新所在文件夹，
+     * 其他触发器照常执行。需要在事务中调用，并在同一事务结束前调用{@link #rebuildFolderCounts}
+     */
+    void dropFolderCountTriggers(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS increase_folder_count_on_update");
+        db.execSQL("DROP TRIGGER IF EXISTS decrease_folder_count_on_update");
+        db.execSQL("DROP TRIGGER IF EXISTS decrease_folder_count_on_delete");
+        db.execSQL("DROP TRIGGER IF EXISTS increase_folder_count_on_insert");
+    }
+
+    /**
+     * 一次重算所有文件夹的便签数并恢复便签表的全部触发器。
+     * 重算写入文件夹行时不能触发移入回收站等触发器，所以先全部删除再重建
+     */
+    void rebuildFolderCounts(SQLiteDatabase db) {
+        dropNoteTableTriggers(db);
+        db.execSQL(REBUILD_FOLDER_COUNT_SQL);
+        reCreateNoteTableTriggers(db);
+    }
+
+    /**
+     * 检查文件夹便签数与实际行数是否一致，返回不一致的文件夹，
+     * 每项为 {文件夹ID, 记录的便签数, 实际行数}
+     */
+    ArrayList<long[]> checkFolderCounts(SQLiteDatabase db) {
+        ArrayList<long[]> mismatches = new ArrayList<long[]>();
+        Cursor c = db.rawQuery(CHECK_FOLDER_COUNT_SQL, null);
+        try {
+            while (c.moveToNext()) {
+                mismatches.add(new long[] { c.getLong(0), c.getLong(1), c.getLong(2) });
+            }
+        } finally {
+            c.close();
+        }
+        return mismatches;
+    }
+
+    // 创建系统文件夹，已存在的保持不变，恢复备份后也用它补齐缺失的系统文件夹
     private void createSystemFolder(SQLiteDatabase db) {
         ContentValues values = new ContentValues();
 
         // 创建电话记录文件夹
         values.put(NoteColumns.ID, Notes.ID_CALL_RECORD_FOLDER);
         values.put(NoteColumns.TYPE, Notes.TYPE_SYSTEM);
-        db.insert(TABLE.NOTE, null, values);
+        db.insertWithOnConflict(TABLE.NOTE, null, values, SQLiteDatabase.CONFLICT_IGNORE);
 
         // 创建根文件夹（默认文件夹）
         values.clear();
         values.put(NoteColumns.ID, Notes.ID_ROOT_FOLDER);
         values.put(NoteColumns.TYPE, Notes.TYPE_SYSTEM);
-        db.insert(TABLE.NOTE, null, values);
+        db.insertWithOnConflict(TABLE.NOTE, null, values, SQLiteDatabase.CONFLICT_IGNORE);
 
         // 创建临时文件夹（用于移动便签）
         values.clear();
         values.put(NoteColumns.ID, Notes.ID_TEMPARAY_FOLDER);
         values.put(NoteColumns.TYPE, Notes.TYPE_SYSTEM);
-        db.insert(TABLE.NOTE, null, values);
+        db.insertWithOnConflict(TABLE.NOTE, null, values, SQLiteDatabase.CONFLICT_IGNORE);
 
         // 创建回收站文件夹
         values.clear();
         values.put(NoteColumns.ID, Notes.ID_TRASH_FOLER);
         values.put(NoteColumns.TYPE, Notes.TYPE_SYSTEM);
-        db.insert(TABLE.NOTE, null, values);
+        db.insertWithOnConflict(TABLE.NOTE, null, values, SQLiteDatabase.CONFLICT_IGNORE);
     }
 
     // 创建数据表
@@ -258,15 +698,119 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
 
     // 重新创建数据表的触发器
     private void reCreateDataTableTriggers(SQLiteDatabase db) {
-        db.execSQL("DROP TRIGGER IF EXISTS update_note_content_on_insert");
-        db.execSQL("DROP TRIGGER IF EXISTS update_note_content_on_update");
-        db.execSQL("DROP TRIGGER IF EXISTS update_note_content_on_delete");
+        dropDataTableTriggers(db);
 
         db.execSQL(DATA_UPDATE_NOTE_CONTENT_ON_INSERT_TRIGGER);
         db.execSQL(DATA_UPDATE_NOTE_CONTENT_ON_UPDATE_TRIGGER);
         db.execSQL(DATA_UPDATE_NOTE_CONTENT_ON_DELETE_TRIGGER);
     }
 
+    private void dropDataTableTriggers(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS update_note_content_on_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS update_note_content_on_update");
+        db.execSQL("DROP TRIGGER IF EXISTS update_note_content_on_delete");
+    }
+
+    /**
+     * 批量恢复前删除所有触发器，恢复的行按原样写入，不再逐行维护文件夹便签数、摘要和全文检索表。
+     * 需要在事务中调用，并在同一事务结束前调用{@link #rebuildDerivedState}
+     */
+    void dropTriggers(SQLiteDatabase db) {
+        dropNoteTableTriggers(db);
+        dropDataTableTriggers(db);
+        dropSearchIndexTriggers(db);
+    }
+
+    /**
+     * 批量恢复后一次性重建派生数据：补齐系统文件夹，删除无主的数据行，
+     * 重算便签摘要和文件夹便签数，重建全文检索表，最后重新创建触发器
+     */
+    void rebuildDerivedState(SQLiteDatabase db) {
+        createSystemFolder(db);
+        db.execSQL(DELETE_ORPHAN_DATA_SQL);
+        db.execSQL(REBUILD_NOTE_SNIPPET_SQL);
+        db.execSQL(REBUILD_FOLDER_COUNT_SQL);
+        reCreateNoteTableTriggers(db);
+        reCreateDataTableTriggers(db);
+        if (isSearchIndexAvailable()) {
+            db.execSQL("DELETE FROM " + TABLE.NOTE_FTS);
+            db.execSQL(BACKFILL_NOTE_FTS_SQL);
+            reCreateSearchIndexTriggers(db);
+        }
+    }
+
+    // 创建全文检索表、同步触发器并回填已有数据，FTS不可用时仅记录日志
+    private void createSearchIndex(SQLiteDatabase db) {
+        try {
+            try {
+                db.execSQL(CREATE_NOTE_FTS_TABLE_SQL);
+            } catch (SQLiteException e) {
+                Log.w(TAG, "unicode61 tokenizer not supported, fall back to simple: " + e.toString());
+                db.execSQL(CREATE_NOTE_FTS_TABLE_SIMPLE_SQL);
+            }
+            reCreateSearchIndexTriggers(db);
+            db.execSQL("DELETE FROM " + TABLE.NOTE_FTS);
+            db.execSQL(BACKFILL_NOTE_FTS_SQL);
+            mSearchIndexAvailable = true;
+            Log.d(TAG, "note search index has been created");
+        } catch (SQLiteException e) {
+            Log.e(TAG, "create note search index failed: " + e.toString());
+            dropSearchIndex(db);
+            mSearchIndexAvailable = false;
+        }
+    }
+
+    // 重新创建全文检索表的同步触发器
+    private void reCreateSearchIndexTriggers(SQLiteDatabase db) {
+        dropSearchIndexTriggers(db);
+
+        db.execSQL(NOTE_FTS_INSERT_ON_INSERT_TRIGGER);
+        db.execSQL(NOTE_FTS_UPDATE_ON_UPDATE_TRIGGER);
+        db.execSQL(NOTE_FTS_DELETE_ON_DELETE_TRIGGER);
+        db.execSQL(DATA_FTS_UPDATE_ON_INSERT_TRIGGER);
+        db.execSQL(DATA_FTS_UPDATE_ON_UPDATE_TRIGGER);
+        db.execSQL(DATA_FTS_UPDATE_ON_DELETE_TRIGGER);
+    }
+
+    private void dropSearchIndexTriggers(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS note_fts_insert_on_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS note_fts_update_on_update");
+        db.execSQL("DROP TRIGGER IF EXISTS note_fts_delete_on_delete");
+        db.execSQL("DROP TRIGGER IF EXISTS data_fts_update_on_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS data_fts_update_on_update");
+        db.execSQL("DROP TRIGGER IF EXISTS data_fts_update_on_delete");
+    }
+
+    // 删除全文检索表，保证触发器不会引用不存在的表
+    private void dropSearchIndex(SQLiteDatabase db) {
+        try {
+            dropSearchIndexTriggers(db);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE.NOTE_FTS);
+        } catch (SQLiteException e) {
+            Log.e(TAG, "drop note search index failed: " + e.toString());
+        }
+    }
+
+    /**
+     * 全文检索表是否可用，不可用时搜索退回LIKE查询
+     */
+    public boolean isSearchIndexAvailable() {
+        if (mSearchIndexAvailable == null) {
+            Cursor c = null;
+            try {
+                c = getReadableDatabase().rawQuery(
+                        "SELECT 1 FROM sqlite_master WHERE type='table' AND name=?",
+                        new String[] { TABLE.NOTE_FTS });
+                mSearchIndexAvailable = c.moveToFirst();
+            } finally {
+                if (c != null) {
+                    c.close();
+                }
+            }
+        }
+        return mSearchIndexAvailable;
+    }
+
     // 获取NotesDatabaseHelper的单例
     static synchronized NotesDatabaseHelper getInstance(Context context) {
         if (mInstance == null) {
@@ -279,6 +823,7 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
     public void onCreate(SQLiteDatabase db) {
         createNoteTable(db);
         createDataTable(db);
+        createSearchIndex(db);
     }
 
     @Override
@@ -303,6 +848,16 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
             oldVersion++;
         }
 
+        if (oldVersion == 4) {
+            upgradeToV5(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 5) {
+            upgradeToV6(db);
+            oldVersion++;
+        }
+
         if (reCreateTriggers) {
             reCreateNoteTableTriggers(db);
             reCreateDataTableTriggers(db);
@@ -343,4 +898,15 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("ALTER TABLE " + TABLE.NOTE + " ADD COLUMN " + NoteColumns.VERSION
                 + " INTEGER NOT NULL DEFAULT 0");
     }
+
+    // 升级到V5版本：增加全文检索表并回填
+    private void upgradeToV5(SQLiteDatabase db) {
+        createSearchIndex(db);
+    }
+
+    // 升级到V6版本：为列表、小部件及提醒查询增加索引
+    private void upgradeToV6(SQLiteDatabase db) {
+        createNoteIndexes(db);
+        db.execSQL("ANALYZE " + TABLE.NOTE);
+    }
 }
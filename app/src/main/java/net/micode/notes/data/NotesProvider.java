@@ -18,26 +18,55 @@ package net.micode.notes.data;
 
 import android.app.SearchManager;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
 import android.text.TextUtils;
 import android.util.Log;
 
 import net.micode.notes.R;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDatabaseHelper.FtsColumns;
 import net.micode.notes.data.NotesDatabaseHelper.TABLE;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+
 public class NotesProvider extends ContentProvider {
     private static final UriMatcher mMatcher;  // 用于匹配不同URI的匹配器
     private NotesDatabaseHelper mHelper;  // 数据库帮助类
     private static final String TAG = "NotesProvider";  // 日志标签
 
+    // 合并变更通知，批量操作和防抖窗口内的通知去重后一起发送
+    private NotificationCoalescer mNotifications;
+
+    // 批量操作之外的变更通知默认推迟的毫秒数
+    private static final long NOTIFY_DEBOUNCE = 100;
+
+    // 批量移动、删除时每条语句绑定的ID数，低于SQLite的参数个数上限
+    private static final int BULK_CHUNK_SIZE = 500;
+
+    // 超过该数量的批量写入结束后主动做一次WAL检查点
+    private static final int CHECKPOINT_BATCH_SIZE = 500;
+
+    // 缓存的已编译语句数量上限
+    private static final int MAX_CACHED_STATEMENTS = 32;
+
+    private final StatementCache mStatements = new StatementCache(MAX_CACHED_STATEMENTS);
+
     // 定义URI的类型常量
     private static final int URI_NOTE            = 1;
     private static final int URI_NOTE_ITEM       = 2;
@@ -45,6 +74,12 @@ public class NotesProvider extends ContentProvider {
     private static final int URI_DATA_ITEM       = 4;
     private static final int URI_SEARCH          = 5;
     private static final int URI_SEARCH_SUGGEST  = 6;
+    private static final int URI_NOTE_DATA       = 7;
+
+    // 便签左连接数据表，没有数据行的便签和文件夹也会返回一行
+    private static final String NOTE_DATA_TABLES = TABLE.NOTE + " LEFT JOIN " + TABLE.DATA
+            + " ON " + TABLE.DATA + "." + DataColumns.NOTE_ID + "=" + TABLE.NOTE + "."
+            + NoteColumns.ID;
 
     static {
         mMatcher = new UriMatcher(UriMatcher.NO_MATCH);
@@ -53,6 +88,7 @@ public class NotesProvider extends ContentProvider {
         mMatcher.addURI(Notes.AUTHORITY, "note/#", URI_NOTE_ITEM);
         mMatcher.addURI(Notes.AUTHORITY, "data", URI_DATA);
         mMatcher.addURI(Notes.AUTHORITY, "data/#", URI_DATA_ITEM);
+        mMatcher.addURI(Notes.AUTHORITY, "note_data", URI_NOTE_DATA);
         mMatcher.addURI(Notes.AUTHORITY, "search", URI_SEARCH);
         mMatcher.addURI(Notes.AUTHORITY, SearchManager.SUGGEST_URI_PATH_QUERY, URI_SEARCH_SUGGEST);
         mMatcher.addURI(Notes.AUTHORITY, SearchManager.SUGGEST_URI_PATH_QUERY + "/*", URI_SEARCH_SUGGEST);
@@ -78,9 +114,25 @@ public class NotesProvider extends ContentProvider {
             + " AND " + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER
             + " AND " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE;
 
+    /**
+     * NOTES_FTS_SEARCH_QUERY通过全文检索表进行MATCH查询，按匹配次数及修改时间排序
+     */
+    private static final String NOTES_FTS_SEARCH_QUERY = "SELECT " + NOTES_SEARCH_PROJECTION
+            + " FROM " + TABLE.NOTE + " JOIN ("
+            + "SELECT " + FtsColumns.DOCID + " AS fts_id,"
+            + " length(offsets(" + TABLE.NOTE_FTS + ")) AS fts_rank"
+            + " FROM " + TABLE.NOTE_FTS
+            + " WHERE " + TABLE.NOTE_FTS + " MATCH ?"
+            + ") ON " + NoteColumns.ID + "=fts_id"
+            + " WHERE " + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER
+            + " AND " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE
+            + " ORDER BY fts_rank DESC, " + NoteColumns.MODIFIED_DATE + " DESC";
+
     @Override
     public boolean onCreate() {
         mHelper = NotesDatabaseHelper.getInstance(getContext());  // 初始化数据库帮助类
+        mNotifications = new NotificationCoalescer(getContext().getContentResolver(),
+                NOTIFY_DEBOUNCE);
         return true;
     }
 
@@ -94,14 +146,19 @@ public class NotesProvider extends ContentProvider {
         SQLiteDatabase db = mHelper.getReadableDatabase();  // 获取可读数据库
         String id = null;
         switch (mMatcher.match(uri)) {
-            case URI_NOTE:  // 查询便签表
+            case URI_NOTE:  // 查询便签表，可以通过limit参数分页
+                String limit = uri.getQueryParameter(Notes.QUERY_PARAMETER_LIMIT);
+                if (limit != null && !TextUtils.isDigitsOnly(limit)) {
+                    throw new IllegalArgumentException("Invalid limit " + limit);
+                }
                 c = db.query(TABLE.NOTE, projection, selection, selectionArgs, null, null,
-                        sortOrder);
+                        sortOrder, limit);
                 break;
             case URI_NOTE_ITEM:  // 查询指定便签项
                 id = uri.getPathSegments().get(1);
-                c = db.query(TABLE.NOTE, projection, NoteColumns.ID + "=" + id
-                        + parseSelection(selection), selectionArgs, null, null, sortOrder);
+                c = db.query(TABLE.NOTE, projection, NoteColumns.ID + "=?"
+                        + parseSelection(selection), prependArg(id, selectionArgs), null, null,
+                        sortOrder);
                 break;
             case URI_DATA:  // 查询数据表
                 c = db.query(TABLE.DATA, projection, selection, selectionArgs, null, null,
@@ -109,8 +166,13 @@ public class NotesProvider extends ContentProvider {
                 break;
             case URI_DATA_ITEM:  // 查询指定数据项
                 id = uri.getPathSegments().get(1);
-                c = db.query(TABLE.DATA, projection, DataColumns.ID + "=" + id
-                        + parseSelection(selection), selectionArgs, null, null, sortOrder);
+                c = db.query(TABLE.DATA, projection, DataColumns.ID + "=?"
+                        + parseSelection(selection), prependArg(id, selectionArgs), null, null,
+                        sortOrder);
+                break;
+            case URI_NOTE_DATA:  // 一次查询便签及其数据，用于导出和备份
+                c = db.query(NOTE_DATA_TABLES, projection, selection, selectionArgs, null, null,
+                        sortOrder);
                 break;
             case URI_SEARCH:
             case URI_SEARCH_SUGGEST:  // 查询搜索建议
@@ -132,12 +194,23 @@ public class NotesProvider extends ContentProvider {
                     return null;
                 }
 
-                try {
-                    searchString = String.format("%%%s%%", searchString);  // 在搜索字符串两侧加上通配符
-                    c = db.rawQuery(NOTES_SNIPPET_SEARCH_QUERY,
-                            new String[] { searchString });  // 执行查询
-                } catch (IllegalStateException ex) {
-                    Log.e(TAG, "got exception: " + ex.toString());
+                String matchString = buildMatchString(searchString);
+                if (matchString != null && mHelper.isSearchIndexAvailable()) {
+                    try {
+                        c = db.rawQuery(NOTES_FTS_SEARCH_QUERY, new String[] { matchString });  // 全文检索
+                    } catch (SQLiteException ex) {
+                        Log.e(TAG, "fts search failed, fall back to like: " + ex.toString());
+                    }
+                }
+
+                if (c == null) {
+                    try {
+                        searchString = String.format("%%%s%%", searchString);  // 在搜索字符串两侧加上通配符
+                        c = db.rawQuery(NOTES_SNIPPET_SEARCH_QUERY,
+                                new String[] { searchString });  // 执行查询
+                    } catch (IllegalStateException ex) {
+                        Log.e(TAG, "got exception: " + ex.toString());
+                    }
                 }
                 break;
             default:
@@ -158,7 +231,7 @@ public class NotesProvider extends ContentProvider {
         long dataId = 0, noteId = 0, insertedId = 0;
         switch (mMatcher.match(uri)) {
             case URI_NOTE:  // 插入便签
-                insertedId = noteId = db.insert(TABLE.NOTE, null, values);
+                insertedId = noteId = insertRow(db, TABLE.NOTE, values);
                 break;
             case URI_DATA:  // 插入数据
                 if (values.containsKey(DataColumns.NOTE_ID)) {  // 确保数据包含便签ID
@@ -166,20 +239,18 @@ public class NotesProvider extends ContentProvider {
                 } else {
                     Log.d(TAG, "Wrong data format without note id:" + values.toString());
                 }
-                insertedId = dataId = db.insert(TABLE.DATA, null, values);  // 插入数据
+                insertedId = dataId = insertRow(db, TABLE.DATA, values);  // 插入数据
                 break;
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
         // 通知便签URI
         if (noteId > 0) {
-            getContext().getContentResolver().notifyChange(
-                    ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId), null);
+            notifyChange(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId));
         }
         // 通知数据URI
         if (dataId > 0) {
-            getContext().getContentResolver().notifyChange(
-                    ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, dataId), null);
+            notifyChange(ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, dataId));
         }
 
         return ContentUris.withAppendedId(uri, insertedId);  // 返回插入数据的URI
@@ -197,7 +268,7 @@ public class NotesProvider extends ContentProvider {
         switch (mMatcher.match(uri)) {
             case URI_NOTE:  // 删除便签
                 selection = "(" + selection + ") AND " + NoteColumns.ID + ">0 ";
-                count = db.delete(TABLE.NOTE, selection, selectionArgs);  // 执行删除
+                count = deleteRows(db, TABLE.NOTE, selection, selectionArgs);  // 执行删除
                 break;
             case URI_NOTE_ITEM:  // 删除指定便签项
                 id = uri.getPathSegments().get(1);
@@ -205,17 +276,17 @@ public class NotesProvider extends ContentProvider {
                 if (noteId <= 0) {  // ID小于等于0的为系统文件夹，不能删除
                     break;
                 }
-                count = db.delete(TABLE.NOTE,
-                        NoteColumns.ID + "=" + id + parseSelection(selection), selectionArgs);
+                count = deleteRows(db, TABLE.NOTE, NoteColumns.ID + "=?"
+                        + parseSelection(selection), prependArg(id, selectionArgs));
                 break;
             case URI_DATA:  // 删除数据
-                count = db.delete(TABLE.DATA, selection, selectionArgs);
+                count = deleteRows(db, TABLE.DATA, selection, selectionArgs);
                 deleteData = true;
                 break;
             case URI_DATA_ITEM:  // 删除指定数据项
                 id = uri.getPathSegments().get(1);
-                count = db.delete(TABLE.DATA,
-                        DataColumns.ID + "=" + id + parseSelection(selection), selectionArgs);
+                count = deleteRows(db, TABLE.DATA, DataColumns.ID + "=?"
+                        + parseSelection(selection), prependArg(id, selectionArgs));
                 deleteData = true;
                 break;
             default:
@@ -223,9 +294,9 @@ public class NotesProvider extends ContentProvider {
         }
         if (count > 0) {
             if (deleteData) {
-                getContext().getContentResolver().notifyChange(Notes.CONTENT_NOTE_URI, null);  // 通知便签内容改变
+                notifyChange(Notes.CONTENT_NOTE_URI);  // 通知便签内容改变
             }
-            getContext().getContentResolver().notifyChange(uri, null);  // 通知URI内容改变
+            notifyChange(uri);  // 通知URI内容改变
         }
         return count;
     }
@@ -240,24 +311,24 @@ public class NotesProvider extends ContentProvider {
         SQLiteDatabase db = mHelper.getWritableDatabase();  // 获取可写数据库
         boolean updateData = false;
         switch (mMatcher.match(uri)) {
-            case URI_NOTE:  // 更新便签
-                increaseNoteVersion(-1, selection, selectionArgs);  // 增加便签的版本号
-                count = db.update(TABLE.NOTE, values, selection, selectionArgs);
+            case URI_NOTE:  // 更新便签，同时增加版本号
+                count = updateRows(db, TABLE.NOTE, values, selection, selectionArgs, true);
                 break;
-            case URI_NOTE_ITEM:  // 更新指定便签项
+            case URI_NOTE_ITEM:  // 更新指定便签项，同时增加版本号
                 id = uri.getPathSegments().get(1);
-                increaseNoteVersion(Long.valueOf(id), selection, selectionArgs);  // 增加便签的版本号
-                count = db.update(TABLE.NOTE, values, NoteColumns.ID + "=" + id
-                        + parseSelection(selection), selectionArgs);
+                count = updateRows(db, TABLE.NOTE, values,
+                        NoteColumns.ID + "=?" + parseSelection(selection),
+                        prependArg(id, selectionArgs), true);
                 break;
             case URI_DATA:  // 更新数据
-                count = db.update(TABLE.DATA, values, selection, selectionArgs);
+                count = updateRows(db, TABLE.DATA, values, selection, selectionArgs, false);
                 updateData = true;
                 break;
             case URI_DATA_ITEM:  // 更新指定数据项
                 id = uri.getPathSegments().get(1);
-                count = db.update(TABLE.DATA, values, DataColumns.ID + "=" + id
-                        + parseSelection(selection), selectionArgs);
+                count = updateRows(db, TABLE.DATA, values,
+                        DataColumns.ID + "=?" + parseSelection(selection),
+                        prependArg(id, selectionArgs), false);
                 updateData = true;
                 break;
             default:
@@ -266,13 +337,86 @@ public class NotesProvider extends ContentProvider {
 
         if (count > 0) {
             if (updateData) {
-                getContext().getContentResolver().notifyChange(Notes.CONTENT_NOTE_URI, null);  // 通知便签内容改变
+                notifyChange(Notes.CONTENT_NOTE_URI);  // 通知便签内容改变
             }
-            getContext().getContentResolver().notifyChange(uri, null);  // 通知URI内容改变
+            notifyChange(uri);  // 通知URI内容改变
         }
         return count;
     }
 
+    /**
+     * 在一个事务中执行全部操作，变更通知在事务提交后合并发送。
+     * 调用方用 withYieldAllowed 标记的操作之前可以让出数据库，此时前面的操作先行提交，
+     * 只有两个标记之间的操作保证一起成功或失败；没有标记时整批操作是原子的
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+        beginBatch();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < operations.size(); i++) {
+                ContentProviderOperation operation = operations.get(i);
+                // 只在调用方允许的位置让出数据库，不拆开调用方要求原子执行的操作
+                if (i > 0 && operation.isYieldAllowed() && db.yieldIfContendedSafely()) {
+                    // 前面的操作已经提交
+                    mNotifications.commitBatch();
+                }
+                results[i] = operation.apply(this, results, i);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            endBatch();
+        }
+        if (operations.size() >= CHECKPOINT_BATCH_SIZE) {
+            mHelper.checkpoint();
+        }
+        return results;
+    }
+
+    /**
+     * 在一个事务中批量插入，中途不让出数据库，全部插入一起成功或失败，
+     * 变更通知在事务提交后合并发送
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        int count = 0;
+        beginBatch();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < values.length; i++) {
+                Uri inserted = insert(uri, values[i]);
+                if (inserted != null && ContentUris.parseId(inserted) > 0) {
+                    count++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            endBatch();
+        }
+        if (values.length >= CHECKPOINT_BATCH_SIZE) {
+            mHelper.checkpoint();
+        }
+        return count;
+    }
+
+    private void beginBatch() {
+        mNotifications.beginBatch();
+    }
+
+    private void endBatch() {
+        mNotifications.endBatch();
+    }
+
+    private void notifyChange(Uri uri) {
+        mNotifications.notifyChange(uri);
+    }
+
     /**
      * 解析查询条件
      */
@@ -281,31 +425,330 @@ public class NotesProvider extends ContentProvider {
     }
 
     /**
-     * 增加便签的版本号
+     * 将用户输入转换为FTS的MATCH表达式，每个词作为前缀匹配且全部需要命中。
+     * 分词器无法切分中日韩文字，此时返回null由调用方退回LIKE查询
+     */
+    private static String buildMatchString(String searchString) {
+        StringBuilder match = new StringBuilder();
+        for (String term : searchString.trim().split("\\s+")) {
+            term = term.replace("\"", "");
+            if (term.length() == 0) {
+                continue;
+            }
+            if (containsCjk(term)) {
+                return null;
+            }
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            match.append('"').append(term).append("*\"");
+        }
+        return match.length() > 0 ? match.toString() : null;
+    }
+
+    private static boolean containsCjk(String term) {
+        for (int i = 0; i < term.length(); ) {
+            int codePoint = term.codePointAt(i);
+            Character.UnicodeScript script = Character.UnicodeScript.of(codePoint);
+            if (script == Character.UnicodeScript.HAN
+                    || script == Character.UnicodeScript.HIRAGANA
+                    || script == Character.UnicodeScript.KATAKANA
+                    || script == Character.UnicodeScript.HANGUL) {
+                return true;
+            }
+            i += Character.charCount(codePoint);
+        }
+        return false;
+    }
+
+    /**
+     * 插入一行，写入的列相同的插入复用缓存中已编译的语句。失败时与
+     * SQLiteDatabase.insert 一样记录日志并返回-1
      */
-    private void increaseNoteVersion(long id, String selection, String[] selectionArgs) {
+    private long insertRow(SQLiteDatabase db, String table, ContentValues values) {
+        ArrayList<String> columns = sortedColumns(values);
         StringBuilder sql = new StringBuilder(120);
-        sql.append("UPDATE ");
-        sql.append(TABLE.NOTE);
-        sql.append(" SET ");
-        sql.append(NoteColumns.VERSION);
-        sql.append("=" + NoteColumns.VERSION + "+1 ");
+        sql.append("INSERT INTO ").append(table);
+        if (columns.isEmpty()) {
+            sql.append(" DEFAULT VALUES");
+        } else {
+            sql.append(" (");
+            for (int i = 0; i < columns.size(); i++) {
+                sql.append(i > 0 ? "," : "").append(columns.get(i));
+            }
+            sql.append(") VALUES (");
+            for (int i = 0; i < columns.size(); i++) {
+                sql.append(i > 0 ? ",?" : "?");
+            }
+            sql.append(")");
+        }
 
-        if (id > 0 || !TextUtils.isEmpty(selection)) {
-            sql.append(" WHERE ");
+        String statementSql = sql.toString();
+        SQLiteStatement statement = mStatements.acquire(db, statementSql);
+        try {
+            int index = 1;
+            for (String column : columns) {
+                bindValue(statement, index++, values.get(column));
+            }
+            return statement.executeInsert();
+        } catch (SQLException e) {
+            Log.e(TAG, "Error inserting " + values + " into " + table + ": " + e.toString());
+            return -1;
+        } finally {
+            mStatements.release(statementSql, statement);
         }
-        if (id > 0) {
-            sql.append(NoteColumns.ID + "=" + String.valueOf(id));
+    }
+
+    /**
+     * 按带占位符的条件删除，条件模板相同的删除复用缓存中已编译的语句
+     */
+    private int deleteRows(SQLiteDatabase db, String table, String selection,
+            String[] selectionArgs) {
+        String statementSql = "DELETE FROM " + table
+                + (!TextUtils.isEmpty(selection) ? " WHERE " + selection : "");
+        SQLiteStatement statement = mStatements.acquire(db, statementSql);
+        try {
+            bindArgs(statement, 1, selectionArgs);
+            return statement.executeUpdateDelete();
+        } finally {
+            mStatements.release(statementSql, statement);
+        }
+    }
+
+    /**
+     * 按带占位符的条件更新，写入的列和条件模板相同的更新复用缓存中已编译的语句。
+     * 更新便签时在同一条语句中增加版本号，条件按更新前的行计算
+     */
+    private int updateRows(SQLiteDatabase db, String table, ContentValues values,
+            String selection, String[] selectionArgs, boolean increaseVersion) {
+        if (values == null || values.size() == 0) {
+            throw new IllegalArgumentException("Empty values");
+        }
+        ArrayList<String> columns = sortedColumns(values);
+        StringBuilder sql = new StringBuilder(120);
+        sql.append("UPDATE ").append(table).append(" SET ");
+        for (int i = 0; i < columns.size(); i++) {
+            sql.append(i > 0 ? "," : "").append(columns.get(i)).append("=?");
+        }
+        // 显式写入版本号时以写入的值为准
+        if (increaseVersion && !values.containsKey(NoteColumns.VERSION)) {
+            sql.append(",").append(NoteColumns.VERSION).append("=").append(NoteColumns.VERSION)
+                    .append("+1");
         }
         if (!TextUtils.isEmpty(selection)) {
-            String selectString = id > 0 ? parseSelection(selection) : selection;
-            for (String args : selectionArgs) {
-                selectString = selectString.replaceFirst("\\?", args);  // 替换查询条件中的占位符
+            sql.append(" WHERE ").append(selection);
+        }
+
+        String statementSql = sql.toString();
+        SQLiteStatement statement = mStatements.acquire(db, statementSql);
+        try {
+            int index = 1;
+            for (String column : columns) {
+                bindValue(statement, index++, values.get(column));
+            }
+            bindArgs(statement, index, selectionArgs);
+            return statement.executeUpdateDelete();
+        } finally {
+            mStatements.release(statementSql, statement);
+        }
+    }
+
+    /**
+     * 用按ID分组的几条语句移动一组便签，期间不逐行维护文件夹便签数，
+     * 提交前一次重算，整个过程在一个事务中
+     */
+    private int bulkMove(long[] ids, long folderId) {
+        String prefix = "UPDATE " + TABLE.NOTE + " SET " + NoteColumns.PARENT_ID + "="
+                + folderId + "," + NoteColumns.LOCAL_MODIFIED + "=1," + NoteColumns.VERSION
+                + "=" + NoteColumns.VERSION + "+1 WHERE " + NoteColumns.ID + " IN (";
+        int count = executeBulk(prefix, ids);
+        if (count > 0) {
+            notifyChange(Notes.CONTENT_NOTE_URI);
+        }
+        return count;
+    }
+
+    /**
+     * 与 bulkMove 相同地删除一组便签，系统文件夹不会被删除；
+     * 便签的数据行和文件夹下的便签仍由触发器删除
+     */
+    private int bulkDelete(long[] ids) {
+        String prefix = "DELETE FROM " + TABLE.NOTE + " WHERE " + NoteColumns.ID + ">0 AND "
+                + NoteColumns.ID + " IN (";
+        int count = executeBulk(prefix, ids);
+        if (count > 0) {
+            notifyChange(Notes.CONTENT_NOTE_URI);
+            notifyChange(Notes.CONTENT_DATA_URI);
+        }
+        return count;
+    }
+
+    // 语句数量随ID数变化，不放入语句缓存
+    private int executeBulk(String prefix, long[] ids) {
+        if (ids.length == 0) {
+            return 0;
+        }
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        int count = 0;
+        db.beginTransaction();
+        try {
+            mHelper.dropFolderCountTriggers(db);
+            for (int start = 0; start < ids.length; start += BULK_CHUNK_SIZE) {
+                int size = Math.min(BULK_CHUNK_SIZE, ids.length - start);
+                StringBuilder sql = new StringBuilder(prefix.length() + size * 2 + 1);
+                sql.append(prefix);
+                for (int i = 0; i < size; i++) {
+                    sql.append(i > 0 ? ",?" : "?");
+                }
+                sql.append(")");
+                SQLiteStatement statement = db.compileStatement(sql.toString());
+                try {
+                    for (int i = 0; i < size; i++) {
+                        statement.bindLong(i + 1, ids[start + i]);
+                    }
+                    count += statement.executeUpdateDelete();
+                } finally {
+                    statement.close();
+                }
+            }
+            mHelper.rebuildFolderCounts(db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (ids.length >= CHECKPOINT_BATCH_SIZE) {
+            mHelper.checkpoint();
+        }
+        return count;
+    }
+
+    private Bundle checkFolderCounts(boolean repair) {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        ArrayList<long[]> mismatches;
+        db.beginTransaction();
+        try {
+            mismatches = mHelper.checkFolderCounts(db);
+            if (repair && !mismatches.isEmpty()) {
+                mHelper.rebuildFolderCounts(db);
             }
-            sql.append(selectString);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (!mismatches.isEmpty()) {
+            Log.w(TAG, mismatches.size() + " folders have inconsistent notes count"
+                    + (repair ? ", recomputed" : ""));
+            if (repair) {
+                notifyChange(Notes.CONTENT_NOTE_URI);
+            }
+        }
+
+        long[] ids = new long[mismatches.size()];
+        long[] counts = new long[mismatches.size()];
+        long[] actualCounts = new long[mismatches.size()];
+        for (int i = 0; i < mismatches.size(); i++) {
+            ids[i] = mismatches.get(i)[0];
+            counts[i] = mismatches.get(i)[1];
+            actualCounts[i] = mismatches.get(i)[2];
+        }
+        Bundle result = new Bundle();
+        result.putLongArray(Notes.EXTRA_IDS, ids);
+        result.putLongArray(Notes.EXTRA_COUNTS, counts);
+        result.putLongArray(Notes.EXTRA_ACTUAL_COUNTS, actualCounts);
+        return result;
+    }
+
+    // 列按名称排序，相同的一组列总是生成相同的SQL
+    private static ArrayList<String> sortedColumns(ContentValues values) {
+        ArrayList<String> columns = new ArrayList<String>(values.keySet());
+        Collections.sort(columns);
+        return columns;
+    }
+
+    private static void bindArgs(SQLiteStatement statement, int index, String[] args) {
+        if (args != null) {
+            for (String arg : args) {
+                statement.bindString(index++, arg);
+            }
+        }
+    }
+
+    private static void bindValue(SQLiteStatement statement, int index, Object value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else if (value instanceof Float || value instanceof Double) {
+            statement.bindDouble(index, ((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            statement.bindLong(index, ((Number) value).longValue());
+        } else if (value instanceof Boolean) {
+            statement.bindLong(index, (Boolean) value ? 1 : 0);
+        } else if (value instanceof byte[]) {
+            statement.bindBlob(index, (byte[]) value);
+        } else {
+            statement.bindString(index, value.toString());
         }
+    }
+
+    private static String[] prependArg(String arg, String[] selectionArgs) {
+        if (selectionArgs == null || selectionArgs.length == 0) {
+            return new String[] { arg };
+        }
+        String[] args = new String[selectionArgs.length + 1];
+        args[0] = arg;
+        System.arraycopy(selectionArgs, 0, args, 1, selectionArgs.length);
+        return args;
+    }
 
-        mHelper.getWritableDatabase().execSQL(sql.toString());  // 执行SQL语句
+    /**
+     * {@link Notes#METHOD_STATEMENT_STATS} 返回已编译语句的使用情况，
+     * 每个SQL对应 {命中次数, 编译次数}；{@link Notes#METHOD_SET_NOTIFY_DEBOUNCE}
+     * 设置变更通知的防抖毫秒数并返回原来的值；批量移动、删除和检查文件夹便签数
+     * 见 {@link Notes#METHOD_BULK_MOVE} 等常量的说明
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (Notes.METHOD_STATEMENT_STATS.equals(method)) {
+            Bundle stats = new Bundle();
+            for (Map.Entry<String, long[]> entry : mStatements.getStats().entrySet()) {
+                stats.putLongArray(entry.getKey(), entry.getValue());
+            }
+            return stats;
+        } else if (Notes.METHOD_BULK_MOVE.equals(method)
+                || Notes.METHOD_BULK_DELETE.equals(method)) {
+            long[] ids = extras != null ? extras.getLongArray(Notes.EXTRA_IDS) : null;
+            if (ids == null) {
+                throw new IllegalArgumentException("No ids for " + method);
+            }
+            int count;
+            if (Notes.METHOD_BULK_MOVE.equals(method)) {
+                long folderId;
+                try {
+                    folderId = Long.parseLong(arg);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid folder id " + arg);
+                }
+                count = bulkMove(ids, folderId);
+            } else {
+                count = bulkDelete(ids);
+            }
+            Bundle result = new Bundle();
+            result.putInt(Notes.EXTRA_COUNT, count);
+            return result;
+        } else if (Notes.METHOD_CHECK_FOLDER_COUNTS.equals(method)) {
+            return checkFolderCounts("repair".equals(arg));
+        } else if (Notes.METHOD_SET_NOTIFY_DEBOUNCE.equals(method)) {
+            Bundle result = new Bundle();
+            result.putLong(Notes.METHOD_SET_NOTIFY_DEBOUNCE, mNotifications.getDebounce());
+            if (arg != null) {
+                try {
+                    mNotifications.setDebounce(Long.parseLong(arg));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid debounce " + arg);
+                }
+            }
+            return result;
+        }
+        return super.call(method, arg, extras);
     }
 
     @Override
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * 合并内容变更通知。批量操作期间当前线程上的通知只被记录，事务提交后立即合并发送；
+ * 批量操作之外的通知先等待防抖时间，这段时间内的通知合并后一起发送。
+ * 发送时每张表只保留一个URI：只有一行变化时通知该行，否则通知整张表，
+ * 监听整张表的观察者（如便签列表）每次只收到一次回调
+ */
+class NotificationCoalescer {
+    private final ContentResolver mResolver;
+
+    private final Handler mHandler;
+
+    // 正在执行批量操作的线程上记录的通知
+    private final ThreadLocal<HashSet<Uri>> mBatch = new ThreadLocal<HashSet<Uri>>();
+
+    // 等待发送的通知，只在持有锁时访问
+    private final LinkedHashSet<Uri> mPending = new LinkedHashSet<Uri>();
+
+    private boolean mFlushScheduled;
+
+    private volatile long mDebounce;
+
+    private final Runnable mFlush = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param debounce 批量操作之外的通知最多推迟的毫秒数，0表示立即发送
+     */
+    NotificationCoalescer(ContentResolver resolver, long debounce) {
+        mResolver = resolver;
+        mHandler = new Handler(Looper.getMainLooper());
+        mDebounce = Math.max(0, debounce);
+    }
+
+    void setDebounce(long debounce) {
+        mDebounce = Math.max(0, debounce);
+    }
+
+    long getDebounce() {
+        return mDebounce;
+    }
+
+    /**
+     * 开始批量操作，之后当前线程上的通知只被记录
+     */
+    void beginBatch() {
+        mBatch.set(new LinkedHashSet<Uri>());
+    }
+
+    /**
+     * 批量操作让出数据库时调用，此前记录的通知对应的修改已经提交，立即发送
+     */
+    void commitBatch() {
+        HashSet<Uri> batch = mBatch.get();
+        if (batch == null || batch.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            mPending.addAll(batch);
+        }
+        batch.clear();
+        flush();
+    }
+
+    /**
+     * 结束批量操作，记录的通知与其他等待的通知合并后立即发送，
+     * 调用方返回时观察者已经收到通知。失败时同样发送：回滚的修改多发的通知
+     * 只会让观察者多查询一次，漏发则会让界面停留在旧数据上
+     */
+    void endBatch() {
+        commitBatch();
+        mBatch.remove();
+    }
+
+    void notifyChange(Uri uri) {
+        HashSet<Uri> batch = mBatch.get();
+        if (batch != null) {
+            batch.add(uri);
+            return;
+        }
+        long debounce = mDebounce;
+        synchronized (this) {
+            mPending.add(uri);
+            if (debounce > 0) {
+                // 第一个通知开始一个窗口，窗口结束时一起发送
+                if (!mFlushScheduled) {
+                    mFlushScheduled = true;
+                    mHandler.postDelayed(mFlush, debounce);
+                }
+                return;
+            }
+        }
+        flush();
+    }
+
+    /**
+     * 立即发送所有等待的通知
+     */
+    void flush() {
+        ArrayList<Uri> uris;
+        synchronized (this) {
+            if (mFlushScheduled) {
+                mHandler.removeCallbacks(mFlush);
+                mFlushScheduled = false;
+            }
+            if (mPending.isEmpty()) {
+                return;
+            }
+            uris = coalesce(mPending);
+            mPending.clear();
+        }
+        for (Uri uri : uris) {
+            mResolver.notifyChange(uri, null);
+        }
+    }
+
+    // 按路径的第一段区分表，同一张表有多个URI时改为通知整张表，
+    // 整张表的通知同样会送达监听其中某一行的观察者
+    private static ArrayList<Uri> coalesce(Collection<Uri> pending) {
+        LinkedHashMap<String, Uri> tables = new LinkedHashMap<String, Uri>();
+        for (Uri uri : pending) {
+            List<String> segments = uri.getPathSegments();
+            String table = segments.isEmpty() ? "" : segments.get(0);
+            Uri first = tables.get(table);
+            if (first == null) {
+                tables.put(table, uri);
+            } else if (!first.equals(uri)) {
+                tables.put(table, uri.buildUpon().path(table).build());
+            }
+        }
+        return new ArrayList<Uri>(tables.values());
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 按SQL缓存已编译的语句，超过上限时关闭最久未使用的语句。SQL由URI类型、写入的列
+ * 和带占位符的条件模板决定，相同形状的调用共用一条语句，并分别统计命中次数。
+ * 语句取出后由调用线程独占，用完后放回；同一条SQL同时被多个线程使用时各自编译，
+ * 放回时多余的直接关闭。只在取出和放回时加锁，执行语句时不持有锁，
+ * 不会和其他线程的数据库事务互相等待
+ */
+class StatementCache {
+    private final int mMaxSize;
+
+    // 按最近放回的顺序排列，最前面的最久未使用
+    private final LinkedHashMap<String, SQLiteStatement> mStatements;
+
+    // 每种SQL的 {命中次数, 编译次数}，按最近使用的顺序排列，只保留有限的数量
+    private final LinkedHashMap<String, long[]> mStats;
+
+    StatementCache(int maxSize) {
+        mMaxSize = maxSize;
+        mStatements = new LinkedHashMap<String, SQLiteStatement>();
+        mStats = new LinkedHashMap<String, long[]>(16, 0.75f, true);
+    }
+
+    /**
+     * 取出SQL对应的语句，缓存中没有时编译一条，用完后必须调用 release 放回
+     */
+    SQLiteStatement acquire(SQLiteDatabase db, String sql) {
+        SQLiteStatement statement;
+        synchronized (this) {
+            statement = mStatements.remove(sql);
+            long[] stats = mStats.get(sql);
+            if (stats == null) {
+                stats = new long[2];
+                mStats.put(sql, stats);
+                if (mStats.size() > mMaxSize * 4) {
+                    Iterator<long[]> eldest = mStats.values().iterator();
+                    eldest.next();
+                    eldest.remove();
+                }
+            }
+            stats[statement != null ? 0 : 1]++;
+        }
+        if (statement == null) {
+            statement = db.compileStatement(sql);
+        }
+        return statement;
+    }
+
+    void release(String sql, SQLiteStatement statement) {
+        statement.clearBindings();
+        SQLiteStatement evicted = null;
+        synchronized (this) {
+            if (mStatements.containsKey(sql)) {
+                evicted = statement;
+            } else {
+                mStatements.put(sql, statement);
+                if (mStatements.size() > mMaxSize) {
+                    Iterator<SQLiteStatement> eldest = mStatements.values().iterator();
+                    evicted = eldest.next();
+                    eldest.remove();
+                }
+            }
+        }
+        if (evicted != null) {
+            evicted.close();
+        }
+    }
+
+    /**
+     * 返回各SQL的 {命中次数, 编译次数}，命中率低说明缓存上限不够或SQL中拼接了变化的值
+     */
+    synchronized LinkedHashMap<String, long[]> getStats() {
+        LinkedHashMap<String, long[]> stats = new LinkedHashMap<String, long[]>();
+        for (Map.Entry<String, long[]> entry : mStats.entrySet()) {
+            stats.put(entry.getKey(), entry.getValue().clone());
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.util.Log;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.gtask.exception.ActionFailureException;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * Collects the local writes of a sync so that they are applied in a single
+ * provider transaction with one change notification. Notes created in the
+ * batch get their ids only after {@link #apply(ContentResolver)}.
+ */
+public class SqlBatch {
+    private static final String TAG = SqlBatch.class.getSimpleName();
+
+    private ArrayList<ContentProviderOperation> mOperations;
+
+    // notes with queued inserts of their own or of their data
+    private ArrayList<SqlNote> mPendingNotes;
+
+    // explicit ids queued for insert, they are not in the database yet
+    private HashSet<Long> mClaimedNoteIds;
+
+    private HashSet<Long> mClaimedDataIds;
+
+    public SqlBatch() {
+        mOperations = new ArrayList<ContentProviderOperation>();
+        mPendingNotes = new ArrayList<SqlNote>();
+        mClaimedNoteIds = new HashSet<Long>();
+        mClaimedDataIds = new HashSet<Long>();
+    }
+
+    int add(ContentProviderOperation operation) {
+        mOperations.add(operation);
+        return mOperations.size() - 1;
+    }
+
+    void addPendingNote(SqlNote note) {
+        mPendingNotes.add(note);
+    }
+
+    void claimNoteId(long id) {
+        mClaimedNoteIds.add(id);
+    }
+
+    void claimDataId(long id) {
+        mClaimedDataIds.add(id);
+    }
+
+    public boolean isNoteIdClaimed(long id) {
+        return mClaimedNoteIds.contains(id);
+    }
+
+    public boolean isDataIdClaimed(long id) {
+        return mClaimedDataIds.contains(id);
+    }
+
+    public void update(Uri uri, ContentValues values) {
+        add(ContentProviderOperation.newUpdate(uri).withValues(values).build());
+    }
+
+    public void delete(Uri uri) {
+        add(ContentProviderOperation.newDelete(uri).build());
+    }
+
+    public boolean isEmpty() {
+        return mOperations.isEmpty();
+    }
+
+    public int size() {
+        return mOperations.size();
+    }
+
+    /**
+     * Applies all queued writes. The batch is empty afterwards, even when
+     * applying fails, so that a failed batch is never applied twice.
+     */
+    public void apply(ContentResolver resolver) {
+        if (mOperations.isEmpty()) {
+            return;
+        }
+
+        try {
+            ContentProviderResult[] results = resolver.applyBatch(Notes.AUTHORITY, mOperations);
+            for (int i = 0; i < results.length; i++) {
+                if (mOperations.get(i).isUpdate() && results[i].count != null
+                        && results[i].count == 0) {
+                    Log.w(TAG, "there is no update. maybe user updates note when syncing");
+                }
+            }
+            for (SqlNote note : mPendingNotes) {
+                note.onBatchApplied(results);
+            }
+        } catch (RemoteException e) {
+            Log.e(TAG, e.toString());
+            throw new ActionFailureException("apply local changes failed", e);
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, e.toString());
+            throw new ActionFailureException("apply local changes failed", e);
+        } finally {
+            mOperations.clear();
+            mPendingNotes.clear();
+            mClaimedNoteIds.clear();
+            mClaimedDataIds.clear();
+        }
+    }
+}
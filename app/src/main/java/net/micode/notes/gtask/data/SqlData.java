@@ -16,6 +16,8 @@
 
 package net.micode.notes.gtask.data;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
@@ -45,6 +47,10 @@ public class SqlData {
             DataColumns.DATA3
     };
 
+    // The owning note still has the given version, looked up by its primary key
+    private static final String NOTE_VERSION_SELECTION = "EXISTS (SELECT 1 FROM " + TABLE.NOTE
+            + " WHERE " + NoteColumns.ID + "=? AND " + NoteColumns.VERSION + "=?)";
+
     public static final int DATA_ID_COLUMN = 0;
 
     public static final int DATA_MIME_TYPE_COLUMN = 1;
@@ -71,6 +77,9 @@ public class SqlData {
 
     private ContentValues mDiffDataValues;
 
+    // index of the queued insert in a SqlBatch, -1 if there is none
+    private int mInsertIndex;
+
     public SqlData(Context context) {
         mContentResolver = context.getContentResolver();
         mIsCreate = true;
@@ -80,6 +89,7 @@ public class SqlData {
         mDataContentData1 = 0;
         mDataContentData3 = "";
         mDiffDataValues = new ContentValues();
+        mInsertIndex = -1;
     }
 
     public SqlData(Context context, Cursor c) {
@@ -87,6 +97,7 @@ public class SqlData {
         mIsCreate = false;
         loadFromCursor(c);
         mDiffDataValues = new ContentValues();
+        mInsertIndex = -1;
     }
 
     private void loadFromCursor(Cursor c) {
@@ -144,7 +155,12 @@ public class SqlData {
         return js;
     }
 
-    public void commit(long noteId, boolean validateVersion, long version) {
+    /**
+     * Writes the changes, the in-memory state already holds what is written.
+     * Returns false if a version-validated update did not apply.
+     */
+    public boolean commit(long noteId, boolean validateVersion, long version) {
+        boolean applied = true;
 
         if (mIsCreate) {
             if (mDataId == INVALID_ID && mDiffDataValues.containsKey(DataColumns.ID)) {
@@ -168,22 +184,81 @@ public class SqlData {
                 } else {
                     result = mContentResolver.update(ContentUris.withAppendedId(
                             Notes.CONTENT_DATA_URI, mDataId), mDiffDataValues,
-                            " ? in (SELECT " + NoteColumns.ID + " FROM " + TABLE.NOTE
-                                    + " WHERE " + NoteColumns.VERSION + "=?)", new String[] {
+                            NOTE_VERSION_SELECTION, new String[] {
                                     String.valueOf(noteId), String.valueOf(version)
                             });
                 }
                 if (result == 0) {
                     Log.w(TAG, "there is no update. maybe user updates note when syncing");
+                    applied = false;
                 }
             }
         }
 
         mDiffDataValues.clear();
         mIsCreate = false;
+        return applied;
+    }
+
+    /**
+     * Queues the changes in the batch. For a note that is created in the same
+     * batch noteInsertIndex refers to its insert, otherwise it is -1.
+     */
+    void commit(long noteId, int noteInsertIndex, boolean validateVersion, long version,
+            SqlBatch batch) {
+        if (mIsCreate) {
+            if (mDataId == INVALID_ID && mDiffDataValues.containsKey(DataColumns.ID)) {
+                mDiffDataValues.remove(DataColumns.ID);
+            }
+            if (mDiffDataValues.containsKey(DataColumns.ID)) {
+                batch.claimDataId(mDataId);
+            }
+
+            ContentProviderOperation.Builder builder = ContentProviderOperation
+                    .newInsert(Notes.CONTENT_DATA_URI).withValues(mDiffDataValues);
+            if (noteInsertIndex >= 0) {
+                builder.withValueBackReference(DataColumns.NOTE_ID, noteInsertIndex);
+            } else {
+                builder.withValue(DataColumns.NOTE_ID, noteId);
+            }
+            mInsertIndex = batch.add(builder.build());
+        } else if (mDiffDataValues.size() > 0) {
+            ContentProviderOperation.Builder builder = ContentProviderOperation
+                    .newUpdate(ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, mDataId))
+                    .withValues(mDiffDataValues);
+            if (validateVersion) {
+                builder.withSelection(NOTE_VERSION_SELECTION, new String[] {
+                        String.valueOf(noteId), String.valueOf(version)
+                });
+            }
+            batch.add(builder.build());
+        }
+        mDiffDataValues.clear();
+    }
+
+    void onBatchApplied(ContentProviderResult[] results) {
+        if (mInsertIndex < 0) {
+            return;
+        }
+        try {
+            mDataId = Long.valueOf(results[mInsertIndex].uri.getPathSegments().get(1));
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "Get note id error :" + e.toString());
+            throw new ActionFailureException("create note failed");
+        }
+        mInsertIndex = -1;
+        mIsCreate = false;
     }
 
     public long getId() {
         return mDataId;
     }
+
+    boolean isTextData() {
+        return DataConstants.NOTE.equals(mDataMimeType);
+    }
+
+    String getTextContent() {
+        return mDataContent;
+    }
 }
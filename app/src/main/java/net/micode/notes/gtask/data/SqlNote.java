@@ -17,6 +17,8 @@
 package net.micode.notes.gtask.data;
 
 import android.appwidget.AppWidgetManager;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
@@ -122,6 +124,9 @@ public class SqlNote {
 
     private ArrayList<SqlData> mDataList;
 
+    // index of the queued insert in a SqlBatch, -1 if there is none
+    private int mInsertIndex = -1;
+
     public SqlNote(Context context) {
         mContext = context;
         mContentResolver = context.getContentResolver();
@@ -440,7 +445,13 @@ public class SqlNote {
         return mType == Notes.TYPE_NOTE;
     }
 
+    /**
+     * Writes the changes and keeps the in-memory state as written instead of
+     * reading the note back. Only if a version-validated update did not apply,
+     * because the note was changed meanwhile, the state is reloaded.
+     */
     public void commit(boolean validateVersion) {
+        boolean stale = false;
         if (mIsCreate) {
             if (mId == INVALID_ID && mDiffNoteValues.containsKey(NoteColumns.ID)) {
                 mDiffNoteValues.remove(NoteColumns.ID);
@@ -484,22 +495,112 @@ public class SqlNote {
                 }
                 if (result == 0) {
                     Log.w(TAG, "there is no update. maybe user updates note when syncing");
+                    stale = true;
                 }
             }
 
             if (mType == Notes.TYPE_NOTE) {
                 for (SqlData sqlData : mDataList) {
-                    sqlData.commit(mId, validateVersion, mVersion);
+                    if (!sqlData.commit(mId, validateVersion, mVersion)) {
+                        stale = true;
+                    }
                 }
             }
         }
 
-        // refresh local info
-        loadFromCursor(mId);
-        if (mType == Notes.TYPE_NOTE)
-            loadDataContent();
+        if (stale) {
+            // refresh local info
+            loadFromCursor(mId);
+            if (mType == Notes.TYPE_NOTE)
+                loadDataContent();
+        } else if (mType == Notes.TYPE_NOTE) {
+            // the data triggers copy the text of the note into its snippet
+            for (SqlData sqlData : mDataList) {
+                if (sqlData.isTextData()) {
+                    mSnippet = sqlData.getTextContent();
+                }
+            }
+        }
 
         mDiffNoteValues.clear();
         mIsCreate = false;
     }
+
+    /**
+     * Queues the changes in the batch instead of writing them at once. The
+     * in-memory state is kept as it is; a created note gets its id when the
+     * batch is applied and {@link #getContent()} is only usable after that.
+     */
+    public void commit(boolean validateVersion, SqlBatch batch) {
+        if (mIsCreate) {
+            if (mInsertIndex >= 0) {
+                throw new IllegalStateException("Note is already queued for creating");
+            }
+            if (mId == INVALID_ID && mDiffNoteValues.containsKey(NoteColumns.ID)) {
+                mDiffNoteValues.remove(NoteColumns.ID);
+            }
+            if (mDiffNoteValues.containsKey(NoteColumns.ID)) {
+                batch.claimNoteId(mId);
+            }
+
+            mInsertIndex = batch.add(ContentProviderOperation.newInsert(Notes.CONTENT_NOTE_URI)
+                    .withValues(mDiffNoteValues).build());
+
+            if (mType == Notes.TYPE_NOTE) {
+                for (SqlData sqlData : mDataList) {
+                    sqlData.commit(0, mInsertIndex, false, -1, batch);
+                }
+            }
+        } else {
+            if (mId <= 0 && mId != Notes.ID_ROOT_FOLDER && mId != Notes.ID_CALL_RECORD_FOLDER) {
+                Log.e(TAG, "No such note");
+                throw new IllegalStateException("Try to update note with invalid id");
+            }
+            if (mDiffNoteValues.size() > 0) {
+                mVersion ++;
+                ContentProviderOperation.Builder builder = ContentProviderOperation
+                        .newUpdate(Notes.CONTENT_NOTE_URI).withValues(mDiffNoteValues);
+                if (!validateVersion) {
+                    builder.withSelection("(" + NoteColumns.ID + "=?)", new String[] {
+                        String.valueOf(mId)
+                    });
+                } else {
+                    builder.withSelection("(" + NoteColumns.ID + "=?) AND ("
+                            + NoteColumns.VERSION + "<=?)", new String[] {
+                            String.valueOf(mId), String.valueOf(mVersion)
+                    });
+                }
+                batch.add(builder.build());
+            }
+
+            if (mType == Notes.TYPE_NOTE) {
+                for (SqlData sqlData : mDataList) {
+                    sqlData.commit(mId, -1, validateVersion, mVersion, batch);
+                }
+            }
+        }
+
+        // new notes and new data learn their ids when the batch is applied
+        batch.addPendingNote(this);
+        mDiffNoteValues.clear();
+    }
+
+    void onBatchApplied(ContentProviderResult[] results) {
+        if (mInsertIndex >= 0) {
+            try {
+                mId = Long.valueOf(results[mInsertIndex].uri.getPathSegments().get(1));
+            } catch (NumberFormatException e) {
+                Log.e(TAG, "Get note id error :" + e.toString());
+                throw new ActionFailureException("create note failed");
+            }
+            if (mId == 0) {
+                throw new IllegalStateException("Create thread id failed");
+            }
+            mInsertIndex = -1;
+            mIsCreate = false;
+        }
+        for (SqlData sqlData : mDataList) {
+            sqlData.onBatchApplied(results);
+        }
+    }
 }
@@ -89,7 +89,9 @@ public class Task extends Node {
             // list_id
             js.put(GTaskStringUtils.GTASK_JSON_LIST_ID, mParent.getGid());
 
-            // prior_sibling_id
+            // prior_sibling_id, a sibling queued in the same batch has no gid
+            // yet and is left out as put() drops null values; GTaskClient
+            // moves the task behind it afterwards
             if (mPriorSibling != null) {
                 js.put(GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID, mPriorSibling.getGid());
             }
@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.exception;
+
+/**
+ * The server refused a request as a whole, e.g. because it was too large,
+ * before applying any of its actions
+ */
+public class BatchRejectedException extends ActionFailureException {
+    private static final long serialVersionUID = -3170265513380154851L;
+
+    public BatchRejectedException() {
+        super();
+    }
+
+    public BatchRejectedException(String paramString) {
+        super(paramString);
+    }
+
+    public BatchRejectedException(String paramString, Throwable paramThrowable) {
+        super(paramString, paramThrowable);
+    }
+}
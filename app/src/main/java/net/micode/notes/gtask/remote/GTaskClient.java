@@ -28,37 +28,22 @@ import net.micode.notes.gtask.data.Node;
 import net.micode.notes.gtask.data.Task;
 import net.micode.notes.gtask.data.TaskList;
 import net.micode.notes.gtask.exception.ActionFailureException;
+import net.micode.notes.gtask.exception.BatchRejectedException;
 import net.micode.notes.gtask.exception.NetworkFailureException;
 import net.micode.notes.tool.GTaskStringUtils;
 import net.micode.notes.ui.NotesPreferenceActivity;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.cookie.Cookie;
-import org.apache.http.impl.client.BasicCookieStore;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.message.BasicNameValuePair;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpParams;
-import org.apache.http.params.HttpProtocolParams;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.Inflater;
-import java.util.zip.InflaterInputStream;
 
 
 public class GTaskClient {
@@ -70,9 +55,55 @@ public class GTaskClient {
 
     private static final String GTASK_POST_URL = "https://mail.google.com/tasks/r/ig";
 
+    private static final int DEFAULT_MAX_CONNECTIONS = 4;
+
+    // limits of one multi-action request, adapted to what the server accepts
+    private static final int INITIAL_BATCH_BYTES = 16 * 1024;
+
+    private static final int MIN_BATCH_BYTES = 2 * 1024;
+
+    private static final int MAX_BATCH_BYTES = 256 * 1024;
+
+    private static final int INITIAL_BATCH_ACTIONS = 20;
+
+    private static final int MAX_BATCH_ACTIONS = 200;
+
+    private static final int HTTP_BAD_REQUEST = 400;
+
+    private static final int HTTP_ENTITY_TOO_LARGE = 413;
+
+    private static class PendingAction {
+        final JSONObject mAction;
+
+        final Node mCreated;
+
+        final GidCallback mCallback;
+
+        // the created task still has to be moved behind its prior sibling
+        final boolean mReorder;
+
+        final int mBytes;
+
+        PendingAction(JSONObject action, Node created, GidCallback callback, boolean reorder,
+                int bytes) {
+            mAction = action;
+            mCreated = created;
+            mCallback = callback;
+            mReorder = reorder;
+            mBytes = bytes;
+        }
+    }
+
+    /**
+     * Told the gid of a queued create once the batch carrying it was sent
+     */
+    public interface GidCallback {
+        void onGidAssigned(Node node) throws NetworkFailureException;
+    }
+
     private static GTaskClient mInstance = null;
 
-    private DefaultHttpClient mHttpClient;
+    private GTaskTransport mTransport;
 
     private String mGetUrl;
 
@@ -88,10 +119,19 @@ public class GTaskClient {
 
     private Account mAccount;
 
-    private JSONArray mUpdateArray;
+    private ArrayList<PendingAction> mPendingActions;
+
+    private int mPendingBytes;
+
+    private int mBatchBytes;
+
+    private int mBatchActions;
+
+    private int mMaxConnections;
 
-    private GTaskClient() {
-        mHttpClient = null;
+    // package-private so tests can work on a fresh client
+    GTaskClient() {
+        mTransport = new HttpClientTransport();
         mGetUrl = GTASK_GET_URL;
         mPostUrl = GTASK_POST_URL;
         mClientVersion = -1;
@@ -99,7 +139,11 @@ public class GTaskClient {
         mLastLoginTime = 0;
         mActionId = 1;
         mAccount = null;
-        mUpdateArray = null;
+        mPendingActions = new ArrayList<PendingAction>();
+        mPendingBytes = 0;
+        mBatchBytes = INITIAL_BATCH_BYTES;
+        mBatchActions = INITIAL_BATCH_ACTIONS;
+        mMaxConnections = DEFAULT_MAX_CONNECTIONS;
     }
 
     public static synchronized GTaskClient getInstance() {
@@ -226,37 +270,26 @@ public class GTaskClient {
     }
 
     private boolean loginGtask(String authToken) {
-        int timeoutConnection = 10000;
-        int timeoutSocket = 15000;
-        HttpParams httpParameters = new BasicHttpParams();
-        HttpConnectionParams.setConnectionTimeout(httpParameters, timeoutConnection);
-        HttpConnectionParams.setSoTimeout(httpParameters, timeoutSocket);
-        mHttpClient = new DefaultHttpClient(httpParameters);
-        BasicCookieStore localBasicCookieStore = new BasicCookieStore();
-        mHttpClient.setCookieStore(localBasicCookieStore);
-        HttpProtocolParams.setUseExpectContinue(mHttpClient.getParams(), false);
+        // every login starts a fresh session with its own cookies
+        mTransport.open(mMaxConnections);
 
         // login gtask
         try {
             String loginUrl = mGetUrl + "?auth=" + authToken;
-            HttpGet httpGet = new HttpGet(loginUrl);
-            HttpResponse response = null;
-            response = mHttpClient.execute(httpGet);
+            String resString;
+            GTaskTransport.Response response = mTransport.get(loginUrl);
+            try {
+                resString = getResponseContent(response);
+            } finally {
+                response.close();
+            }
 
             // get the cookie now
-            List<Cookie> cookies = mHttpClient.getCookieStore().getCookies();
-            boolean hasAuthCookie = false;
-            for (Cookie cookie : cookies) {
-                if (cookie.getName().contains("GTL")) {
-                    hasAuthCookie = true;
-                }
-            }
-            if (!hasAuthCookie) {
+            if (!mTransport.hasCookie("GTL")) {
                 Log.w(TAG, "it seems that there is no auth cookie");
             }
 
             // get the client version
-            String resString = getResponseContent(response.getEntity());
             String jsBegin = "_setup(";
             String jsEnd = ")}</script>";
             int begin = resString.indexOf(jsBegin);
@@ -280,46 +313,84 @@ public class GTaskClient {
         return true;
     }
 
-    private int getActionId() {
+    /**
+     * Logs in to the given transport without an account, e.g. to a local
+     * stand-in server in tests
+     */
+    synchronized boolean login(GTaskTransport transport) {
+        setTransport(transport);
+        mLoggedin = loginGtask("");
+        if (mLoggedin) {
+            mLastLoginTime = System.currentTimeMillis();
+        }
+        return mLoggedin;
+    }
+
+    /**
+     * Sets how many requests may run at the same time, takes effect on the
+     * next login
+     */
+    public synchronized void setMaxConnections(int maxConnections) {
+        mMaxConnections = Math.max(1, maxConnections);
+    }
+
+    private synchronized int getActionId() {
         return mActionId++;
     }
 
-    private HttpPost createHttpPost() {
-        HttpPost httpPost = new HttpPost(mPostUrl);
-        httpPost.setHeader("Content-Type", "application/x-www-form-urlencoded;charset=utf-8");
-        httpPost.setHeader("AT", "1");
-        return httpPost;
+    /**
+     * Installs the transport used for all requests, e.g. a local stand-in
+     * server. Takes effect on the next login.
+     */
+    public synchronized void setTransport(GTaskTransport transport) {
+        if (mTransport != null) {
+            mTransport.close();
+        }
+        mTransport = transport;
+        mLoggedin = false;
+    }
+
+    /**
+     * Fails with an IOException, reported as a network failure, unless the
+     * server answered with a 2xx status, e.g. on an expired login or an
+     * overloaded server
+     */
+    private static void checkStatus(GTaskTransport.Response response) throws IOException {
+        int status = response.getStatusCode();
+        if (status < 200 || status >= 300) {
+            throw new HttpStatusException(status);
+        }
     }
 
-    private String getResponseContent(HttpEntity entity) throws IOException {
-        String contentEncoding = null;
-        if (entity.getContentEncoding() != null) {
-            contentEncoding = entity.getContentEncoding().getValue();
-            Log.d(TAG, "encoding: " + contentEncoding);
+    private static class HttpStatusException extends IOException {
+        private static final long serialVersionUID = 6001563386930185362L;
+
+        final int mStatus;
+
+        HttpStatusException(int status) {
+            super("unexpected http status " + status);
+            mStatus = status;
         }
 
-        InputStream input = entity.getContent();
-        if (contentEncoding != null && contentEncoding.equalsIgnoreCase("gzip")) {
-            input = new GZIPInputStream(entity.getContent());
-        } else if (contentEncoding != null && contentEncoding.equalsIgnoreCase("deflate")) {
-            Inflater inflater = new Inflater(true);
-            input = new InflaterInputStream(entity.getContent(), inflater);
+        // the request was refused as a whole before any action was applied
+        boolean isRejected() {
+            return mStatus == HTTP_BAD_REQUEST || mStatus == HTTP_ENTITY_TOO_LARGE;
         }
+    }
 
+    private String getResponseContent(GTaskTransport.Response response) throws IOException {
+        checkStatus(response);
+        Reader reader = response.getReader();
         try {
-            InputStreamReader isr = new InputStreamReader(input);
-            BufferedReader br = new BufferedReader(isr);
             StringBuilder sb = new StringBuilder();
-
-            while (true) {
-                String buff = br.readLine();
-                if (buff == null) {
-                    return sb.toString();
-                }
-                sb = sb.append(buff);
+            char[] buffer = new char[8192];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                sb.append(buffer, 0, read);
             }
+            return sb.toString();
         } finally {
-            input.close();
+            reader.close();
         }
     }
 
@@ -329,22 +400,20 @@ public class GTaskClient {
             throw new ActionFailureException("not logged in");
         }
 
-        HttpPost httpPost = createHttpPost();
         try {
-            LinkedList<BasicNameValuePair> list = new LinkedList<BasicNameValuePair>();
-            list.add(new BasicNameValuePair("r", js.toString()));
-            UrlEncodedFormEntity entity = new UrlEncodedFormEntity(list, "UTF-8");
-            httpPost.setEntity(entity);
-
             // execute the post
-            HttpResponse response = mHttpClient.execute(httpPost);
-            String jsString = getResponseContent(response.getEntity());
-            return new JSONObject(jsString);
-
-        } catch (ClientProtocolException e) {
+            GTaskTransport.Response response = mTransport.postForm(mPostUrl, "r", js.toString());
+            try {
+                return new JSONObject(getResponseContent(response));
+            } finally {
+                response.close();
+            }
+        } catch (HttpStatusException e) {
             Log.e(TAG, e.toString());
-            e.printStackTrace();
-            throw new NetworkFailureException("postRequest failed");
+            if (e.isRejected()) {
+                throw new BatchRejectedException("request rejected: " + e.getMessage());
+            }
+            throw new NetworkFailureException("postRequest failed", e);
         } catch (IOException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
@@ -360,99 +429,76 @@ public class GTaskClient {
         }
     }
 
-    public void createTask(Task task) throws NetworkFailureException {
-        commitUpdate();
-        try {
-            JSONObject jsPost = new JSONObject();
-            JSONArray actionList = new JSONArray();
-
-            // action_list
-            actionList.put(task.getCreateAction(getActionId()));
-            jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList);
-
-            // client_version
-            jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
-
-            // post
-            JSONObject jsResponse = postRequest(jsPost);
-            JSONObject jsResult = (JSONObject) jsResponse.getJSONArray(
-                    GTaskStringUtils.GTASK_JSON_RESULTS).get(0);
-            task.setGid(jsResult.getString(GTaskStringUtils.GTASK_JSON_NEW_ID));
-
-        } catch (JSONException e) {
-            Log.e(TAG, e.toString());
-            e.printStackTrace();
-            throw new ActionFailureException("create task: handing jsonobject failed");
+    /**
+     * Same as postRequest, but the response is parsed while it is read
+     */
+    private TaskListResponseParser.Result postTaskListRequest(JSONObject js)
+            throws NetworkFailureException {
+        if (!mLoggedin) {
+            Log.e(TAG, "please login first");
+            throw new ActionFailureException("not logged in");
         }
-    }
 
-    public void createTaskList(TaskList tasklist) throws NetworkFailureException {
-        commitUpdate();
         try {
-            JSONObject jsPost = new JSONObject();
-            JSONArray actionList = new JSONArray();
-
-            // action_list
-            actionList.put(tasklist.getCreateAction(getActionId()));
-            jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList);
-
-            // client version
-            jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
-
-            // post
-            JSONObject jsResponse = postRequest(jsPost);
-            JSONObject jsResult = (JSONObject) jsResponse.getJSONArray(
-                    GTaskStringUtils.GTASK_JSON_RESULTS).get(0);
-            tasklist.setGid(jsResult.getString(GTaskStringUtils.GTASK_JSON_NEW_ID));
-
+            GTaskTransport.Response response = mTransport.postForm(mPostUrl, "r", js.toString());
+            try {
+                checkStatus(response);
+                Reader reader = response.getReader();
+                try {
+                    return TaskListResponseParser.parse(reader);
+                } finally {
+                    reader.close();
+                }
+            } finally {
+                response.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, e.toString());
+            e.printStackTrace();
+            throw new NetworkFailureException("postRequest failed");
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
-            throw new ActionFailureException("create tasklist: handing jsonobject failed");
+            throw new ActionFailureException("unable to parse task list response");
         }
     }
 
-    public void commitUpdate() throws NetworkFailureException {
-        if (mUpdateArray != null) {
-            try {
-                JSONObject jsPost = new JSONObject();
-
-                // action_list
-                jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, mUpdateArray);
+    /**
+     * Queues the create of a task. Its parent list must already have a gid.
+     * A prior sibling still waiting for its own gid can not be named in the
+     * create, so the task is moved behind it once both creates were sent.
+     * callback, if not null, is called once the task got its gid.
+     */
+    public synchronized void createTask(Task task, GidCallback callback)
+            throws NetworkFailureException {
+        Task prior = task.getPriorSibling();
+        enqueueAction(task.getCreateAction(getActionId()), task, callback,
+                prior != null && prior.getGid() == null);
+    }
 
-                // client_version
-                jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
+    /**
+     * Queues the create of a task list, callback works as for createTask
+     */
+    public synchronized void createTaskList(TaskList tasklist, GidCallback callback)
+            throws NetworkFailureException {
+        enqueueAction(tasklist.getCreateAction(getActionId()), tasklist, callback);
+    }
 
-                postRequest(jsPost);
-                mUpdateArray = null;
-            } catch (JSONException e) {
-                Log.e(TAG, e.toString());
-                e.printStackTrace();
-                throw new ActionFailureException("commit update: handing jsonobject failed");
-            }
+    public synchronized void commitUpdate() throws NetworkFailureException {
+        while (!mPendingActions.isEmpty()) {
+            postBatch();
         }
     }
 
-    public void addUpdateNode(Node node) throws NetworkFailureException {
+    public synchronized void addUpdateNode(Node node) throws NetworkFailureException {
         if (node != null) {
-            // too many update items may result in an error
-            // set max to 10 items
-            if (mUpdateArray != null && mUpdateArray.length() > 10) {
-                commitUpdate();
-            }
-
-            if (mUpdateArray == null)
-                mUpdateArray = new JSONArray();
-            mUpdateArray.put(node.getUpdateAction(getActionId()));
+            enqueueAction(node.getUpdateAction(getActionId()), null, null);
         }
     }
 
-    public void moveTask(Task task, TaskList preParent, TaskList curParent)
+    public synchronized void moveTask(Task task, TaskList preParent, TaskList curParent)
             throws NetworkFailureException {
-        commitUpdate();
         try {
-            JSONObject jsPost = new JSONObject();
-            JSONArray actionList = new JSONArray();
             JSONObject action = new JSONObject();
 
             // action_list
@@ -463,7 +509,8 @@ public class GTaskClient {
             if (preParent == curParent && task.getPriorSibling() != null) {
                 // put prioring_sibing_id only if moving within the tasklist and
                 // it is not the first one
-                action.put(GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID, task.getPriorSibling());
+                action.put(GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID,
+                        task.getPriorSibling().getGid());
             }
             action.put(GTaskStringUtils.GTASK_JSON_SOURCE_LIST, preParent.getGid());
             action.put(GTaskStringUtils.GTASK_JSON_DEST_PARENT, curParent.getGid());
@@ -471,14 +518,7 @@ public class GTaskClient {
                 // put the dest_list only if moving between tasklists
                 action.put(GTaskStringUtils.GTASK_JSON_DEST_LIST, curParent.getGid());
             }
-            actionList.put(action);
-            jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList);
-
-            // client_version
-            jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
-
-            postRequest(jsPost);
-
+            enqueueAction(action, null, null);
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
@@ -486,29 +526,201 @@ public class GTaskClient {
         }
     }
 
-    public void deleteNode(Node node) throws NetworkFailureException {
-        commitUpdate();
+    public synchronized void deleteNode(Node node) throws NetworkFailureException {
+        node.setDeleted(true);
+        enqueueAction(node.getUpdateAction(getActionId()), null, null);
+    }
+
+    /**
+     * Queues an action for the next batch, sending the current batch first
+     * if the action would not fit into it. created is the node whose gid is
+     * taken from the new_id of the action's result.
+     */
+    private void enqueueAction(JSONObject action, Node created, GidCallback callback)
+            throws NetworkFailureException {
+        enqueueAction(action, created, callback, false);
+    }
+
+    private void enqueueAction(JSONObject action, Node created, GidCallback callback,
+            boolean reorder) throws NetworkFailureException {
+        // the form encoding adds a bit more, the utf-8 size is close enough
+        int bytes;
+        try {
+            bytes = action.toString().getBytes("UTF-8").length;
+        } catch (UnsupportedEncodingException e) {
+            throw new ActionFailureException("utf-8 not supported");
+        }
+        // callbacks of the sent batch may queue further actions
+        while (!mPendingActions.isEmpty()
+                && (mPendingBytes + bytes > mBatchBytes
+                        || mPendingActions.size() >= mBatchActions)) {
+            postBatch();
+        }
+        mPendingActions.add(new PendingAction(action, created, callback, reorder, bytes));
+        mPendingBytes += bytes;
+    }
+
+    /**
+     * Sends as many pending actions as the current batch limits allow. The
+     * limits grow after every accepted batch. A batch the server refused as
+     * a whole goes back to the head of the queue and is sent again in smaller
+     * pieces, only a single refused action fails the update. Any other
+     * failure may have left the batch applied in part, so it is never sent
+     * again; the sync fails and the next one reconciles both sides.
+     */
+    private void postBatch() throws NetworkFailureException {
+        ArrayList<PendingAction> batch = new ArrayList<PendingAction>();
+        int bytes = 0;
+        JSONObject jsResponse;
+        while (true) {
+            while (!mPendingActions.isEmpty() && batch.size() < mBatchActions
+                    && (batch.isEmpty() || bytes + mPendingActions.get(0).mBytes <= mBatchBytes)) {
+                PendingAction pending = mPendingActions.remove(0);
+                bytes += pending.mBytes;
+                batch.add(pending);
+            }
+            mPendingBytes -= bytes;
+
+            JSONObject jsPost = buildBatch(batch);
+            try {
+                jsResponse = postRequest(jsPost);
+                break;
+            } catch (BatchRejectedException e) {
+                if (!requeueBatch(batch, bytes)) {
+                    throw e;
+                }
+            }
+            batch.clear();
+            bytes = 0;
+        }
+
+        growBatch();
+        mapCreateResults(batch, jsResponse.optJSONArray(GTaskStringUtils.GTASK_JSON_RESULTS));
+
+        // the moves and callbacks queue more actions, so they run after the batch is done
+        for (PendingAction pending : batch) {
+            if (pending.mReorder) {
+                reorderCreated((Task) pending.mCreated);
+            }
+        }
+        for (PendingAction pending : batch) {
+            if (pending.mCreated != null && pending.mCallback != null) {
+                pending.mCallback.onGidAssigned(pending.mCreated);
+            }
+        }
+    }
+
+    // the prior sibling is created in the same or an earlier batch, so it
+    // has a gid by now
+    private void reorderCreated(Task task) throws NetworkFailureException {
+        Task prior = task.getPriorSibling();
+        TaskList parent = task.getParent();
+        if (prior == null || prior.getGid() == null || parent == null) {
+            Log.w(TAG, "can not place created task " + task.getGid() + " behind its sibling");
+            return;
+        }
+        moveTask(task, parent, parent);
+    }
+
+    private JSONObject buildBatch(List<PendingAction> batch) {
         try {
             JSONObject jsPost = new JSONObject();
             JSONArray actionList = new JSONArray();
+            for (PendingAction pending : batch) {
+                actionList.put(pending.mAction);
+            }
 
             // action_list
-            node.setDeleted(true);
-            actionList.put(node.getUpdateAction(getActionId()));
             jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList);
 
             // client_version
             jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
-
-            postRequest(jsPost);
-            mUpdateArray = null;
+            return jsPost;
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
-            throw new ActionFailureException("delete node: handing jsonobject failed");
+            throw new ActionFailureException("commit update: handing jsonobject failed");
+        }
+    }
+
+    /**
+     * Puts a refused batch back in front of the queue in its original order
+     * and shrinks the limits below its size. Returns false if the batch was a
+     * single action, which can not be split any further.
+     */
+    private boolean requeueBatch(List<PendingAction> batch, int bytes) {
+        mPendingActions.addAll(0, batch);
+        mPendingBytes += bytes;
+        if (batch.size() == 1) {
+            return false;
+        }
+        shrinkBatch(batch.size(), bytes);
+        return true;
+    }
+
+    /**
+     * Gives every created node the new_id of its result. Results are matched
+     * by action_id, or by order if the server leaves it out.
+     */
+    private void mapCreateResults(List<PendingAction> batch, JSONArray results) {
+        mapNewIds(batch, results);
+        for (PendingAction pending : batch) {
+            if (pending.mCreated != null && pending.mCreated.getGid() == null) {
+                throw new ActionFailureException("create: no new id returned");
+            }
         }
     }
 
+    private void mapNewIds(List<PendingAction> batch, JSONArray results) {
+        if (results == null) {
+            return;
+        }
+
+        HashMap<Integer, Node> createdById = new HashMap<Integer, Node>();
+        LinkedList<Node> createdInOrder = new LinkedList<Node>();
+        for (PendingAction pending : batch) {
+            if (pending.mCreated != null) {
+                createdById.put(pending.mAction.optInt(GTaskStringUtils.GTASK_JSON_ACTION_ID),
+                        pending.mCreated);
+                createdInOrder.add(pending.mCreated);
+            }
+        }
+        if (createdInOrder.isEmpty()) {
+            return;
+        }
+
+        for (int i = 0; i < results.length(); i++) {
+            JSONObject jsResult = results.optJSONObject(i);
+            if (jsResult == null || !jsResult.has(GTaskStringUtils.GTASK_JSON_NEW_ID)) {
+                continue;
+            }
+            Node node = null;
+            if (jsResult.has(GTaskStringUtils.GTASK_JSON_ACTION_ID)) {
+                node = createdById.get(jsResult.optInt(GTaskStringUtils.GTASK_JSON_ACTION_ID));
+            }
+            if (node == null && !createdInOrder.isEmpty()) {
+                node = createdInOrder.getFirst();
+            }
+            if (node != null) {
+                node.setGid(jsResult.optString(GTaskStringUtils.GTASK_JSON_NEW_ID));
+                createdInOrder.remove(node);
+            }
+        }
+    }
+
+    private void growBatch() {
+        mBatchBytes = Math.min(MAX_BATCH_BYTES, mBatchBytes + mBatchBytes / 4);
+        mBatchActions = Math.min(MAX_BATCH_ACTIONS, mBatchActions + 5);
+    }
+
+    // the next batch is at most half of the rejected one, so retries always split it
+    private void shrinkBatch(int actions, int bytes) {
+        mBatchBytes = Math.max(MIN_BATCH_BYTES, Math.min(mBatchBytes, bytes) / 2);
+        mBatchActions = Math.max(1, Math.min(mBatchActions, actions) / 2);
+        Log.w(TAG, "batch rejected, limits are now " + mBatchActions + " actions / "
+                + mBatchBytes + " bytes");
+    }
+
     public JSONArray getTaskLists() throws NetworkFailureException {
         if (!mLoggedin) {
             Log.e(TAG, "please login first");
@@ -516,12 +728,14 @@ public class GTaskClient {
         }
 
         try {
-            HttpGet httpGet = new HttpGet(mGetUrl);
-            HttpResponse response = null;
-            response = mHttpClient.execute(httpGet);
-
-            // get the task list
-            String resString = getResponseContent(response.getEntity());
+            String resString;
+            GTaskTransport.Response response = mTransport.get(mGetUrl);
+            try {
+                // get the task list
+                resString = getResponseContent(response);
+            } finally {
+                response.close();
+            }
             String jsBegin = "_setup(";
             String jsEnd = ")}</script>";
             int begin = resString.indexOf(jsBegin);
@@ -532,10 +746,6 @@ public class GTaskClient {
             }
             JSONObject js = new JSONObject(jsString);
             return js.getJSONObject("t").getJSONArray(GTaskStringUtils.GTASK_JSON_LISTS);
-        } catch (ClientProtocolException e) {
-            Log.e(TAG, e.toString());
-            e.printStackTrace();
-            throw new NetworkFailureException("gettasklists: httpget failed");
         } catch (IOException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
@@ -548,6 +758,16 @@ public class GTaskClient {
     }
 
     public JSONArray getTaskList(String listGid) throws NetworkFailureException {
+        return new JSONArray(getTaskListSince(listGid, 0).getTasks());
+    }
+
+    /**
+     * Gets the nodes of the list changed after the given sync point,
+     * including the deleted ones. A sync point of 0 downloads the whole
+     * list. The response also carries the latest sync point of the list.
+     */
+    public TaskListResponseParser.Result getTaskListSince(String listGid, long syncPoint)
+            throws NetworkFailureException {
         commitUpdate();
         try {
             JSONObject jsPost = new JSONObject();
@@ -559,15 +779,24 @@ public class GTaskClient {
                     GTaskStringUtils.GTASK_JSON_ACTION_TYPE_GETALL);
             action.put(GTaskStringUtils.GTASK_JSON_ACTION_ID, getActionId());
             action.put(GTaskStringUtils.GTASK_JSON_LIST_ID, listGid);
-            action.put(GTaskStringUtils.GTASK_JSON_GET_DELETED, false);
+            if (syncPoint > 0) {
+                // deleted nodes are needed to drop them from the local snapshot
+                action.put(GTaskStringUtils.GTASK_JSON_GET_DELETED, true);
+                action.put(GTaskStringUtils.GTASK_JSON_LATEST_SYNC_POINT, syncPoint);
+            } else {
+                action.put(GTaskStringUtils.GTASK_JSON_GET_DELETED, false);
+            }
             actionList.put(action);
             jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList);
 
             // client_version
             jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
 
-            JSONObject jsResponse = postRequest(jsPost);
-            return jsResponse.getJSONArray(GTaskStringUtils.GTASK_JSON_TASKS);
+            TaskListResponseParser.Result result = postTaskListRequest(jsPost);
+            if (!result.hasTasks()) {
+                throw new ActionFailureException("get task list: no tasks in response");
+            }
+            return result;
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
@@ -579,7 +808,8 @@ public class GTaskClient {
         return mAccount;
     }
 
-    public void resetUpdateArray() {
-        mUpdateArray = null;
+    public synchronized void resetUpdateArray() {
+        mPendingActions.clear();
+        mPendingBytes = 0;
     }
 }
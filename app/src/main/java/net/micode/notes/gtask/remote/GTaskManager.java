@@ -30,6 +30,7 @@ import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.NoteColumns;
 import net.micode.notes.gtask.data.MetaData;
 import net.micode.notes.gtask.data.Node;
+import net.micode.notes.gtask.data.SqlBatch;
 import net.micode.notes.gtask.data.SqlNote;
 import net.micode.notes.gtask.data.Task;
 import net.micode.notes.gtask.data.TaskList;
@@ -42,10 +43,18 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 public class GTaskManager {
@@ -61,6 +70,8 @@ public class GTaskManager {
 
     public static final int STATE_SYNC_CANCELLED = 4;
 
+    public static final int DEFAULT_FETCH_CONCURRENCY = 4;
+
     private static GTaskManager mInstance = null;
 
     private Activity mActivity;
@@ -87,6 +98,23 @@ public class GTaskManager {
 
     private HashMap<Long, String> mNidToGid;
 
+    private SqlBatch mLocalBatch;
+
+    // local nodes created in mLocalBatch, mapped once their ids are known
+    private LinkedHashMap<String, SqlNote> mLocalAddedNotes;
+
+    // notes whose remote meta is refreshed after mLocalBatch is applied
+    private LinkedHashMap<String, SqlNote> mLocalMetaNotes;
+
+    // task lists queued for creation by name, they have no gid yet
+    private HashMap<String, TaskList> mCreatingLists;
+
+    private GTaskSyncCheckpoint mCheckpoint;
+
+    private boolean mDeltaSyncEnabled;
+
+    private int mFetchConcurrency;
+
     private GTaskManager() {
         mSyncing = false;
         mCancelled = false;
@@ -97,6 +125,13 @@ public class GTaskManager {
         mLocalDeleteIdMap = new HashSet<Long>();
         mGidToNid = new HashMap<String, Long>();
         mNidToGid = new HashMap<Long, String>();
+        mLocalBatch = new SqlBatch();
+        mLocalAddedNotes = new LinkedHashMap<String, SqlNote>();
+        mLocalMetaNotes = new LinkedHashMap<String, SqlNote>();
+        mCreatingLists = new HashMap<String, TaskList>();
+        mCheckpoint = null;
+        mDeltaSyncEnabled = true;
+        mFetchConcurrency = DEFAULT_FETCH_CONCURRENCY;
     }
 
     public static synchronized GTaskManager getInstance() {
@@ -111,6 +146,17 @@ public class GTaskManager {
         mActivity = activity;
     }
 
+    public synchronized void setFetchConcurrency(int concurrency) {
+        // number of task lists downloaded at the same time, 1 means serially
+        mFetchConcurrency = Math.max(1, concurrency);
+        GTaskClient.getInstance().setMaxConnections(mFetchConcurrency);
+    }
+
+    public synchronized void setDeltaSyncEnabled(boolean enabled) {
+        // when disabled every list is downloaded completely on each sync
+        mDeltaSyncEnabled = enabled;
+    }
+
     public int sync(Context context, GTaskASyncTask asyncTask) {
         if (mSyncing) {
             Log.d(TAG, "Sync is in progress");
@@ -137,6 +183,7 @@ public class GTaskManager {
                     throw new NetworkFailureException("login google task failed");
                 }
             }
+            mCheckpoint = GTaskSyncCheckpoint.load(mContext, client.getSyncAccount().name);
 
             // get the task list from google
             asyncTask.publishProgess(mContext.getString(R.string.sync_progress_init_list));
@@ -145,6 +192,15 @@ public class GTaskManager {
             // do content sync work
             asyncTask.publishProgess(mContext.getString(R.string.sync_progress_syncing));
             syncContent();
+
+            // only a completed sync may move the sync points forward
+            if (!mCancelled) {
+                if (mDeltaSyncEnabled) {
+                    mCheckpoint.save();
+                } else {
+                    mCheckpoint.clear();
+                }
+            }
         } catch (NetworkFailureException e) {
             Log.e(TAG, e.toString());
             return STATE_NETWORK_ERROR;
@@ -156,12 +212,24 @@ public class GTaskManager {
             e.printStackTrace();
             return STATE_INTERNAL_ERROR;
         } finally {
+            // keep what is already known remotely, e.g. the gids of created tasks
+            if (!mLocalBatch.isEmpty()) {
+                try {
+                    mLocalBatch.apply(mContentResolver);
+                } catch (ActionFailureException e) {
+                    Log.e(TAG, e.toString());
+                }
+            }
+            mLocalAddedNotes.clear();
+            mLocalMetaNotes.clear();
+            mCreatingLists.clear();
             mGTaskListHashMap.clear();
             mGTaskHashMap.clear();
             mMetaHashMap.clear();
             mLocalDeleteIdMap.clear();
             mGidToNid.clear();
             mNidToGid.clear();
+            mCheckpoint = null;
             mSyncing = false;
         }
 
@@ -175,8 +243,17 @@ public class GTaskManager {
         try {
             JSONArray jsTaskLists = client.getTaskLists();
 
-            // init meta list first
-            mMetaList = null;
+            // forget the checkpoints of lists deleted on the server
+            HashSet<String> listGids = new HashSet<String>();
+            for (int i = 0; i < jsTaskLists.length(); i++) {
+                listGids.add(jsTaskLists.getJSONObject(i).getString(GTaskStringUtils.GTASK_JSON_ID));
+            }
+            mCheckpoint.retainLists(listGids);
+
+            // collect the lists to download, the meta list first
+            JSONObject jsMetaList = null;
+            LinkedHashMap<String, JSONObject> jsFolderLists =
+                    new LinkedHashMap<String, JSONObject>();
             for (int i = 0; i < jsTaskLists.length(); i++) {
                 JSONObject object = jsTaskLists.getJSONObject(i);
                 String gid = object.getString(GTaskStringUtils.GTASK_JSON_ID);
@@ -184,20 +261,36 @@ public class GTaskManager {
 
                 if (name
                         .equals(GTaskStringUtils.MIUI_FOLDER_PREFFIX + GTaskStringUtils.FOLDER_META)) {
-                    mMetaList = new TaskList();
-                    mMetaList.setContentByRemoteJSON(object);
-
-                    // load meta data
-                    JSONArray jsMetas = client.getTaskList(gid);
-                    for (int j = 0; j < jsMetas.length(); j++) {
-                        object = (JSONObject) jsMetas.getJSONObject(j);
-                        MetaData metaData = new MetaData();
-                        metaData.setContentByRemoteJSON(object);
-                        if (metaData.isWorthSaving()) {
-                            mMetaList.addChildTask(metaData);
-                            if (metaData.getGid() != null) {
-                                mMetaHashMap.put(metaData.getRelatedGid(), metaData);
-                            }
+                    jsMetaList = object;
+                } else if (name.startsWith(GTaskStringUtils.MIUI_FOLDER_PREFFIX)) {
+                    jsFolderLists.put(gid, object);
+                }
+            }
+
+            ArrayList<String> fetchGids = new ArrayList<String>();
+            if (jsMetaList != null) {
+                fetchGids.add(jsMetaList.getString(GTaskStringUtils.GTASK_JSON_ID));
+            }
+            fetchGids.addAll(jsFolderLists.keySet());
+            HashMap<String, List<JSONObject>> jsFetched = fetchTaskLists(client, fetchGids);
+            if (mCancelled) {
+                return;
+            }
+
+            // init meta list first
+            mMetaList = null;
+            if (jsMetaList != null) {
+                mMetaList = new TaskList();
+                mMetaList.setContentByRemoteJSON(jsMetaList);
+
+                // load meta data
+                for (JSONObject object : jsFetched.get(mMetaList.getGid())) {
+                    MetaData metaData = new MetaData();
+                    metaData.setContentByRemoteJSON(object);
+                    if (metaData.isWorthSaving()) {
+                        mMetaList.addChildTask(metaData);
+                        if (metaData.getGid() != null) {
+                            mMetaHashMap.put(metaData.getRelatedGid(), metaData);
                         }
                     }
                 }
@@ -208,35 +301,28 @@ public class GTaskManager {
                 mMetaList = new TaskList();
                 mMetaList.setName(GTaskStringUtils.MIUI_FOLDER_PREFFIX
                         + GTaskStringUtils.FOLDER_META);
-                GTaskClient.getInstance().createTaskList(mMetaList);
+                // the meta tasks need the gid of their list
+                GTaskClient.getInstance().createTaskList(mMetaList, null);
+                GTaskClient.getInstance().commitUpdate();
             }
 
             // init task list
-            for (int i = 0; i < jsTaskLists.length(); i++) {
-                JSONObject object = jsTaskLists.getJSONObject(i);
-                String gid = object.getString(GTaskStringUtils.GTASK_JSON_ID);
-                String name = object.getString(GTaskStringUtils.GTASK_JSON_NAME);
-
-                if (name.startsWith(GTaskStringUtils.MIUI_FOLDER_PREFFIX)
-                        && !name.equals(GTaskStringUtils.MIUI_FOLDER_PREFFIX
-                                + GTaskStringUtils.FOLDER_META)) {
-                    TaskList tasklist = new TaskList();
-                    tasklist.setContentByRemoteJSON(object);
-                    mGTaskListHashMap.put(gid, tasklist);
-                    mGTaskHashMap.put(gid, tasklist);
-
-                    // load tasks
-                    JSONArray jsTasks = client.getTaskList(gid);
-                    for (int j = 0; j < jsTasks.length(); j++) {
-                        object = (JSONObject) jsTasks.getJSONObject(j);
-                        gid = object.getString(GTaskStringUtils.GTASK_JSON_ID);
-                        Task task = new Task();
-                        task.setContentByRemoteJSON(object);
-                        if (task.isWorthSaving()) {
-                            task.setMetaInfo(mMetaHashMap.get(gid));
-                            tasklist.addChildTask(task);
-                            mGTaskHashMap.put(gid, task);
-                        }
+            for (Map.Entry<String, JSONObject> entry : jsFolderLists.entrySet()) {
+                String gid = entry.getKey();
+                TaskList tasklist = new TaskList();
+                tasklist.setContentByRemoteJSON(entry.getValue());
+                mGTaskListHashMap.put(gid, tasklist);
+                mGTaskHashMap.put(gid, tasklist);
+
+                // load tasks
+                for (JSONObject object : jsFetched.get(gid)) {
+                    gid = object.getString(GTaskStringUtils.GTASK_JSON_ID);
+                    Task task = new Task();
+                    task.setContentByRemoteJSON(object);
+                    if (task.isWorthSaving()) {
+                        task.setMetaInfo(mMetaHashMap.get(gid));
+                        tasklist.addChildTask(task);
+                        mGTaskHashMap.put(gid, task);
                     }
                 }
             }
@@ -247,6 +333,112 @@ public class GTaskManager {
         }
     }
 
+    /**
+     * Downloads the given lists with at most mFetchConcurrency requests in
+     * flight. Only the downloads run in parallel, the results are merged
+     * into the hash maps by the calling thread afterwards.
+     */
+    private HashMap<String, List<JSONObject>> fetchTaskLists(final GTaskClient client,
+            List<String> listGids) throws NetworkFailureException, JSONException {
+        HashMap<String, List<JSONObject>> result = new HashMap<String, List<JSONObject>>();
+        if (listGids.isEmpty()) {
+            return result;
+        }
+
+        // flush the pending updates once, so the fetches don't race on them
+        client.commitUpdate();
+
+        int threads = Math.min(mFetchConcurrency, listGids.size());
+        if (threads <= 1) {
+            for (String gid : listGids) {
+                if (mCancelled) {
+                    break;
+                }
+                result.put(gid, loadTaskList(client, gid));
+            }
+            return dropMovedNodes(result);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            LinkedHashMap<String, Future<List<JSONObject>>> futures =
+                    new LinkedHashMap<String, Future<List<JSONObject>>>();
+            for (final String gid : listGids) {
+                futures.put(gid, executor.submit(new Callable<List<JSONObject>>() {
+                    public List<JSONObject> call() throws Exception {
+                        return mCancelled ? null : loadTaskList(client, gid);
+                    }
+                }));
+            }
+            for (Map.Entry<String, Future<List<JSONObject>>> entry : futures.entrySet()) {
+                result.put(entry.getKey(), waitForTaskList(entry.getValue()));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return dropMovedNodes(result);
+    }
+
+    // a task moved between lists may still be in the snapshot of its old list
+    private HashMap<String, List<JSONObject>> dropMovedNodes(
+            HashMap<String, List<JSONObject>> fetched) throws JSONException {
+        if (mCancelled) {
+            return fetched;
+        }
+        mCheckpoint.dropMovedNodes();
+        for (Map.Entry<String, List<JSONObject>> entry : fetched.entrySet()) {
+            entry.setValue(mCheckpoint.getTasks(entry.getKey()));
+        }
+        return fetched;
+    }
+
+    private List<JSONObject> waitForTaskList(Future<List<JSONObject>> future)
+            throws NetworkFailureException, JSONException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ActionFailureException("fetch task list interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof NetworkFailureException) {
+                throw (NetworkFailureException) cause;
+            } else if (cause instanceof JSONException) {
+                throw (JSONException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new ActionFailureException("fetch task list failed", cause);
+        }
+    }
+
+    private List<JSONObject> loadTaskList(GTaskClient client, String listGid)
+            throws NetworkFailureException, JSONException {
+        long syncPoint = mCheckpoint.getSyncPoint(listGid);
+        if (mDeltaSyncEnabled && syncPoint > 0) {
+            try {
+                TaskListResponseParser.Result delta = client.getTaskListSince(listGid, syncPoint);
+                if (delta.getLatestSyncPoint() > 0) {
+                    List<JSONObject> merged = mCheckpoint.merge(listGid, delta.getTasks(),
+                            delta.getLatestSyncPoint());
+                    if (merged != null) {
+                        return merged;
+                    }
+                } else {
+                    Log.w(TAG, "no sync point returned for list " + listGid);
+                }
+            } catch (ActionFailureException e) {
+                Log.w(TAG, "delta download failed for list " + listGid + ": " + e.toString());
+            }
+            // the checkpoint is invalid, walk the whole list again
+            mCheckpoint.invalidate(listGid);
+        }
+
+        TaskListResponseParser.Result full = client.getTaskListSince(listGid, 0);
+        mCheckpoint.reset(listGid, full.getTasks(), full.getLatestSyncPoint());
+        return full.getTasks();
+    }
+
     private void syncContent() throws NetworkFailureException {
         int syncType;
         Cursor c = null;
@@ -338,11 +530,24 @@ public class GTaskManager {
         // one
         // clear local delete table
         if (!mCancelled) {
-            if (!DataUtils.batchDeleteNotes(mContentResolver, mLocalDeleteIdMap)) {
-                throw new ActionFailureException("failed to batch-delete local deleted notes");
+            for (long id : mLocalDeleteIdMap) {
+                if (id == Notes.ID_ROOT_FOLDER) {
+                    Log.e(TAG, "Don't delete system folder root");
+                    continue;
+                }
+                mLocalBatch.delete(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, id));
             }
         }
 
+        // send the queued creates first, their gids are written locally
+        if (!mCancelled) {
+            GTaskClient.getInstance().commitUpdate();
+        }
+
+        // write all local changes at once, even if cancelled, as the remote
+        // side may already have been changed
+        applyLocalBatch();
+
         // refresh local sync id
         if (!mCancelled) {
             GTaskClient.getInstance().commitUpdate();
@@ -472,6 +677,12 @@ public class GTaskManager {
             }
         }
 
+        // notes are synced against the gids and local ids of the folders
+        if (!mCancelled)
+            GTaskClient.getInstance().commitUpdate();
+
+        applyLocalBatch();
+
         if (!mCancelled)
             GTaskClient.getInstance().commitUpdate();
     }
@@ -548,7 +759,8 @@ public class GTaskManager {
                     JSONObject note = js.getJSONObject(GTaskStringUtils.META_HEAD_NOTE);
                     if (note.has(NoteColumns.ID)) {
                         long id = note.getLong(NoteColumns.ID);
-                        if (DataUtils.existInNoteDatabase(mContentResolver, id)) {
+                        if (DataUtils.existInNoteDatabase(mContentResolver, id)
+                                || mLocalBatch.isNoteIdClaimed(id)) {
                             // the id is not available, have to create a new one
                             note.remove(NoteColumns.ID);
                         }
@@ -561,7 +773,8 @@ public class GTaskManager {
                         JSONObject data = dataArray.getJSONObject(i);
                         if (data.has(DataColumns.ID)) {
                             long dataId = data.getLong(DataColumns.ID);
-                            if (DataUtils.existInDataDatabase(mContentResolver, dataId)) {
+                            if (DataUtils.existInDataDatabase(mContentResolver, dataId)
+                                    || mLocalBatch.isDataIdClaimed(dataId)) {
                                 // the data id is not available, have to create
                                 // a new one
                                 data.remove(DataColumns.ID);
@@ -586,14 +799,11 @@ public class GTaskManager {
 
         // create the local node
         sqlNote.setGtaskId(node.getGid());
-        sqlNote.commit(false);
+        sqlNote.commit(false, mLocalBatch);
 
-        // update gid-nid mapping
-        mGidToNid.put(node.getGid(), sqlNote.getId());
-        mNidToGid.put(sqlNote.getId(), node.getGid());
-
-        // update meta
-        updateRemoteMeta(node.getGid(), sqlNote);
+        // gid-nid mapping and meta are updated once the id is known
+        mLocalAddedNotes.put(node.getGid(), sqlNote);
+        mLocalMetaNotes.put(node.getGid(), sqlNote);
     }
 
     private void updateLocalNode(Node node, Cursor c) throws NetworkFailureException {
@@ -613,10 +823,10 @@ public class GTaskManager {
             throw new ActionFailureException("cannot update local node");
         }
         sqlNote.setParentId(parentId.longValue());
-        sqlNote.commit(true);
+        sqlNote.commit(true, mLocalBatch);
 
-        // update meta info
-        updateRemoteMeta(node.getGid(), sqlNote);
+        // update meta info after new data got their ids
+        mLocalMetaNotes.put(node.getGid(), sqlNote);
     }
 
     private void addRemoteNode(Node node, Cursor c) throws NetworkFailureException {
@@ -625,7 +835,6 @@ public class GTaskManager {
         }
 
         SqlNote sqlNote = new SqlNote(mContext, c);
-        Node n;
 
         // update remotely
         if (sqlNote.isNoteType()) {
@@ -639,11 +848,8 @@ public class GTaskManager {
             }
             mGTaskListHashMap.get(parentGid).addChildTask(task);
 
-            GTaskClient.getInstance().createTask(task);
-            n = (Node) task;
-
-            // add meta
-            updateRemoteMeta(task.getGid(), sqlNote);
+            // the local note and the meta are updated once the gid is known
+            GTaskClient.getInstance().createTask(task, new RemoteAddCallback(sqlNote));
         } else {
             TaskList tasklist = null;
 
@@ -656,40 +862,71 @@ public class GTaskManager {
             else
                 folderName += sqlNote.getSnippet();
 
-            Iterator<Map.Entry<String, TaskList>> iter = mGTaskListHashMap.entrySet().iterator();
-            while (iter.hasNext()) {
-                Map.Entry<String, TaskList> entry = iter.next();
-                String gid = entry.getKey();
-                TaskList list = entry.getValue();
-
-                if (list.getName().equals(folderName)) {
-                    tasklist = list;
-                    if (mGTaskHashMap.containsKey(gid)) {
-                        mGTaskHashMap.remove(gid);
-                    }
-                    break;
-                }
+            tasklist = findTaskList(folderName);
+            if (tasklist == null && mCreatingLists.containsKey(folderName)) {
+                // a folder of the same name is still queued, wait for its gid
+                GTaskClient.getInstance().commitUpdate();
+                tasklist = findTaskList(folderName);
             }
 
-            // no match we can add now
-            if (tasklist == null) {
+            if (tasklist != null) {
+                new RemoteAddCallback(sqlNote).onGidAssigned(tasklist);
+            } else {
+                // no match we can add now
                 tasklist = new TaskList();
                 tasklist.setContentByLocalJSON(sqlNote.getContent());
-                GTaskClient.getInstance().createTaskList(tasklist);
-                mGTaskListHashMap.put(tasklist.getGid(), tasklist);
+                mCreatingLists.put(folderName, tasklist);
+                GTaskClient.getInstance().createTaskList(tasklist, new RemoteAddCallback(sqlNote));
             }
-            n = (Node) tasklist;
         }
+    }
 
-        // update local note
-        sqlNote.setGtaskId(n.getGid());
-        sqlNote.commit(false);
-        sqlNote.resetLocalModified();
-        sqlNote.commit(true);
+    private TaskList findTaskList(String name) {
+        Iterator<Map.Entry<String, TaskList>> iter = mGTaskListHashMap.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<String, TaskList> entry = iter.next();
+            String gid = entry.getKey();
+            TaskList list = entry.getValue();
+
+            if (list.getName().equals(name)) {
+                if (mGTaskHashMap.containsKey(gid)) {
+                    mGTaskHashMap.remove(gid);
+                }
+                return list;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finishes adding a local note remotely once its node has a gid
+     */
+    private class RemoteAddCallback implements GTaskClient.GidCallback {
+        private final SqlNote mSqlNote;
+
+        RemoteAddCallback(SqlNote sqlNote) {
+            mSqlNote = sqlNote;
+        }
+
+        public void onGidAssigned(Node n) throws NetworkFailureException {
+            if (n instanceof TaskList) {
+                mCreatingLists.remove(((TaskList) n).getName());
+                mGTaskListHashMap.put(n.getGid(), (TaskList) n);
+            } else {
+                // add meta
+                updateRemoteMeta(n.getGid(), mSqlNote);
+            }
+
+            // update local note
+            mSqlNote.setGtaskId(n.getGid());
+            mSqlNote.commit(false, mLocalBatch);
+            mSqlNote.resetLocalModified();
+            mSqlNote.commit(true, mLocalBatch);
 
-        // gid-id mapping
-        mGidToNid.put(n.getGid(), sqlNote.getId());
-        mNidToGid.put(sqlNote.getId(), n.getGid());
+            // gid-id mapping
+            mGidToNid.put(n.getGid(), mSqlNote.getId());
+            mNidToGid.put(mSqlNote.getId(), n.getGid());
+        }
     }
 
     private void updateRemoteNode(Node node, Cursor c) throws NetworkFailureException {
@@ -727,7 +964,7 @@ public class GTaskManager {
 
         // clear local modified flag
         sqlNote.resetLocalModified();
-        sqlNote.commit(true);
+        sqlNote.commit(true, mLocalBatch);
     }
 
     private void updateRemoteMeta(String gid, SqlNote sqlNote) throws NetworkFailureException {
@@ -741,11 +978,30 @@ public class GTaskManager {
                 metaData.setMeta(gid, sqlNote.getContent());
                 mMetaList.addChildTask(metaData);
                 mMetaHashMap.put(gid, metaData);
-                GTaskClient.getInstance().createTask(metaData);
+                GTaskClient.getInstance().createTask(metaData, null);
             }
         }
     }
 
+    /**
+     * Applies the queued local changes in one transaction, then finishes the
+     * work that needs the ids of the created notes
+     */
+    private void applyLocalBatch() throws NetworkFailureException {
+        mLocalBatch.apply(mContentResolver);
+
+        for (Map.Entry<String, SqlNote> entry : mLocalAddedNotes.entrySet()) {
+            mGidToNid.put(entry.getKey(), entry.getValue().getId());
+            mNidToGid.put(entry.getValue().getId(), entry.getKey());
+        }
+        mLocalAddedNotes.clear();
+
+        for (Map.Entry<String, SqlNote> entry : mLocalMetaNotes.entrySet()) {
+            updateRemoteMeta(entry.getKey(), entry.getValue());
+        }
+        mLocalMetaNotes.clear();
+    }
+
     private void refreshLocalSyncId() throws NetworkFailureException {
         if (mCancelled) {
             return;
@@ -771,8 +1027,8 @@ public class GTaskManager {
                         mGTaskHashMap.remove(gid);
                         ContentValues values = new ContentValues();
                         values.put(NoteColumns.SYNC_ID, node.getLastModified());
-                        mContentResolver.update(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI,
-                                c.getLong(SqlNote.ID_COLUMN)), values, null, null);
+                        mLocalBatch.update(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI,
+                                c.getLong(SqlNote.ID_COLUMN)), values);
                     } else {
                         Log.e(TAG, "something is missed");
                         throw new ActionFailureException(
@@ -788,6 +1044,7 @@ public class GTaskManager {
                 c = null;
             }
         }
+        mLocalBatch.apply(mContentResolver);
     }
 
     public String getSyncAccount() {
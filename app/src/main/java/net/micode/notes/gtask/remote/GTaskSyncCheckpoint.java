@@ -0,0 +1,400 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.content.Context;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import net.micode.notes.tool.GTaskStringUtils;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Keeps the last server sync point of every task list together with the
+ * remote snapshot it refers to, so that a sync only needs to download the
+ * nodes changed since then and can merge them into the cached snapshot.
+ * Only the fields kept by {@link TaskListResponseParser} are cached, and the
+ * file is read and written as a stream. Lists may be downloaded in
+ * parallel, so all accessors are synchronized.
+ */
+public class GTaskSyncCheckpoint {
+    private static final String TAG = GTaskSyncCheckpoint.class.getSimpleName();
+
+    private static final String CHECKPOINT_DIR = "gtask_checkpoint";
+
+    private static final String KEY_ACCOUNT = "account";
+
+    private static final String KEY_LISTS = "lists";
+
+    private final File mFile;
+
+    private final String mAccountName;
+
+    // fields that fix the position of a node in its list
+    private static final String[] POSITION_FIELDS = {
+            GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID,
+            GTaskStringUtils.GTASK_JSON_PARENT_ID,
+            GTaskStringUtils.GTASK_JSON_LIST_ID
+    };
+
+    private JSONObject mLists;
+
+    // gids the server reported during this sync, mapped to their list
+    private final HashMap<String, String> mReported = new HashMap<String, String>();
+
+    private GTaskSyncCheckpoint(File file, String accountName, JSONObject lists) {
+        mFile = file;
+        mAccountName = accountName;
+        mLists = lists;
+    }
+
+    public static GTaskSyncCheckpoint load(Context context, String accountName) {
+        File dir = new File(context.getFilesDir(), CHECKPOINT_DIR);
+        File file = new File(dir, Integer.toHexString(accountName.hashCode()) + ".json");
+        JSONObject lists = new JSONObject();
+
+        if (file.exists()) {
+            JsonReader reader = null;
+            try {
+                reader = new JsonReader(new BufferedReader(new InputStreamReader(
+                        new FileInputStream(file), "UTF-8")));
+                String account = null;
+                JSONObject read = null;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    if (KEY_ACCOUNT.equals(name)) {
+                        account = reader.nextString();
+                    } else if (KEY_LISTS.equals(name)) {
+                        read = readLists(reader);
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                // the file name is only a hash, so make sure it is really ours
+                if (accountName.equals(account) && read != null) {
+                    lists = read;
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "failed to read sync checkpoint: " + e.toString());
+            } catch (JSONException e) {
+                Log.w(TAG, "sync checkpoint is corrupted: " + e.toString());
+            } catch (IllegalStateException e) {
+                // thrown by JsonReader on unexpected tokens
+                Log.w(TAG, "sync checkpoint is corrupted: " + e.toString());
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "sync checkpoint is corrupted: " + e.toString());
+            } finally {
+                if (reader != null) {
+                    try {
+                        reader.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+        return new GTaskSyncCheckpoint(file, accountName, lists);
+    }
+
+    private static JSONObject readLists(JsonReader reader) throws IOException, JSONException {
+        JSONObject lists = new JSONObject();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String listGid = reader.nextName();
+            long syncPoint = 0;
+            JSONArray tasks = new JSONArray();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (GTaskStringUtils.GTASK_JSON_LATEST_SYNC_POINT.equals(name)) {
+                    syncPoint = reader.nextLong();
+                } else if (GTaskStringUtils.GTASK_JSON_TASKS.equals(name)
+                        && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        tasks.put(TaskListResponseParser.readNode(reader));
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            JSONObject list = new JSONObject();
+            list.put(GTaskStringUtils.GTASK_JSON_LATEST_SYNC_POINT, syncPoint);
+            list.put(GTaskStringUtils.GTASK_JSON_TASKS, tasks);
+            lists.put(listGid, list);
+        }
+        reader.endObject();
+        return lists;
+    }
+
+    /**
+     * Returns the last server sync point of the list, or 0 if the list has
+     * never been fully downloaded
+     */
+    public synchronized long getSyncPoint(String listGid) {
+        JSONObject list = mLists.optJSONObject(listGid);
+        return list == null ? 0 : list.optLong(GTaskStringUtils.GTASK_JSON_LATEST_SYNC_POINT, 0);
+    }
+
+    /**
+     * Replaces the snapshot of the list with a full download
+     */
+    public synchronized void reset(String listGid, List<JSONObject> tasks, long syncPoint)
+            throws JSONException {
+        for (JSONObject node : tasks) {
+            mReported.put(node.getString(GTaskStringUtils.GTASK_JSON_ID), listGid);
+        }
+        store(listGid, tasks, syncPoint);
+    }
+
+    /**
+     * Merges the changed nodes into the cached snapshot of the list and
+     * returns the merged nodes in list order. Deleted nodes are dropped.
+     * A changed node keeps its slot only if its position fields are the
+     * same as before, and a new node is only appended if it follows the
+     * last node. Otherwise the order can not be derived from the delta and
+     * null is returned; the list then has to be downloaded again.
+     */
+    public synchronized List<JSONObject> merge(String listGid, List<JSONObject> changed,
+            long syncPoint) throws JSONException {
+        LinkedHashMap<String, JSONObject> nodes = new LinkedHashMap<String, JSONObject>();
+        for (JSONObject node : getTasks(listGid)) {
+            nodes.put(node.getString(GTaskStringUtils.GTASK_JSON_ID), node);
+        }
+        for (JSONObject node : changed) {
+            String gid = node.getString(GTaskStringUtils.GTASK_JSON_ID);
+            if (node.optBoolean(GTaskStringUtils.GTASK_JSON_DELETED, false)) {
+                nodes.remove(gid);
+                continue;
+            }
+            JSONObject old = nodes.get(gid);
+            if (old != null ? !samePosition(old, node) : !followsLast(nodes, node)) {
+                Log.d(TAG, "node " + gid + " changed its position in list " + listGid);
+                return null;
+            }
+            nodes.put(gid, node);
+        }
+        for (JSONObject node : changed) {
+            if (!node.optBoolean(GTaskStringUtils.GTASK_JSON_DELETED, false)) {
+                mReported.put(node.getString(GTaskStringUtils.GTASK_JSON_ID), listGid);
+            }
+        }
+
+        ArrayList<JSONObject> merged = new ArrayList<JSONObject>(nodes.values());
+        store(listGid, merged, syncPoint);
+        return merged;
+    }
+
+    private static boolean samePosition(JSONObject old, JSONObject node) {
+        for (String field : POSITION_FIELDS) {
+            if (!old.optString(field).equals(node.optString(field))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean followsLast(LinkedHashMap<String, JSONObject> nodes,
+            JSONObject node) {
+        String last = "";
+        for (String gid : nodes.keySet()) {
+            last = gid;
+        }
+        return last.equals(node.optString(GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID));
+    }
+
+    private void store(String listGid, List<JSONObject> tasks, long syncPoint)
+            throws JSONException {
+        JSONObject list = new JSONObject();
+        list.put(GTaskStringUtils.GTASK_JSON_LATEST_SYNC_POINT, syncPoint);
+        list.put(GTaskStringUtils.GTASK_JSON_TASKS, new JSONArray(tasks));
+        mLists.put(listGid, list);
+    }
+
+    /**
+     * Returns the cached snapshot of the list in list order
+     */
+    public synchronized List<JSONObject> getTasks(String listGid) throws JSONException {
+        ArrayList<JSONObject> tasks = new ArrayList<JSONObject>();
+        JSONObject list = mLists.optJSONObject(listGid);
+        if (list != null) {
+            JSONArray cached = list.getJSONArray(GTaskStringUtils.GTASK_JSON_TASKS);
+            for (int i = 0; i < cached.length(); i++) {
+                tasks.add(cached.getJSONObject(i));
+            }
+        }
+        return tasks;
+    }
+
+    /**
+     * Drops the nodes the server reported in another list during this sync
+     * from the snapshots they are still cached in. A task moved between
+     * lists shows up in its new list, but its old list may not send a
+     * tombstone for it. Call this once all lists were downloaded.
+     */
+    public synchronized void dropMovedNodes() throws JSONException {
+        Iterator<String> iter = mLists.keys();
+        while (iter.hasNext()) {
+            String listGid = iter.next();
+            JSONObject list = mLists.getJSONObject(listGid);
+            JSONArray cached = list.getJSONArray(GTaskStringUtils.GTASK_JSON_TASKS);
+            JSONArray kept = new JSONArray();
+            for (int i = 0; i < cached.length(); i++) {
+                JSONObject node = cached.getJSONObject(i);
+                String reportedIn = mReported.get(node.getString(GTaskStringUtils.GTASK_JSON_ID));
+                if (reportedIn == null || reportedIn.equals(listGid)) {
+                    kept.put(node);
+                }
+            }
+            if (kept.length() != cached.length()) {
+                list.put(GTaskStringUtils.GTASK_JSON_TASKS, kept);
+            }
+        }
+    }
+
+    public synchronized void invalidate(String listGid) {
+        mLists.remove(listGid);
+    }
+
+    /**
+     * Forgets the lists that no longer exist on the server
+     */
+    public synchronized void retainLists(Set<String> listGids) {
+        Iterator<String> iter = mLists.keys();
+        while (iter.hasNext()) {
+            if (!listGids.contains(iter.next())) {
+                iter.remove();
+            }
+        }
+    }
+
+    public synchronized void save() {
+        File dir = mFile.getParentFile();
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.w(TAG, "failed to create sync checkpoint dir");
+            return;
+        }
+
+        // write to a temp file first so a crash never leaves a half checkpoint
+        File tmp = new File(dir, mFile.getName() + ".tmp");
+        JsonWriter writer = null;
+        try {
+            writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(tmp), "UTF-8")));
+            writer.beginObject();
+            writer.name(KEY_ACCOUNT).value(mAccountName);
+            writer.name(KEY_LISTS);
+            writeLists(writer);
+            writer.endObject();
+            writer.close();
+            writer = null;
+            if (!tmp.renameTo(mFile)) {
+                Log.w(TAG, "failed to replace sync checkpoint");
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "failed to write sync checkpoint: " + e.toString());
+            tmp.delete();
+        } catch (JSONException e) {
+            Log.w(TAG, "failed to build sync checkpoint: " + e.toString());
+            tmp.delete();
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void writeLists(JsonWriter writer) throws IOException, JSONException {
+        writer.beginObject();
+        Iterator<String> iter = mLists.keys();
+        while (iter.hasNext()) {
+            String listGid = iter.next();
+            JSONObject list = mLists.getJSONObject(listGid);
+            writer.name(listGid).beginObject();
+            writer.name(GTaskStringUtils.GTASK_JSON_LATEST_SYNC_POINT)
+                    .value(list.getLong(GTaskStringUtils.GTASK_JSON_LATEST_SYNC_POINT));
+            writer.name(GTaskStringUtils.GTASK_JSON_TASKS).beginArray();
+            JSONArray tasks = list.getJSONArray(GTaskStringUtils.GTASK_JSON_TASKS);
+            for (int i = 0; i < tasks.length(); i++) {
+                writeNode(writer, tasks.getJSONObject(i));
+            }
+            writer.endArray();
+            writer.endObject();
+        }
+        writer.endObject();
+    }
+
+    // nodes only hold the string, long and boolean fields of the parser
+    private static void writeNode(JsonWriter writer, JSONObject node)
+            throws IOException, JSONException {
+        writer.beginObject();
+        Iterator<String> iter = node.keys();
+        while (iter.hasNext()) {
+            String name = iter.next();
+            Object value = node.get(name);
+            writer.name(name);
+            if (value instanceof Boolean) {
+                writer.value(((Boolean) value).booleanValue());
+            } else if (value instanceof Number) {
+                writer.value(((Number) value).longValue());
+            } else {
+                writer.value(value.toString());
+            }
+        }
+        writer.endObject();
+    }
+
+    /**
+     * Drops the checkpoint so that the next sync walks every list again
+     */
+    public synchronized void clear() {
+        mLists = new JSONObject();
+        if (mFile.exists() && !mFile.delete()) {
+            Log.w(TAG, "failed to delete sync checkpoint");
+        }
+    }
+}
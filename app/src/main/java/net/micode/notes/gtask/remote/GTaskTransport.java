@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * The HTTP layer used by {@link GTaskClient}. The default implementation is
+ * {@link HttpClientTransport}; a local stand-in can be installed through
+ * {@link GTaskClient#setTransport(GTaskTransport)}.
+ */
+public interface GTaskTransport {
+
+    /**
+     * A response whose body is decoded while it is read. Closing it gives
+     * the connection back for reuse.
+     */
+    interface Response extends Closeable {
+        int getStatusCode();
+
+        Reader getReader() throws IOException;
+    }
+
+    /**
+     * Starts a new session: drops all cookies and pooled connections and
+     * allows at most maxConnections requests at the same time
+     */
+    void open(int maxConnections);
+
+    Response get(String url) throws IOException;
+
+    /**
+     * Posts a single form-encoded field
+     */
+    Response postForm(String url, String name, String value) throws IOException;
+
+    /**
+     * Whether the session holds a cookie whose name contains the given text
+     */
+    boolean hasCookie(String name);
+
+    void close();
+}
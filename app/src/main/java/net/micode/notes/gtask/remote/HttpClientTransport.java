@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.util.Log;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keep-alive transport on top of a pooled HttpClient. Responses are gzip
+ * encoded when the server supports it and decoded as they are read.
+ */
+public class HttpClientTransport implements GTaskTransport {
+    private static final String TAG = HttpClientTransport.class.getSimpleName();
+
+    private static final int TIMEOUT_CONNECTION = 10000;
+
+    private static final int TIMEOUT_SOCKET = 15000;
+
+    // idle connections are closed before the server is likely to drop them
+    private static final long IDLE_CONNECTION_TIMEOUT = 30000;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private PoolingHttpClientConnectionManager mConnManager;
+
+    private BasicCookieStore mCookieStore;
+
+    private CloseableHttpClient mHttpClient;
+
+    public synchronized void open(int maxConnections) {
+        close();
+
+        mConnManager = new PoolingHttpClientConnectionManager(IDLE_CONNECTION_TIMEOUT,
+                TimeUnit.MILLISECONDS);
+        mConnManager.setMaxTotal(maxConnections);
+        mConnManager.setDefaultMaxPerRoute(maxConnections);
+        mCookieStore = new BasicCookieStore();
+
+        RequestConfig config = RequestConfig.custom()
+                .setConnectTimeout(TIMEOUT_CONNECTION)
+                .setSocketTimeout(TIMEOUT_SOCKET)
+                .setExpectContinueEnabled(false)
+                .build();
+        // content compression is on by default: Accept-Encoding is sent and
+        // gzip/deflate bodies are inflated while streaming
+        mHttpClient = HttpClients.custom()
+                .setConnectionManager(mConnManager)
+                .setDefaultCookieStore(mCookieStore)
+                .setDefaultRequestConfig(config)
+                .setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+                .build();
+    }
+
+    public Response get(String url) throws IOException {
+        return execute(new HttpGet(url));
+    }
+
+    public Response postForm(String url, String name, String value) throws IOException {
+        HttpPost httpPost = new HttpPost(url);
+        httpPost.setHeader("AT", "1");
+
+        // encode the single field directly instead of building a pair list
+        String form = URLEncoder.encode(name, "UTF-8") + "=" + URLEncoder.encode(value, "UTF-8");
+        httpPost.setEntity(new ByteArrayEntity(form.getBytes(UTF_8),
+                ContentType.create("application/x-www-form-urlencoded", UTF_8)));
+        return execute(httpPost);
+    }
+
+    public synchronized boolean hasCookie(String name) {
+        if (mCookieStore == null) {
+            return false;
+        }
+        for (Cookie cookie : mCookieStore.getCookies()) {
+            if (cookie.getName().contains(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized void close() {
+        if (mHttpClient != null) {
+            try {
+                mHttpClient.close();
+            } catch (IOException e) {
+                Log.w(TAG, "close http client failed: " + e.toString());
+            }
+            mHttpClient = null;
+        }
+        mConnManager = null;
+        mCookieStore = null;
+    }
+
+    private Response execute(HttpUriRequest request) throws IOException {
+        CloseableHttpClient client;
+        synchronized (this) {
+            client = mHttpClient;
+        }
+        if (client == null) {
+            throw new IOException("transport is not opened");
+        }
+        return new HttpResponseWrapper(client.execute(request));
+    }
+
+    private static class HttpResponseWrapper implements Response {
+        private final CloseableHttpResponse mResponse;
+
+        HttpResponseWrapper(CloseableHttpResponse response) {
+            mResponse = response;
+        }
+
+        public int getStatusCode() {
+            return mResponse.getStatusLine().getStatusCode();
+        }
+
+        public Reader getReader() throws IOException {
+            HttpEntity entity = mResponse.getEntity();
+            if (entity == null) {
+                throw new IOException("empty response");
+            }
+            ContentType contentType = ContentType.get(entity);
+            Charset charset = contentType != null ? contentType.getCharset() : null;
+            return new InputStreamReader(entity.getContent(), charset != null ? charset : UTF_8);
+        }
+
+        public void close() throws IOException {
+            // consumes the rest of the body so the connection can be reused
+            try {
+                HttpEntity entity = mResponse.getEntity();
+                if (entity != null) {
+                    EntityUtils.consume(entity);
+                }
+            } finally {
+                mResponse.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import net.micode.notes.tool.GTaskStringUtils;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streams a get_all response. Only the fields read by {@link
+ * net.micode.notes.gtask.data.Task#setContentByRemoteJSON(JSONObject)} and
+ * the position fields used by {@link GTaskSyncCheckpoint} are kept for every
+ * entry, so neither the response text nor a DOM of the whole response is
+ * ever held in memory.
+ */
+public class TaskListResponseParser {
+
+    public static class Result {
+        private final ArrayList<JSONObject> mTasks = new ArrayList<JSONObject>();
+
+        private long mLatestSyncPoint = 0;
+
+        private boolean mHasTasks = false;
+
+        public List<JSONObject> getTasks() {
+            return mTasks;
+        }
+
+        /**
+         * The server sync point of the list, 0 if the response has none
+         */
+        public long getLatestSyncPoint() {
+            return mLatestSyncPoint;
+        }
+
+        public boolean hasTasks() {
+            return mHasTasks;
+        }
+    }
+
+    private TaskListResponseParser() {
+    }
+
+    public static Result parse(Reader in) throws IOException, JSONException {
+        Result result = new Result();
+        JsonReader reader = new JsonReader(in);
+        reader.setLenient(true);
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (GTaskStringUtils.GTASK_JSON_TASKS.equals(name)
+                        && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                    result.mHasTasks = true;
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        result.mTasks.add(readNode(reader));
+                    }
+                    reader.endArray();
+                } else if (GTaskStringUtils.GTASK_JSON_LATEST_SYNC_POINT.equals(name)
+                        && reader.peek() != JsonToken.NULL) {
+                    result.mLatestSyncPoint = reader.nextLong();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException e) {
+            // thrown by JsonReader on unexpected tokens
+            throw new JSONException(e.toString());
+        } catch (NumberFormatException e) {
+            throw new JSONException(e.toString());
+        }
+        return result;
+    }
+
+    // also reads the nodes of a saved GTaskSyncCheckpoint
+    static JSONObject readNode(JsonReader reader) throws IOException, JSONException {
+        JSONObject node = new JSONObject();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            JsonToken token = reader.peek();
+            if (token == JsonToken.NULL) {
+                reader.skipValue();
+            } else if (GTaskStringUtils.GTASK_JSON_ID.equals(name)
+                    || GTaskStringUtils.GTASK_JSON_NAME.equals(name)
+                    || GTaskStringUtils.GTASK_JSON_NOTES.equals(name)
+                    || GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID.equals(name)
+                    || GTaskStringUtils.GTASK_JSON_PARENT_ID.equals(name)
+                    || GTaskStringUtils.GTASK_JSON_LIST_ID.equals(name)) {
+                node.put(name, reader.nextString());
+            } else if (GTaskStringUtils.GTASK_JSON_LAST_MODIFIED.equals(name)) {
+                node.put(name, reader.nextLong());
+            } else if ((GTaskStringUtils.GTASK_JSON_DELETED.equals(name)
+                    || GTaskStringUtils.GTASK_JSON_COMPLETED.equals(name))
+                    && token == JsonToken.BOOLEAN) {
+                node.put(name, reader.nextBoolean());
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return node;
+    }
+}
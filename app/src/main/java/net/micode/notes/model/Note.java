@@ -100,6 +100,29 @@ public class Note {
         return mNoteDiffValues.size() > 0 || mNoteData.isLocalModified();
     }
 
+    /**
+     * Moves the unsaved changes into a new note, so they can be written on
+     * another thread while this note goes on recording new changes
+     */
+    public Note takeChanges() {
+        Note changes = new Note();
+        changes.putChanges(this);
+        mNoteDiffValues.clear();
+        mNoteData.mTextDataValues.clear();
+        mNoteData.mCallDataValues.clear();
+        return changes;
+    }
+
+    /**
+     * Adds the changes of another note on top of the unsaved ones, later
+     * values of the same column win so several edits become one write
+     */
+    public void putChanges(Note changes) {
+        mNoteDiffValues.putAll(changes.mNoteDiffValues);
+        mNoteData.mTextDataValues.putAll(changes.mNoteData.mTextDataValues);
+        mNoteData.mCallDataValues.putAll(changes.mNoteData.mCallDataValues);
+    }
+
     public boolean syncNote(Context context, long noteId) {
         if (noteId <= 0) {
             throw new IllegalArgumentException("Wrong note id:" + noteId);
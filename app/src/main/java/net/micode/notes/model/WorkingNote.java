@@ -20,6 +20,9 @@ import android.appwidget.AppWidgetManager;
 import android.content.ContentUris;
 import android.content.Context;
 import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -29,14 +32,22 @@ import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.DataConstants;
 import net.micode.notes.data.Notes.NoteColumns;
 import net.micode.notes.data.Notes.TextNote;
+import net.micode.notes.tool.DataUtils;
 import net.micode.notes.tool.ResourceParser.NoteBgResources;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class WorkingNote {
-    // Note for the working note
+    // Changes made on the main thread and not handed to the save thread yet
     private Note mNote;
-    // Note Id
-    private long mNoteId;
+    // Owned by the save thread, keeps the data ids and the changes to write
+    private final Note mWriter;
+    // Note Id, assigned on the save thread when a new note is first saved
+    private volatile long mNoteId;
     // Note content
     private String mContent;
     // Note mode
@@ -58,7 +69,37 @@ public class WorkingNote {
 
     private static final String TAG = "WorkingNote";
 
-    private boolean mIsDeleted;
+    private volatile boolean mIsDeleted;
+
+    // A new note has been handed to the save thread, which will create it
+    private boolean mCreationQueued;
+
+    // Uptime of the first change not handed to the save thread yet, 0 if none
+    private long mPendingSince;
+
+    private final Handler mHandler;
+
+    private final Runnable mAutoSave;
+
+    // Edits are saved once the note has been left alone for this long
+    private static final long AUTO_SAVE_DELAY = 1000;
+
+    // but no later than this after the first unsaved edit while typing goes on
+    private static final long AUTO_SAVE_MAX_DELAY = 5000;
+
+    // All notes are loaded and written one after another on a single background
+    // thread, so a load always sees the writes handed over before it
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+
+    // A note loaded ahead of opening it is only used within this time
+    private static final long PREWARM_TIMEOUT = 3000;
+
+    // The note loaded by prewarm(), only touched on the main thread
+    private static Future<WorkingNote> sPrewarmed;
+
+    private static long sPrewarmedId;
+
+    private static long sPrewarmedTime;
 
     private NoteSettingChangedListener mNoteSettingStatusListener;
 
@@ -108,6 +149,9 @@ public class WorkingNote {
         mModifiedDate = System.currentTimeMillis();
         mFolderId = folderId;
         mNote = new Note();
+        mWriter = new Note();
+        mHandler = new Handler(Looper.getMainLooper());
+        mAutoSave = newAutoSave();
         mNoteId = 0;
         mIsDeleted = false;
         mMode = 0;
@@ -121,9 +165,20 @@ public class WorkingNote {
         mFolderId = folderId;
         mIsDeleted = false;
         mNote = new Note();
+        mWriter = new Note();
+        mHandler = new Handler(Looper.getMainLooper());
+        mAutoSave = newAutoSave();
         loadNote();
     }
 
+    private Runnable newAutoSave() {
+        return new Runnable() {
+            public void run() {
+                flush();
+            }
+        };
+    }
+
     private void loadNote() {
         Cursor cursor = mContext.getContentResolver().query(
                 ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, mNoteId), NOTE_PROJECTION, null,
@@ -159,9 +214,9 @@ public class WorkingNote {
                     if (DataConstants.NOTE.equals(type)) {
                         mContent = cursor.getString(DATA_CONTENT_COLUMN);
                         mMode = cursor.getInt(DATA_MODE_COLUMN);
-                        mNote.setTextDataId(cursor.getLong(DATA_ID_COLUMN));
+                        mWriter.setTextDataId(cursor.getLong(DATA_ID_COLUMN));
                     } else if (DataConstants.CALL_NOTE.equals(type)) {
-                        mNote.setCallDataId(cursor.getLong(DATA_ID_COLUMN));
+                        mWriter.setCallDataId(cursor.getLong(DATA_ID_COLUMN));
                     } else {
                         Log.d(TAG, "Wrong note type with type:" + type);
                     }
@@ -187,29 +242,127 @@ public class WorkingNote {
         return new WorkingNote(context, id, 0);
     }
 
-    public synchronized boolean saveNote() {
-        if (isWorthSaving()) {
-            if (!existInDatabase()) {
-                if ((mNoteId = Note.getNewNoteId(mContext, mFolderId)) == 0) {
-                    Log.e(TAG, "Create new note fail with id:" + mNoteId);
-                    return false;
+    /**
+     * Loads the note and its data on the background thread and reports the
+     * result on the main thread. A note missing or in the trash fails to load.
+     * Must be called on the main thread
+     */
+    public static void loadAsync(Context context, final long id, final LoadCallback callback) {
+        final Future<WorkingNote> load;
+        if (sPrewarmed != null && sPrewarmedId == id
+                && SystemClock.uptimeMillis() - sPrewarmedTime < PREWARM_TIMEOUT) {
+            load = sPrewarmed;
+            sPrewarmed = null;
+        } else {
+            cancelPrewarm();
+            load = submitLoad(context.getApplicationContext(), id);
+        }
+
+        final Handler handler = new Handler(Looper.getMainLooper());
+        // Queued behind the load on the same thread, so get() returns at once
+        sExecutor.execute(new Runnable() {
+            public void run() {
+                WorkingNote note = null;
+                try {
+                    note = load.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    Log.e(TAG, "Load note fail with id:" + id + " " + e.getCause());
                 }
+                final WorkingNote result = note;
+                handler.post(new Runnable() {
+                    public void run() {
+                        if (result != null) {
+                            callback.onNoteLoaded(result);
+                        } else {
+                            callback.onNoteLoadFailed(id);
+                        }
+                    }
+                });
             }
+        });
+    }
 
-            mNote.syncNote(mContext, mNoteId);
+    /**
+     * Starts loading the note before it is opened, e.g. when its list item is
+     * pressed, so that loadAsync() right after finds it loaded. A previous
+     * prewarm of another note is cancelled.
+     * Must be called on the main thread
+     */
+    public static void prewarm(Context context, long id) {
+        long now = SystemClock.uptimeMillis();
+        if (sPrewarmed != null && sPrewarmedId == id && now - sPrewarmedTime < PREWARM_TIMEOUT) {
+            return;
+        }
+        cancelPrewarm();
+        sPrewarmed = submitLoad(context.getApplicationContext(), id);
+        sPrewarmedId = id;
+        sPrewarmedTime = now;
+    }
 
-            /**
-             * Update widget content if there exist any widget of this note
-             */
-            if (mWidgetId != AppWidgetManager.INVALID_APPWIDGET_ID
-                    && mWidgetType != Notes.TYPE_WIDGET_INVALIDE
-                    && mNoteSettingStatusListener != null) {
-                mNoteSettingStatusListener.onWidgetChanged();
+    // An unused prewarm that has not started yet must not hold up the single loader thread
+    private static void cancelPrewarm() {
+        if (sPrewarmed != null) {
+            sPrewarmed.cancel(false);
+            sPrewarmed = null;
+        }
+    }
+
+    private static Future<WorkingNote> submitLoad(final Context context, final long id) {
+        return sExecutor.submit(new Callable<WorkingNote>() {
+            public WorkingNote call() {
+                if (!DataUtils.visibleInNoteDatabase(context.getContentResolver(), id,
+                        Notes.TYPE_NOTE)) {
+                    return null;
+                }
+                return new WorkingNote(context, id, 0);
             }
-            return true;
-        } else {
+        });
+    }
+
+    /**
+     * Hands all changes made so far to the save thread as one write and
+     * returns at once. Returns false if there is nothing worth saving
+     */
+    public boolean flush() {
+        mHandler.removeCallbacks(mAutoSave);
+        mPendingSince = 0;
+        if (!isWorthSaving()) {
             return false;
         }
+        if (!existInDatabase()) {
+            mCreationQueued = true;
+        }
+        sExecutor.execute(new SaveTask(mNote.takeChanges(), mFolderId));
+        return true;
+    }
+
+    /**
+     * Saves the note and waits until it is written, for callers which need
+     * the id of a new note right away
+     */
+    public boolean saveNote() {
+        boolean saved = flush();
+        waitForSaves();
+        return saved && existInDatabase();
+    }
+
+    /**
+     * Blocks until every write handed to the save thread is done
+     */
+    public void waitForSaves() {
+        Future<?> done = sExecutor.submit(new Runnable() {
+            public void run() {
+            }
+        });
+        try {
+            done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Wait for note saving fail: " + e.toString());
+        }
     }
 
     public boolean existInDatabase() {
@@ -217,14 +370,74 @@ public class WorkingNote {
     }
 
     private boolean isWorthSaving() {
-        if (mIsDeleted || (!existInDatabase() && TextUtils.isEmpty(mContent))
-                || (existInDatabase() && !mNote.isLocalModified())) {
+        boolean created = existInDatabase() || mCreationQueued;
+        if (mIsDeleted || (!created && TextUtils.isEmpty(mContent))
+                || (created && !mNote.isLocalModified())) {
             return false;
         } else {
             return true;
         }
     }
 
+    // Restarts the idle timer on every change, a long run of edits is still
+    // saved every AUTO_SAVE_MAX_DELAY
+    private void scheduleAutoSave() {
+        long now = SystemClock.uptimeMillis();
+        if (mPendingSince == 0) {
+            mPendingSince = now;
+        }
+        long delay = Math.min(AUTO_SAVE_DELAY, mPendingSince + AUTO_SAVE_MAX_DELAY - now);
+        mHandler.removeCallbacks(mAutoSave);
+        mHandler.postDelayed(mAutoSave, Math.max(0, delay));
+    }
+
+    private void notifyWidgetChanged() {
+        /**
+         * Update widget content if there exist any widget of this note
+         */
+        if (mWidgetId != AppWidgetManager.INVALID_APPWIDGET_ID
+                && mWidgetType != Notes.TYPE_WIDGET_INVALIDE
+                && mNoteSettingStatusListener != null) {
+            mNoteSettingStatusListener.onWidgetChanged();
+        }
+    }
+
+    // Runs on the save thread
+    private class SaveTask implements Runnable {
+        private final Note mChanges;
+
+        private final long mParentId;
+
+        SaveTask(Note changes, long parentId) {
+            mChanges = changes;
+            mParentId = parentId;
+        }
+
+        public void run() {
+            mWriter.putChanges(mChanges);
+            if (mIsDeleted) {
+                return;
+            }
+            if (!existInDatabase()) {
+                long noteId = Note.getNewNoteId(mContext, mParentId);
+                if (noteId == 0) {
+                    // the changes stay in the writer and go with the next save
+                    Log.e(TAG, "Create new note fail with id:" + noteId);
+                    return;
+                }
+                mNoteId = noteId;
+            }
+
+            mWriter.syncNote(mContext, mNoteId);
+
+            mHandler.post(new Runnable() {
+                public void run() {
+                    notifyWidgetChanged();
+                }
+            });
+        }
+    }
+
     public void setOnSettingStatusChangedListener(NoteSettingChangedListener l) {
         mNoteSettingStatusListener = l;
     }
@@ -233,6 +446,7 @@ public class WorkingNote {
         if (date != mAlertDate) {
             mAlertDate = date;
             mNote.setNoteValue(NoteColumns.ALERTED_DATE, String.valueOf(mAlertDate));
+            scheduleAutoSave();
         }
         if (mNoteSettingStatusListener != null) {
             mNoteSettingStatusListener.onClockAlertChanged(date, set);
@@ -241,6 +455,7 @@ public class WorkingNote {
 
     public void markDeleted(boolean mark) {
         mIsDeleted = mark;
+        mHandler.removeCallbacks(mAutoSave);
         if (mWidgetId != AppWidgetManager.INVALID_APPWIDGET_ID
                 && mWidgetType != Notes.TYPE_WIDGET_INVALIDE && mNoteSettingStatusListener != null) {
                 mNoteSettingStatusListener.onWidgetChanged();
@@ -254,6 +469,7 @@ public class WorkingNote {
                 mNoteSettingStatusListener.onBackgroundColorChanged();
             }
             mNote.setNoteValue(NoteColumns.BG_COLOR_ID, String.valueOf(id));
+            scheduleAutoSave();
         }
     }
 
@@ -264,6 +480,7 @@ public class WorkingNote {
             }
             mMode = mode;
             mNote.setTextData(TextNote.MODE, String.valueOf(mMode));
+            scheduleAutoSave();
         }
     }
 
@@ -271,6 +488,7 @@ public class WorkingNote {
         if (type != mWidgetType) {
             mWidgetType = type;
             mNote.setNoteValue(NoteColumns.WIDGET_TYPE, String.valueOf(mWidgetType));
+            scheduleAutoSave();
         }
     }
 
@@ -278,6 +496,7 @@ public class WorkingNote {
         if (id != mWidgetId) {
             mWidgetId = id;
             mNote.setNoteValue(NoteColumns.WIDGET_ID, String.valueOf(mWidgetId));
+            scheduleAutoSave();
         }
     }
 
@@ -285,6 +504,7 @@ public class WorkingNote {
         if (!TextUtils.equals(mContent, text)) {
             mContent = text;
             mNote.setTextData(DataColumns.CONTENT, mContent);
+            scheduleAutoSave();
         }
     }
 
@@ -292,6 +512,7 @@ public class WorkingNote {
         mNote.setCallData(CallNote.CALL_DATE, String.valueOf(callDate));
         mNote.setCallData(CallNote.PHONE_NUMBER, phoneNumber);
         mNote.setNoteValue(NoteColumns.PARENT_ID, String.valueOf(Notes.ID_CALL_RECORD_FOLDER));
+        scheduleAutoSave();
     }
 
     public boolean hasClockAlert() {
@@ -365,4 +586,17 @@ public class WorkingNote {
          */
         void onCheckListModeChanged(int oldMode, int newMode);
     }
+
+    public interface LoadCallback {
+        /**
+         * Called on the main thread when the note has been loaded
+         */
+        void onNoteLoaded(WorkingNote note);
+
+        /**
+         * Called on the main thread when the note does not exist, is in the
+         * trash or could not be read
+         */
+        void onNoteLoadFailed(long noteId);
+    }
 }
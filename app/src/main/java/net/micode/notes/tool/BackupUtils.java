@@ -17,7 +17,9 @@
 package net.micode.notes.tool;
 
 import android.content.Context;
+import android.content.Intent;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
 import android.os.Environment;
 import android.text.TextUtils;
 import android.text.format.DateFormat;
@@ -28,12 +30,27 @@ import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.DataConstants;
 import net.micode.notes.data.Notes.NoteColumns;
-
+import net.micode.notes.data.NotesBackup;
+import net.micode.notes.data.NotesBackupSet;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+import net.micode.notes.ui.AlarmInitReceiver;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.zip.ZipException;
 
 
 public class BackupUtils {
@@ -65,16 +82,30 @@ public class BackupUtils {
 
     private TextExport mTextExport;
 
+    private FullBackup mFullBackup;
+
     private BackupUtils(Context context) {
         mTextExport = new TextExport(context);
+        mFullBackup = new FullBackup(context);
     }
 
     private static boolean externalStorageAvailable() {
         return Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState());
     }
 
+    /**
+     * Receives the progress of a text export
+     */
+    public interface ExportListener {
+        void onProgress(int exportedNotes, int totalNotes);
+    }
+
     public int exportToText() {
-        return mTextExport.exportToText();
+        return exportToText(null);
+    }
+
+    public int exportToText(ExportListener listener) {
+        return mTextExport.exportToText(listener);
     }
 
     public String getExportedTextFileName() {
@@ -85,36 +116,120 @@ public class BackupUtils {
         return mTextExport.mFileDirectory;
     }
 
+    /**
+     * Writes a compressed backup of all notes and folders to the sd card
+     */
+    public int backupToFile() {
+        return mFullBackup.backup();
+    }
+
+    /**
+     * Replaces all notes and folders with the content of the backup file
+     */
+    public int restoreFromFile(File file) {
+        return mFullBackup.restore(file);
+    }
+
+    /**
+     * Backs up the notes changed since the last incremental backup on the
+     * sd card, usually only a small delta segment is written
+     */
+    public int backupIncremental() {
+        return mFullBackup.backupIncremental();
+    }
+
+    /**
+     * Restores the state of the last incremental backup on the sd card
+     */
+    public int restoreIncremental() {
+        return mFullBackup.restoreIncremental();
+    }
+
+    public String getBackupFileName() {
+        return mFullBackup.mFileName;
+    }
+
+    public String getBackupFileDir() {
+        return mFullBackup.mFileDirectory;
+    }
+
     private static class TextExport {
-        private static final String[] NOTE_PROJECTION = {
-                NoteColumns.ID,
-                NoteColumns.MODIFIED_DATE,
-                NoteColumns.SNIPPET,
-                NoteColumns.TYPE
+        // 文件夹：未在回收站中的用户文件夹以及通话记录文件夹
+        private static final String FOLDER_SELECTION = "(" + NoteColumns.TYPE + "="
+                + Notes.TYPE_FOLDER + " AND " + NoteColumns.PARENT_ID + "<>"
+                + Notes.ID_TRASH_FOLER + ") OR " + NoteColumns.ID + "="
+                + Notes.ID_CALL_RECORD_FOLDER;
+
+        // 需要导出的便签：根目录下的便签以及上述文件夹中的便签
+        private static final String NOTE_SELECTION = NoteColumns.TYPE + "=" + Notes.TYPE_NOTE
+                + " AND (" + NoteColumns.PARENT_ID + "=" + Notes.ID_ROOT_FOLDER + " OR "
+                + NoteColumns.PARENT_ID + " IN (SELECT " + NoteColumns.ID + " FROM "
+                + TABLE.NOTE + " WHERE " + FOLDER_SELECTION + "))";
+
+        private static final String NOTE_PREFIX = TABLE.NOTE + ".";
+
+        private static final String DATA_PREFIX = TABLE.DATA + ".";
+
+        // 连接查询里便签表的列都加上表名，子查询中的列仍指向子查询自己的表
+        private static final String EXPORT_SELECTION = "(" + NOTE_PREFIX + NoteColumns.TYPE + "="
+                + Notes.TYPE_FOLDER + " AND " + NOTE_PREFIX + NoteColumns.PARENT_ID + "<>"
+                + Notes.ID_TRASH_FOLER + ") OR " + NOTE_PREFIX + NoteColumns.ID + "="
+                + Notes.ID_CALL_RECORD_FOLDER + " OR ("
+                + NOTE_PREFIX + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE + " AND ("
+                + NOTE_PREFIX + NoteColumns.PARENT_ID + "=" + Notes.ID_ROOT_FOLDER + " OR "
+                + NOTE_PREFIX + NoteColumns.PARENT_ID + " IN (SELECT " + NoteColumns.ID
+                + " FROM " + TABLE.NOTE + " WHERE " + FOLDER_SELECTION + ")))";
+
+        // 文件夹行和它的便签分在同一组，根目录的便签排在最后；
+        // 组内文件夹行在前，便签与原来逐个文件夹查询时一样按ID顺序，同一便签的数据行相邻
+        private static final String GROUP_KEY = "(CASE WHEN " + NOTE_PREFIX + NoteColumns.TYPE
+                + "=" + Notes.TYPE_NOTE + " THEN " + NOTE_PREFIX + NoteColumns.PARENT_ID
+                + " ELSE " + NOTE_PREFIX + NoteColumns.ID + " END)";
+
+        private static final String EXPORT_SORT_ORDER = "(" + GROUP_KEY + "="
+                + Notes.ID_ROOT_FOLDER + ")," + GROUP_KEY + "," + NOTE_PREFIX + NoteColumns.TYPE
+                + " DESC," + NOTE_PREFIX + NoteColumns.ID + "," + DATA_PREFIX + DataColumns.ID;
+
+        private static final String[] EXPORT_PROJECTION = {
+                NOTE_PREFIX + NoteColumns.ID,
+                NOTE_PREFIX + NoteColumns.TYPE,
+                NOTE_PREFIX + NoteColumns.MODIFIED_DATE,
+                NOTE_PREFIX + NoteColumns.SNIPPET,
+                DATA_PREFIX + DataColumns.MIME_TYPE,
+                DATA_PREFIX + DataColumns.CONTENT,
+                DATA_PREFIX + DataColumns.DATA1,
+                DATA_PREFIX + DataColumns.DATA3
         };
 
-        private static final int NOTE_COLUMN_ID = 0;
+        private static final int COLUMN_NOTE_ID = 0;
 
-        private static final int NOTE_COLUMN_MODIFIED_DATE = 1;
+        private static final int COLUMN_NOTE_TYPE = 1;
 
-        private static final int NOTE_COLUMN_SNIPPET = 2;
+        private static final int COLUMN_MODIFIED_DATE = 2;
 
-        private static final String[] DATA_PROJECTION = {
-                DataColumns.CONTENT,
-                DataColumns.MIME_TYPE,
-                DataColumns.DATA1,
-                DataColumns.DATA2,
-                DataColumns.DATA3,
-                DataColumns.DATA4,
-        };
+        private static final int COLUMN_SNIPPET = 3;
+
+        private static final int COLUMN_MIME_TYPE = 4;
 
-        private static final int DATA_COLUMN_CONTENT = 0;
+        private static final int COLUMN_CONTENT = 5;
 
-        private static final int DATA_COLUMN_MIME_TYPE = 1;
+        private static final int COLUMN_CALL_DATE = 6;
 
-        private static final int DATA_COLUMN_CALL_DATE = 2;
+        private static final int COLUMN_PHONE_NUMBER = 7;
+
+        private static final String[] COUNT_PROJECTION = {
+                "COUNT(*)"
+        };
 
-        private static final int DATA_COLUMN_PHONE_NUMBER = 4;
+        // 每导出这么多条便签回调一次进度
+        private static final int PROGRESS_STEP = 100;
+
+        // 便签之间的分隔符，与旧版本导出的文件保持一致
+        private static final String NOTE_SEPARATOR = new String(new char[] {
+                Character.LINE_SEPARATOR, Character.LETTER_NUMBER
+        });
+
+        private static final int BUFFER_SIZE = 64 * 1024;
 
         private final String [] TEXT_FORMAT;
         private static final int FORMAT_FOLDER_NAME          = 0;
@@ -137,155 +252,150 @@ public class BackupUtils {
         }
 
         /**
-         * Export the folder identified by folder id to text
+         * Note will be exported as text which is user readable. All notes
+         * and their data are read by one ordered query and streamed to a
+         * buffered writer, so the cost no longer grows with a query per note
          */
-        private void exportFolderToText(String folderId, PrintStream ps) {
-            // Query notes belong to this folder
-            Cursor notesCursor = mContext.getContentResolver().query(Notes.CONTENT_NOTE_URI,
-                    NOTE_PROJECTION, NoteColumns.PARENT_ID + "=?", new String[] {
-                        folderId
-                    }, null);
-
-            if (notesCursor != null) {
-                if (notesCursor.moveToFirst()) {
-                    do {
-                        // Print note's last modified date
-                        ps.println(String.format(getFormat(FORMAT_NOTE_DATE), DateFormat.format(
-                                mContext.getString(R.string.format_datetime_mdhm),
-                                notesCursor.getLong(NOTE_COLUMN_MODIFIED_DATE))));
-                        // Query data belong to this note
-                        String noteId = notesCursor.getString(NOTE_COLUMN_ID);
-                        exportNoteToText(noteId, ps);
-                    } while (notesCursor.moveToNext());
-                }
-                notesCursor.close();
+        public int exportToText(ExportListener listener) {
+            if (!externalStorageAvailable()) {
+                Log.d(TAG, "Media was not mounted");
+                return STATE_SD_CARD_UNMOUONTED;
             }
-        }
 
-        /**
-         * Export note identified by id to a print stream
-         */
-        private void exportNoteToText(String noteId, PrintStream ps) {
-            Cursor dataCursor = mContext.getContentResolver().query(Notes.CONTENT_DATA_URI,
-                    DATA_PROJECTION, DataColumns.NOTE_ID + "=?", new String[] {
-                        noteId
-                    }, null);
-
-            if (dataCursor != null) {
-                if (dataCursor.moveToFirst()) {
-                    do {
-                        String mimeType = dataCursor.getString(DATA_COLUMN_MIME_TYPE);
-                        if (DataConstants.CALL_NOTE.equals(mimeType)) {
-                            // Print phone number
-                            String phoneNumber = dataCursor.getString(DATA_COLUMN_PHONE_NUMBER);
-                            long callDate = dataCursor.getLong(DATA_COLUMN_CALL_DATE);
-                            String location = dataCursor.getString(DATA_COLUMN_CONTENT);
-
-                            if (!TextUtils.isEmpty(phoneNumber)) {
-                                ps.println(String.format(getFormat(FORMAT_NOTE_CONTENT),
-                                        phoneNumber));
-                            }
-                            // Print call date
-                            ps.println(String.format(getFormat(FORMAT_NOTE_CONTENT), DateFormat
-                                    .format(mContext.getString(R.string.format_datetime_mdhm),
-                                            callDate)));
-                            // Print call attachment location
-                            if (!TextUtils.isEmpty(location)) {
-                                ps.println(String.format(getFormat(FORMAT_NOTE_CONTENT),
-                                        location));
-                            }
-                        } else if (DataConstants.NOTE.equals(mimeType)) {
-                            String content = dataCursor.getString(DATA_COLUMN_CONTENT);
-                            if (!TextUtils.isEmpty(content)) {
-                                ps.println(String.format(getFormat(FORMAT_NOTE_CONTENT),
-                                        content));
-                            }
-                        }
-                    } while (dataCursor.moveToNext());
-                }
-                dataCursor.close();
+            Writer writer = getExportToTextWriter();
+            if (writer == null) {
+                Log.e(TAG, "get export writer error");
+                return STATE_SYSTEM_ERROR;
             }
-            // print a line separator between note
+
+            Cursor cursor = null;
             try {
-                ps.write(new byte[] {
-                        Character.LINE_SEPARATOR, Character.LETTER_NUMBER
-                });
+                int total = listener != null ? queryExportedNotesCount() : 0;
+                cursor = mContext.getContentResolver().query(Notes.CONTENT_NOTE_DATA_URI,
+                        EXPORT_PROJECTION, EXPORT_SELECTION, null, EXPORT_SORT_ORDER);
+                if (cursor == null) {
+                    Log.e(TAG, "query notes to export failed");
+                    return STATE_SYSTEM_ERROR;
+                }
+                int exported = writeNotes(cursor, writer, listener, total);
+                writer.flush();
+                if (listener != null) {
+                    listener.onProgress(exported, total);
+                }
+                return STATE_SUCCESS;
             } catch (IOException e) {
-                Log.e(TAG, e.toString());
+                Log.e(TAG, "export to text failed: " + e.toString());
+                return STATE_SYSTEM_ERROR;
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    Log.e(TAG, e.toString());
+                }
             }
         }
 
-        /**
-         * Note will be exported as text which is user readable
-         */
-        public int exportToText() {
-            if (!externalStorageAvailable()) {
-                Log.d(TAG, "Media was not mounted");
-                return STATE_SD_CARD_UNMOUONTED;
-            }
+        // 游标按文件夹、便签、数据行的顺序排列，逐行写出
+        private int writeNotes(Cursor cursor, Writer writer, ExportListener listener, int total)
+                throws IOException {
+            LineFormat folderFormat = new LineFormat(getFormat(FORMAT_FOLDER_NAME));
+            LineFormat dateFormat = new LineFormat(getFormat(FORMAT_NOTE_DATE));
+            LineFormat contentFormat = new LineFormat(getFormat(FORMAT_NOTE_CONTENT));
+            DateFormatter dateFormatter = new DateFormatter(
+                    mContext.getString(R.string.format_datetime_mdhm));
+
+            int exported = 0;
+            boolean inNote = false;
+            long noteId = 0;
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(COLUMN_NOTE_ID);
+                if (cursor.getInt(COLUMN_NOTE_TYPE) != Notes.TYPE_NOTE) {
+                    // Print folder's name
+                    if (inNote) {
+                        writer.write(NOTE_SEPARATOR);
+                        inNote = false;
+                    }
+                    String folderName;
+                    if (id == Notes.ID_CALL_RECORD_FOLDER) {
+                        folderName = mContext.getString(R.string.call_record_folder_name);
+                    } else {
+                        folderName = cursor.getString(COLUMN_SNIPPET);
+                    }
+                    if (!TextUtils.isEmpty(folderName)) {
+                        folderFormat.writeLine(writer, folderName);
+                    }
+                    continue;
+                }
 
-            PrintStream ps = getExportToTextPrintStream();
-            if (ps == null) {
-                Log.e(TAG, "get print stream error");
-                return STATE_SYSTEM_ERROR;
-            }
-            // First export folder and its notes
-            Cursor folderCursor = mContext.getContentResolver().query(
-                    Notes.CONTENT_NOTE_URI,
-                    NOTE_PROJECTION,
-                    "(" + NoteColumns.TYPE + "=" + Notes.TYPE_FOLDER + " AND "
-                            + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER + ") OR "
-                            + NoteColumns.ID + "=" + Notes.ID_CALL_RECORD_FOLDER, null, null);
-
-            if (folderCursor != null) {
-                if (folderCursor.moveToFirst()) {
-                    do {
-                        // Print folder's name
-                        String folderName = "";
-                        if(folderCursor.getLong(NOTE_COLUMN_ID) == Notes.ID_CALL_RECORD_FOLDER) {
-                            folderName = mContext.getString(R.string.call_record_folder_name);
-                        } else {
-                            folderName = folderCursor.getString(NOTE_COLUMN_SNIPPET);
-                        }
-                        if (!TextUtils.isEmpty(folderName)) {
-                            ps.println(String.format(getFormat(FORMAT_FOLDER_NAME), folderName));
-                        }
-                        String folderId = folderCursor.getString(NOTE_COLUMN_ID);
-                        exportFolderToText(folderId, ps);
-                    } while (folderCursor.moveToNext());
+                if (!inNote || id != noteId) {
+                    // print a line separator between note
+                    if (inNote) {
+                        writer.write(NOTE_SEPARATOR);
+                    }
+                    inNote = true;
+                    noteId = id;
+                    // Print note's last modified date
+                    dateFormat.writeLine(writer,
+                            dateFormatter.format(cursor.getLong(COLUMN_MODIFIED_DATE)));
+                    exported++;
+                    if (listener != null && exported % PROGRESS_STEP == 0) {
+                        listener.onProgress(exported, total);
+                    }
                 }
-                folderCursor.close();
+                writeData(cursor, writer, contentFormat, dateFormatter);
             }
+            if (inNote) {
+                writer.write(NOTE_SEPARATOR);
+            }
+            return exported;
+        }
 
-            // Export notes in root's folder
-            Cursor noteCursor = mContext.getContentResolver().query(
-                    Notes.CONTENT_NOTE_URI,
-                    NOTE_PROJECTION,
-                    NoteColumns.TYPE + "=" + +Notes.TYPE_NOTE + " AND " + NoteColumns.PARENT_ID
-                            + "=0", null, null);
-
-            if (noteCursor != null) {
-                if (noteCursor.moveToFirst()) {
-                    do {
-                        ps.println(String.format(getFormat(FORMAT_NOTE_DATE), DateFormat.format(
-                                mContext.getString(R.string.format_datetime_mdhm),
-                                noteCursor.getLong(NOTE_COLUMN_MODIFIED_DATE))));
-                        // Query data belong to this note
-                        String noteId = noteCursor.getString(NOTE_COLUMN_ID);
-                        exportNoteToText(noteId, ps);
-                    } while (noteCursor.moveToNext());
+        private void writeData(Cursor cursor, Writer writer, LineFormat contentFormat,
+                DateFormatter dateFormatter) throws IOException {
+            String mimeType = cursor.getString(COLUMN_MIME_TYPE);
+            if (DataConstants.CALL_NOTE.equals(mimeType)) {
+                // Print phone number
+                String phoneNumber = cursor.getString(COLUMN_PHONE_NUMBER);
+                long callDate = cursor.getLong(COLUMN_CALL_DATE);
+                String location = cursor.getString(COLUMN_CONTENT);
+
+                if (!TextUtils.isEmpty(phoneNumber)) {
+                    contentFormat.writeLine(writer, phoneNumber);
+                }
+                // Print call date
+                contentFormat.writeLine(writer, dateFormatter.format(callDate));
+                // Print call attachment location
+                if (!TextUtils.isEmpty(location)) {
+                    contentFormat.writeLine(writer, location);
+                }
+            } else if (DataConstants.NOTE.equals(mimeType)) {
+                String content = cursor.getString(COLUMN_CONTENT);
+                if (!TextUtils.isEmpty(content)) {
+                    contentFormat.writeLine(writer, content);
                 }
-                noteCursor.close();
             }
-            ps.close();
+        }
 
-            return STATE_SUCCESS;
+        private int queryExportedNotesCount() {
+            Cursor cursor = mContext.getContentResolver().query(Notes.CONTENT_NOTE_URI,
+                    COUNT_PROJECTION, NOTE_SELECTION, null, null);
+            if (cursor == null) {
+                return 0;
+            }
+            try {
+                return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+            } finally {
+                cursor.close();
+            }
         }
 
         /**
-         * Get a print stream pointed to the file {@generateExportedTextFile}
+         * Get a buffered writer pointed to the file {@generateExportedTextFile}
          */
-        private PrintStream getExportToTextPrintStream() {
+        private Writer getExportToTextWriter() {
             File file = generateFileMountedOnSDcard(mContext, R.string.file_path,
                     R.string.file_name_txt_format);
             if (file == null) {
@@ -294,18 +404,232 @@ public class BackupUtils {
             }
             mFileName = file.getName();
             mFileDirectory = mContext.getString(R.string.file_path);
-            PrintStream ps = null;
             try {
                 FileOutputStream fos = new FileOutputStream(file);
-                ps = new PrintStream(fos);
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-                return null;
-            } catch (NullPointerException e) {
+                return new BufferedWriter(new OutputStreamWriter(fos, "UTF-8"), BUFFER_SIZE);
+            } catch (IOException e) {
                 e.printStackTrace();
                 return null;
             }
-            return ps;
+        }
+    }
+
+    /**
+     * A line format such as "--%s" split once around its single "%s", so
+     * writing a line does not parse the format again. Other formats fall
+     * back to String.format
+     */
+    private static class LineFormat {
+        private final String mFormat;
+        private final String mPrefix;
+        private final String mSuffix;
+
+        LineFormat(String format) {
+            mFormat = format;
+            int index = format.indexOf("%s");
+            if (index >= 0 && format.indexOf('%') == index && format.indexOf('%', index + 1) < 0) {
+                mPrefix = format.substring(0, index);
+                mSuffix = format.substring(index + 2);
+            } else {
+                mPrefix = null;
+                mSuffix = null;
+            }
+        }
+
+        void writeLine(Writer writer, String value) throws IOException {
+            if (mPrefix != null) {
+                writer.write(mPrefix);
+                writer.write(value);
+                writer.write(mSuffix);
+            } else {
+                writer.write(String.format(mFormat, value));
+            }
+            writer.write('\n');
+        }
+    }
+
+    /**
+     * Formats dates like android.text.format.DateFormat#format(CharSequence,
+     * long) with a SimpleDateFormat built once. Android reads 'k' as the
+     * 0-23 hour, so it is mapped to 'H' outside of quoted text
+     */
+    private static class DateFormatter {
+        private final SimpleDateFormat mFormat;
+        private final Date mDate = new Date();
+
+        DateFormatter(String androidPattern) {
+            StringBuilder pattern = new StringBuilder(androidPattern.length());
+            boolean quoted = false;
+            for (int i = 0; i < androidPattern.length(); i++) {
+                char c = androidPattern.charAt(i);
+                if (c == '\'') {
+                    quoted = !quoted;
+                } else if (c == 'k' && !quoted) {
+                    c = 'H';
+                }
+                pattern.append(c);
+            }
+            mFormat = new SimpleDateFormat(pattern.toString(), Locale.getDefault());
+        }
+
+        String format(long time) {
+            mDate.setTime(time);
+            return mFormat.format(mDate);
+        }
+    }
+
+    private static class FullBackup {
+        // incremental backups live in their own directory under the export path
+        private static final String INCREMENTAL_BACKUP_DIR = "backup";
+
+        private Context mContext;
+        private String mFileName;
+        private String mFileDirectory;
+
+        public FullBackup(Context context) {
+            mContext = context.getApplicationContext();
+            mFileName = "";
+            mFileDirectory = "";
+        }
+
+        /**
+         * Every note and data row is kept as is, including system folders,
+         * widget bindings, alerts and gtask ids, so a device can be migrated
+         * without a cloud re-sync
+         */
+        public int backup() {
+            if (!externalStorageAvailable()) {
+                Log.d(TAG, "Media was not mounted");
+                return STATE_SD_CARD_UNMOUONTED;
+            }
+
+            File file = generateFileMountedOnSDcard(mContext, R.string.file_path,
+                    R.string.file_name_backup_format);
+            if (file == null) {
+                Log.e(TAG, "create backup file error");
+                return STATE_SYSTEM_ERROR;
+            }
+
+            OutputStream out = null;
+            try {
+                out = new FileOutputStream(file);
+                NotesBackup.backup(mContext, out);
+                out.close();
+                out = null;
+            } catch (IOException e) {
+                Log.e(TAG, "backup notes failed: " + e.toString());
+                file.delete();
+                return STATE_SYSTEM_ERROR;
+            } catch (SQLiteException e) {
+                Log.e(TAG, "backup notes failed: " + e.toString());
+                file.delete();
+                return STATE_SYSTEM_ERROR;
+            } finally {
+                closeQuietly(out);
+            }
+            mFileName = file.getName();
+            mFileDirectory = mContext.getString(R.string.file_path);
+            return STATE_SUCCESS;
+        }
+
+        public int restore(File file) {
+            if (!externalStorageAvailable()) {
+                Log.d(TAG, "Media was not mounted");
+                return STATE_SD_CARD_UNMOUONTED;
+            }
+            if (file == null || !file.isFile()) {
+                return STATE_BACKUP_FILE_NOT_EXIST;
+            }
+
+            InputStream in = null;
+            try {
+                in = new FileInputStream(file);
+                NotesBackup.restore(mContext, in);
+            } catch (NotesBackup.FormatException e) {
+                Log.e(TAG, "backup file is broken: " + e.toString());
+                return STATE_DATA_DESTROIED;
+            } catch (ZipException e) {
+                Log.e(TAG, "backup file is broken: " + e.toString());
+                return STATE_DATA_DESTROIED;
+            } catch (EOFException e) {
+                Log.e(TAG, "backup file is truncated: " + e.toString());
+                return STATE_DATA_DESTROIED;
+            } catch (IOException e) {
+                Log.e(TAG, "restore notes failed: " + e.toString());
+                return STATE_SYSTEM_ERROR;
+            } catch (SQLiteException e) {
+                Log.e(TAG, "restore notes failed: " + e.toString());
+                return STATE_SYSTEM_ERROR;
+            } finally {
+                closeQuietly(in);
+            }
+
+            // the restored alerts have to be registered again, just like after a reboot
+            mContext.sendBroadcast(new Intent(mContext, AlarmInitReceiver.class));
+            return STATE_SUCCESS;
+        }
+
+        public int backupIncremental() {
+            if (!externalStorageAvailable()) {
+                Log.d(TAG, "Media was not mounted");
+                return STATE_SD_CARD_UNMOUONTED;
+            }
+            try {
+                getBackupSet().backup(mContext);
+            } catch (IOException e) {
+                Log.e(TAG, "incremental backup failed: " + e.toString());
+                return STATE_SYSTEM_ERROR;
+            } catch (SQLiteException e) {
+                Log.e(TAG, "incremental backup failed: " + e.toString());
+                return STATE_SYSTEM_ERROR;
+            }
+            return STATE_SUCCESS;
+        }
+
+        public int restoreIncremental() {
+            if (!externalStorageAvailable()) {
+                Log.d(TAG, "Media was not mounted");
+                return STATE_SD_CARD_UNMOUONTED;
+            }
+            try {
+                getBackupSet().restore(mContext);
+            } catch (FileNotFoundException e) {
+                Log.e(TAG, "no incremental backup: " + e.toString());
+                return STATE_BACKUP_FILE_NOT_EXIST;
+            } catch (NotesBackup.FormatException e) {
+                Log.e(TAG, "backup segment is broken: " + e.toString());
+                return STATE_DATA_DESTROIED;
+            } catch (ZipException e) {
+                Log.e(TAG, "backup segment is broken: " + e.toString());
+                return STATE_DATA_DESTROIED;
+            } catch (EOFException e) {
+                Log.e(TAG, "backup segment is truncated: " + e.toString());
+                return STATE_DATA_DESTROIED;
+            } catch (IOException e) {
+                Log.e(TAG, "restore incremental backup failed: " + e.toString());
+                return STATE_SYSTEM_ERROR;
+            } catch (SQLiteException e) {
+                Log.e(TAG, "restore incremental backup failed: " + e.toString());
+                return STATE_SYSTEM_ERROR;
+            }
+
+            mContext.sendBroadcast(new Intent(mContext, AlarmInitReceiver.class));
+            return STATE_SUCCESS;
+        }
+
+        private NotesBackupSet getBackupSet() {
+            return new NotesBackupSet(new File(Environment.getExternalStorageDirectory()
+                    + mContext.getString(R.string.file_path) + INCREMENTAL_BACKUP_DIR));
+        }
+
+        private static void closeQuietly(Closeable closeable) {
+            if (closeable != null) {
+                try {
+                    closeable.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
         }
     }
 
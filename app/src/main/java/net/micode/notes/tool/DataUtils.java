@@ -23,6 +23,8 @@ import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.OperationApplicationException;
 import android.database.Cursor;
+import android.database.SQLException;
+import android.os.Bundle;
 import android.os.RemoteException;
 import android.util.Log;
 
@@ -37,6 +39,10 @@ import java.util.HashSet;
 
 public class DataUtils {
     public static final String TAG = "DataUtils";
+
+    // From this many notes on, moves and deletes use the set-based bulk methods
+    // of the provider, which recompute folder counts once instead of per row
+    private static final int BULK_THRESHOLD = 50;
     public static boolean batchDeleteNotes(ContentResolver resolver, HashSet<Long> ids) {
         if (ids == null) {
             Log.d(TAG, "the ids is null");
@@ -47,6 +53,10 @@ public class DataUtils {
             return true;
         }
 
+        if (ids.size() >= BULK_THRESHOLD) {
+            return bulkCall(resolver, Notes.METHOD_BULK_DELETE, null, ids);
+        }
+
         ArrayList<ContentProviderOperation> operationList = new ArrayList<ContentProviderOperation>();
         for (long id : ids) {
             if(id == Notes.ID_ROOT_FOLDER) {
@@ -87,6 +97,10 @@ public class DataUtils {
             return true;
         }
 
+        if (ids.size() >= BULK_THRESHOLD) {
+            return bulkCall(resolver, Notes.METHOD_BULK_MOVE, String.valueOf(folderId), ids);
+        }
+
         ArrayList<ContentProviderOperation> operationList = new ArrayList<ContentProviderOperation>();
         for (long id : ids) {
             ContentProviderOperation.Builder builder = ContentProviderOperation
@@ -111,6 +125,23 @@ public class DataUtils {
         return false;
     }
 
+    private static boolean bulkCall(ContentResolver resolver, String method, String arg,
+            HashSet<Long> ids) {
+        long[] idArray = new long[ids.size()];
+        int i = 0;
+        for (long id : ids) {
+            idArray[i++] = id;
+        }
+        Bundle extras = new Bundle();
+        extras.putLongArray(Notes.EXTRA_IDS, idArray);
+        try {
+            return resolver.call(Notes.CONTENT_NOTE_URI, method, arg, extras) != null;
+        } catch (SQLException e) {
+            Log.e(TAG, method + " failed: " + e.toString());
+        }
+        return false;
+    }
+
     /**
      * Get the all folder count except system folders {@link Notes#TYPE_SYSTEM}}
      */
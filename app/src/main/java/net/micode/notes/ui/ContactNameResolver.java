@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.ui;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import net.micode.notes.data.Contact;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 在后台线程批量解析通话记录便签的联系人名称。
+ * 同一帧内绑定的所有号码合并为一批，解析完成后在主线程回调刷新列表
+ */
+public class ContactNameResolver {
+    // 所有列表共用一个后台线程，联系人查询依次执行
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+
+    public interface Callback {
+        void onContactNamesResolved();
+    }
+
+    private final Context mContext;
+    private final Callback mCallback;
+    private final Handler mMainHandler;
+
+    private final HashSet<String> mPending;    // 等待解析的号码
+    private final HashSet<String> mRequested;  // 等待或正在解析的号码
+    private boolean mFlushScheduled;
+
+    public ContactNameResolver(Context context, Callback callback) {
+        mContext = context.getApplicationContext();
+        mCallback = callback;
+        mMainHandler = new Handler(Looper.getMainLooper());
+        mPending = new HashSet<String>();
+        mRequested = new HashSet<String>();
+    }
+
+    /**
+     * 返回已缓存的联系人名称，未缓存时加入后台解析并返回null，
+     * 只能在主线程调用
+     */
+    public String getName(String phoneNumber) {
+        String name = Contact.peekContact(phoneNumber);
+        if (name != null || Contact.isCached(phoneNumber) || !mRequested.add(phoneNumber)) {
+            return name;
+        }
+
+        mPending.add(phoneNumber);
+        if (!mFlushScheduled) {
+            // 等本帧的绑定全部完成后再提交，一次解析整屏的号码
+            mFlushScheduled = true;
+            mMainHandler.post(mFlushRunnable);
+        }
+        return null;
+    }
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        public void run() {
+            mFlushScheduled = false;
+            final ArrayList<String> batch = new ArrayList<String>(mPending);
+            mPending.clear();
+            if (batch.isEmpty()) {
+                return;
+            }
+            sExecutor.execute(new Runnable() {
+                public void run() {
+                    final int found = Contact.prefetch(mContext, batch);
+                    mMainHandler.post(new Runnable() {
+                        public void run() {
+                            mRequested.removeAll(batch);
+                            if (found > 0) {
+                                mCallback.onContactNamesResolved();
+                            }
+                        }
+                    });
+                }
+            });
+        }
+    };
+}
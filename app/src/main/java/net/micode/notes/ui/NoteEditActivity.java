@@ -30,9 +30,11 @@ import android.content.SharedPreferences;
 import android.graphics.Paint;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
+import android.text.Editable;
 import android.text.Spannable;
 import android.text.SpannableString;
 import android.text.TextUtils;
+import android.text.TextWatcher;
 import android.text.format.DateUtils;
 import android.text.style.BackgroundColorSpan;
 import android.util.Log;
@@ -147,6 +149,11 @@ public class NoteEditActivity extends Activity implements OnClickListener,
     // 当前正在编辑的工作笔记对象
     private WorkingNote mWorkingNote;
 
+    // 正在后台加载的便签，加载完成前 mWorkingNote 为 null
+    private WorkingNote.LoadCallback mNoteLoad;
+
+    private long mLoadingNoteId;
+
     // SharedPreferences 实例，用于存储应用偏好设置
     private SharedPreferences mSharedPrefs;
 
@@ -182,14 +189,13 @@ public class NoteEditActivity extends Activity implements OnClickListener,
         // 设置当前 Activity 的布局文件
         this.setContentView(R.layout.note_edit);
 
+        // 初始化资源，打开已有便签时先显示界面框架，内容在后台加载
+        initResources();
+
         // 如果没有保存的状态，并且初始化 Activity 状态失败，则关闭 Activity
         if (savedInstanceState == null && !initActivityState(getIntent())) {
             finish();
-            return;
         }
-
-        // 初始化资源
-        initResources();
     }
 
     /**
@@ -221,8 +227,11 @@ public class NoteEditActivity extends Activity implements OnClickListener,
     }
 
     private boolean initActivityState(Intent intent) {
-        // 初始化工作笔记为 null
+        // 初始化工作笔记为 null，丢弃尚未完成的加载
         mWorkingNote = null;
+        mNoteLoad = null;
+        mLoadingNoteId = 0;
+        mNoteEditorPanel.setVisibility(View.VISIBLE);
 
         // 如果 Intent 的动作是 ACTION_VIEW
         if (TextUtils.equals(Intent.ACTION_VIEW, intent.getAction())) {
@@ -237,28 +246,15 @@ public class NoteEditActivity extends Activity implements OnClickListener,
                 mUserQuery = intent.getStringExtra(SearchManager.USER_QUERY);
             }
 
-            // 如果笔记 ID 不存在于数据库中
-            if (!DataUtils.visibleInNoteDatabase(getContentResolver(), noteId, Notes.TYPE_NOTE)) {
-                // 跳转到笔记列表 Activity
-                Intent jump = new Intent(this, NotesListActivity.class);
-                startActivity(jump);
-                showToast(R.string.error_note_not_exist);
-                finish();
-                return false;
-            } else {
-                // 加载笔记
-                mWorkingNote = WorkingNote.load(this, noteId);
-                if (mWorkingNote == null) {
-                    Log.e(TAG, "加载笔记失败，笔记 ID: " + noteId);
-                    finish();
-                    return false;
-                }
-            }
-
             // 隐藏软键盘并调整布局大小
             getWindow().setSoftInputMode(
                     WindowManager.LayoutParams.SOFT_INPUT_STATE_HIDDEN
                             | WindowManager.LayoutParams.SOFT_INPUT_ADJUST_RESIZE);
+
+            // 在后台检查并加载笔记，加载完成前隐藏编辑区，避免输入被加载的内容覆盖
+            mNoteEditorPanel.setVisibility(View.INVISIBLE);
+            loadNote(noteId);
+            return true;
         } else if (TextUtils.equals(Intent.ACTION_INSERT_OR_EDIT, intent.getAction())) {
             // 新建笔记
             long folderId = intent.getLongExtra(Notes.INTENT_EXTRA_FOLDER_ID, 0);
@@ -313,10 +309,46 @@ public class NoteEditActivity extends Activity implements OnClickListener,
         mWorkingNote.setOnSettingStatusChangedListener(this);
         return true;
     }
+    private void loadNote(long noteId) {
+        mLoadingNoteId = noteId;
+        mNoteLoad = new WorkingNote.LoadCallback() {
+            public void onNoteLoaded(WorkingNote note) {
+                // 已经打开了其他便签或 Activity 已关闭时丢弃结果
+                if (mNoteLoad != this || isDestroyed()) {
+                    return;
+                }
+                mNoteLoad = null;
+                mLoadingNoteId = 0;
+                mWorkingNote = note;
+                mWorkingNote.setOnSettingStatusChangedListener(NoteEditActivity.this);
+                mNoteEditorPanel.setVisibility(View.VISIBLE);
+                initNoteScreen();
+                invalidateOptionsMenu();
+            }
+
+            public void onNoteLoadFailed(long id) {
+                if (mNoteLoad != this || isDestroyed()) {
+                    return;
+                }
+                mNoteLoad = null;
+                mLoadingNoteId = 0;
+                // 笔记不存在或已在回收站中，跳转到笔记列表 Activity
+                Log.e(TAG, "加载笔记失败，笔记 ID: " + id);
+                Intent jump = new Intent(NoteEditActivity.this, NotesListActivity.class);
+                startActivity(jump);
+                showToast(R.string.error_note_not_exist);
+                finish();
+            }
+        };
+        WorkingNote.loadAsync(this, noteId, mNoteLoad);
+    }
+
     @Override
     protected void onResume() {
         super.onResume();
-        initNoteScreen();  // 初始化笔记界面
+        if (mWorkingNote != null) {
+            initNoteScreen();  // 初始化笔记界面
+        }
     }
 
     private void initNoteScreen() {
@@ -386,12 +418,19 @@ public class NoteEditActivity extends Activity implements OnClickListener,
     @Override
     protected void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
+        if (mWorkingNote == null) {
+            // 笔记还在加载，恢复时重新加载
+            if (mLoadingNoteId > 0) {
+                outState.putLong(Intent.EXTRA_UID, mLoadingNoteId);
+            }
+            return;
+        }
         /**
          * 对于没有笔记 ID 的新笔记，应首先保存以生成一个 ID。
          * 如果编辑的笔记不值得保存，则没有 ID，相当于创建新笔记
          */
         if (!mWorkingNote.existInDatabase()) {
-            saveNote();  // 保存笔记
+            saveNoteAndWait();  // 保存笔记
         }
         outState.putLong(Intent.EXTRA_UID, mWorkingNote.getNoteId());
         Log.d(TAG, "Save working note id: " + mWorkingNote.getNoteId() + " onSaveInstanceState");
@@ -443,6 +482,21 @@ public class NoteEditActivity extends Activity implements OnClickListener,
 
         // 初始化编辑器
         mNoteEditor = (EditText) findViewById(R.id.note_edit_view);
+        // 普通模式下每次输入都记录到WorkingNote，由它合并修改并在后台自动保存
+        mNoteEditor.addTextChangedListener(new TextWatcher() {
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            public void afterTextChanged(Editable s) {
+                if (mWorkingNote != null
+                        && mWorkingNote.getCheckListMode() != TextNote.MODE_CHECK_LIST) {
+                    mWorkingNote.setWorkingText(s.toString());
+                }
+            }
+        });
         mNoteEditorPanel = findViewById(R.id.sv_note_edit);
         mNoteBgColorSelector = findViewById(R.id.note_bg_color_selector);
 
@@ -506,6 +560,9 @@ public class NoteEditActivity extends Activity implements OnClickListener,
 
 
     public void onClick(View v) {
+        if (mWorkingNote == null) {
+            return;
+        }
         int id = v.getId();
 
         // 当点击设置背景颜色按钮时
@@ -587,6 +644,11 @@ public class NoteEditActivity extends Activity implements OnClickListener,
         // 清空菜单
         menu.clear();
 
+        // 笔记加载完成后再显示菜单
+        if (mWorkingNote == null) {
+            return false;
+        }
+
         // 根据笔记所在的文件夹加载不同的菜单
         if (mWorkingNote.getFolderId() == Notes.ID_CALL_RECORD_FOLDER) {
             getMenuInflater().inflate(R.menu.call_note_edit, menu);
@@ -716,6 +778,9 @@ public class NoteEditActivity extends Activity implements OnClickListener,
     }
 
     private void deleteCurrentNote() {
+        // 等待已交给后台的保存完成，新建的笔记此时才有 ID，也不会在删除后又被写回
+        mWorkingNote.waitForSaves();
+
         // 检查当前笔记是否存在于数据库中
         if (mWorkingNote.existInDatabase()) {
             HashSet<Long> ids = new HashSet<Long>();
@@ -756,7 +821,7 @@ public class NoteEditActivity extends Activity implements OnClickListener,
          * 用户可能对未保存的笔记设置提醒时间，在设置提醒之前应先保存笔记。
          */
         if (!mWorkingNote.existInDatabase()) {
-            saveNote();  // 保存当前笔记
+            saveNoteAndWait();  // 保存当前笔记
         }
 
         if (mWorkingNote.getNoteId() > 0) {
@@ -1018,14 +1083,18 @@ public class NoteEditActivity extends Activity implements OnClickListener,
 
     private boolean saveNote() {
         /**
-         * 保存当前笔记，并根据保存状态设置返回结果。
+         * 把当前笔记的修改交给后台保存，立即返回，并根据保存状态设置返回结果。
          *
-         * @return 是否成功保存
+         * @return 是否有需要保存的修改
          */
+        if (mWorkingNote == null) {
+            return false;
+        }
+
         // 获取当前编辑的文本
         getWorkingText();
 
-        boolean saved = mWorkingNote.saveNote();
+        boolean saved = mWorkingNote.flush();
 
         if (saved) {
             // 设置返回结果，用于区分创建或编辑状态
@@ -1035,6 +1104,23 @@ public class NoteEditActivity extends Activity implements OnClickListener,
         return saved;
     }
 
+    private boolean saveNoteAndWait() {
+        /**
+         * 保存当前笔记并等待写入完成，用于需要立即得到新笔记 ID 的场景。
+         *
+         * @return 是否成功保存
+         */
+        getWorkingText();
+
+        boolean saved = mWorkingNote.saveNote();
+
+        if (saved) {
+            setResult(RESULT_OK);
+        }
+
+        return saved;
+    }
+
     private void sendToDesktop() {
         /**
          * 将当前编辑的笔记发送到桌面快捷方式。
@@ -1043,7 +1129,7 @@ public class NoteEditActivity extends Activity implements OnClickListener,
          */
         if (!mWorkingNote.existInDatabase()) {
             // 如果笔记不存在于数据库中，则先保存笔记
-            saveNote();
+            saveNoteAndWait();
         }
 
         if (mWorkingNote.getNoteId() > 0) {
@@ -22,11 +22,22 @@ import android.text.TextUtils;
 
 import net.micode.notes.data.Contact;
 import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.CallNote;
 import net.micode.notes.data.Notes.NoteColumns;
-import net.micode.notes.tool.DataUtils;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+
+import java.util.ArrayList;
+import java.util.List;
 
 
 public class NoteItemData {
+    // 通话记录便签的电话号码随列表一起查出，避免绑定每一行时再查询数据表
+    private static final String CALL_NUMBER = "(CASE WHEN " + NoteColumns.PARENT_ID + "="
+            + Notes.ID_CALL_RECORD_FOLDER + " THEN (SELECT " + CallNote.PHONE_NUMBER
+            + " FROM " + TABLE.DATA + " WHERE " + CallNote.NOTE_ID + "=" + TABLE.NOTE + "."
+            + NoteColumns.ID + " AND " + CallNote.MIME_TYPE + "='" + CallNote.CONTENT_ITEM_TYPE
+            + "' LIMIT 1) ELSE '' END) AS call_number";
+
     // 定义查询投影数组，包含所有需要查询的列
     static final String[] PROJECTION = new String[] {
             NoteColumns.ID,                // 0. ID 列
@@ -40,7 +51,8 @@ public class NoteItemData {
             NoteColumns.SNIPPET,           // 8. 摘要列
             NoteColumns.TYPE,              // 9. 类型列
             NoteColumns.WIDGET_ID,         // 10. 小部件 ID 列
-            NoteColumns.WIDGET_TYPE        // 11. 小部件类型列
+            NoteColumns.WIDGET_TYPE,       // 11. 小部件类型列
+            CALL_NUMBER                    // 12. 通话记录电话号码列
     };
 
     // 定义每个列对应的索引
@@ -56,6 +68,7 @@ public class NoteItemData {
     private static final int TYPE_COLUMN                  = 9;          // 类型列索引
     private static final int WIDGET_ID_COLUMN             = 10;         // 小部件 ID 列索引
     private static final int WIDGET_TYPE_COLUMN           = 11;         // 小部件类型列索引
+    private static final int CALL_NUMBER_COLUMN           = 12;         // 通话记录电话号码列索引
 
     // ID
     private long mId;
@@ -114,6 +127,10 @@ public class NoteItemData {
     // 是否是多个笔记跟随文件夹
     private boolean mIsMultiNotesFollowingFolder;
 
+    /**
+     * 列表快照在后台线程构建，这里不做任何数据库或联系人查询，
+     * 联系人名称未缓存时先使用电话号码
+     */
     public NoteItemData(Context context, Cursor cursor) {
         // 从 Cursor 中获取 ID
         mId = cursor.getLong(ID_COLUMN);
@@ -159,12 +176,15 @@ public class NoteItemData {
         // 如果父项 ID 是通话记录文件夹
         if (mParentId == Notes.ID_CALL_RECORD_FOLDER) {
             // 获取通话记录中的电话号码
-            mPhoneNumber = DataUtils.getCallNumberByNoteId(context.getContentResolver(), mId);
+            mPhoneNumber = cursor.getString(CALL_NUMBER_COLUMN);
+            if (mPhoneNumber == null) {
+                mPhoneNumber = "";
+            }
 
             // 如果电话号码不为空
             if (!TextUtils.isEmpty(mPhoneNumber)) {
-                // 获取联系人名称
-                mName = Contact.getContact(context, mPhoneNumber);
+                // 获取已缓存的联系人名称
+                mName = Contact.peekContact(mPhoneNumber);
 
                 // 如果联系人名称为空，则使用电话号码
                 if (mName == null) {
@@ -176,51 +196,69 @@ public class NoteItemData {
         if (mName == null) {
             mName = "";
         }
-        // 检查当前位置信息
-        checkPostion(cursor);
+        // 位置标志依赖相邻项，由applyPositions在整个列表上计算
     }
 
-    private void checkPostion(Cursor cursor) {
-        // 检查当前项是否是最后一项
-        mIsLastItem = cursor.isLast() ? true : false;
-
-        // 检查当前项是否是第一项
-        mIsFirstItem = cursor.isFirst() ? true : false;
-
-        // 检查当前项是否是唯一的项
-        mIsOnlyOneItem = (cursor.getCount() == 1);
-
-        // 初始化是否是多个笔记跟随文件夹为 false
-        mIsMultiNotesFollowingFolder = false;
-
-        // 初始化是否是一个笔记跟随文件夹为 false
-        mIsOneNoteFollowingFolder = false;
-
-        // 如果当前项是笔记类型且不是第一项
-        if (mType == Notes.TYPE_NOTE && !mIsFirstItem) {
-            // 记录当前游标的位置
-            int position = cursor.getPosition();
+    // 复制快照，只有位置标志需要改变时使用
+    private NoteItemData(NoteItemData other) {
+        mId = other.mId;
+        mAlertDate = other.mAlertDate;
+        mBgColorId = other.mBgColorId;
+        mCreatedDate = other.mCreatedDate;
+        mHasAttachment = other.mHasAttachment;
+        mModifiedDate = other.mModifiedDate;
+        mNotesCount = other.mNotesCount;
+        mParentId = other.mParentId;
+        mSnippet = other.mSnippet;
+        mType = other.mType;
+        mWidgetId = other.mWidgetId;
+        mWidgetType = other.mWidgetType;
+        mName = other.mName;
+        mPhoneNumber = other.mPhoneNumber;
+    }
 
-            // 将游标移动到前一个位置
-            if (cursor.moveToPrevious()) {
-                // 检查前一个项是否是文件夹或系统项
-                if (cursor.getInt(TYPE_COLUMN) == Notes.TYPE_FOLDER
-                        || cursor.getInt(TYPE_COLUMN) == Notes.TYPE_SYSTEM) {
-                    // 如果总项数大于当前位置加 1，则表示有多个笔记跟随文件夹
-                    if (cursor.getCount() > (position + 1)) {
-                        mIsMultiNotesFollowingFolder = true;
+    /**
+     * 根据相邻项计算列表中每一项的背景位置标志。列表分页加载时，
+     * complete为false表示后面还有未加载的项，最后一项不算作末尾。
+     * 标志没有变化的项直接复用，便于差异计算跳过它们
+     */
+    public static ArrayList<NoteItemData> applyPositions(List<NoteItemData> items,
+            boolean complete) {
+        ArrayList<NoteItemData> result = new ArrayList<NoteItemData>(items.size());
+        for (int i = 0; i < items.size(); i++) {
+            NoteItemData item = items.get(i);
+            boolean first = (i == 0);
+            // 后面是否还有项
+            boolean hasNext = (i < items.size() - 1) || !complete;
+            boolean multiFollowing = false;
+            boolean oneFollowing = false;
+
+            // 如果当前项是笔记类型且不是第一项，检查前一项是否是文件夹或系统项
+            if (item.mType == Notes.TYPE_NOTE && !first) {
+                int previousType = items.get(i - 1).mType;
+                if (previousType == Notes.TYPE_FOLDER || previousType == Notes.TYPE_SYSTEM) {
+                    if (hasNext) {
+                        multiFollowing = true;
                     } else {
-                        // 否则表示只有一个笔记跟随文件夹
-                        mIsOneNoteFollowingFolder = true;
+                        oneFollowing = true;
                     }
                 }
+            }
 
-                // 将游标移回到原来的位置
-                if (!cursor.moveToNext()) {
-                    throw new IllegalStateException("cursor move to previous but can't move back");
-                }
+            if (item.mIsFirstItem != first || item.mIsLastItem == hasNext
+                    || item.mIsOnlyOneItem != (first && !hasNext)
+                    || item.mIsMultiNotesFollowingFolder != multiFollowing
+                    || item.mIsOneNoteFollowingFolder != oneFollowing) {
+                item = new NoteItemData(item);
+                item.mIsFirstItem = first;
+                item.mIsLastItem = !hasNext;
+                item.mIsOnlyOneItem = first && !hasNext;
+                item.mIsMultiNotesFollowingFolder = multiFollowing;
+                item.mIsOneNoteFollowingFolder = oneFollowing;
             }
+            result.add(item);
         }
+        return result;
     }
 
 
@@ -240,6 +278,10 @@ public class NoteItemData {
         return mName;
     }
 
+    public String getPhoneNumber() {
+        return mPhoneNumber;
+    }
+
     public boolean isFirst() {
         return mIsFirstItem;
     }
@@ -308,6 +350,31 @@ public class NoteItemData {
         return (mParentId == Notes.ID_CALL_RECORD_FOLDER && !TextUtils.isEmpty(mPhoneNumber));
     }
 
+    /**
+     * 判断两个快照的显示内容是否相同，位置相关的背景标志也参与比较，
+     * 供列表差异计算使用
+     */
+    public boolean isSameContent(NoteItemData other) {
+        return mId == other.mId
+                && mAlertDate == other.mAlertDate
+                && mBgColorId == other.mBgColorId
+                && mModifiedDate == other.mModifiedDate
+                && mNotesCount == other.mNotesCount
+                && mParentId == other.mParentId
+                && mType == other.mType
+                && mWidgetId == other.mWidgetId
+                && mWidgetType == other.mWidgetType
+                && mHasAttachment == other.mHasAttachment
+                && TextUtils.equals(mSnippet, other.mSnippet)
+                && TextUtils.equals(mName, other.mName)
+                && TextUtils.equals(mPhoneNumber, other.mPhoneNumber)
+                && mIsLastItem == other.mIsLastItem
+                && mIsFirstItem == other.mIsFirstItem
+                && mIsOnlyOneItem == other.mIsOnlyOneItem
+                && mIsOneNoteFollowingFolder == other.mIsOneNoteFollowingFolder
+                && mIsMultiNotesFollowingFolder == other.mIsMultiNotesFollowingFolder;
+    }
+
     public static int getNoteType(Cursor cursor) {
         return cursor.getInt(TYPE_COLUMN);
     }
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.ui;
+
+import android.appwidget.AppWidgetManager;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.ui.NotesListAdapter.AppWidgetAttribute;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * 按便签ID记录的选中集合。ID存放在开放寻址的long数组中，增删查都是O(1)，
+ * 选中数量随增删维护；只有挂了桌面小部件的便签额外记录小部件属性
+ */
+public class NoteSelection {
+    // 空槽标记，便签ID不会取到该值
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] mSlots;
+    private int mSize;
+
+    // 选中便签中带有小部件的部分，删除便签时需要刷新这些小部件
+    private final HashMap<Long, AppWidgetAttribute> mWidgets;
+
+    public NoteSelection() {
+        this(MIN_CAPACITY);
+    }
+
+    public NoteSelection(int expectedSize) {
+        mSlots = newSlots(capacityFor(expectedSize));
+        mWidgets = new HashMap<Long, AppWidgetAttribute>();
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean contains(long id) {
+        return mSlots[indexOf(mSlots, id)] == id;
+    }
+
+    /**
+     * 加入集合，已存在时返回false
+     */
+    public boolean add(long id, int widgetId, int widgetType) {
+        int index = indexOf(mSlots, id);
+        if (mSlots[index] == id) {
+            return false;
+        }
+        mSlots[index] = id;
+        mSize++;
+        if (widgetId != AppWidgetManager.INVALID_APPWIDGET_ID
+                && widgetType != Notes.TYPE_WIDGET_INVALIDE) {
+            AppWidgetAttribute widget = new AppWidgetAttribute();
+            widget.widgetId = widgetId;
+            widget.widgetType = widgetType;
+            mWidgets.put(id, widget);
+        }
+        // 装载率超过一半时扩容，保证探测链足够短
+        if (mSize * 2 > mSlots.length) {
+            rehash(mSlots.length * 2);
+        }
+        return true;
+    }
+
+    /**
+     * 从集合中移除，不存在时返回false
+     */
+    public boolean remove(long id) {
+        int index = indexOf(mSlots, id);
+        if (mSlots[index] != id) {
+            return false;
+        }
+        mSlots[index] = EMPTY;
+        mSize--;
+        mWidgets.remove(id);
+
+        // 线性探测下删除后把后面同一探测链上的元素前移，不需要墓碑标记
+        int mask = mSlots.length - 1;
+        int hole = index;
+        int next = (index + 1) & mask;
+        while (mSlots[next] != EMPTY) {
+            int home = hash(mSlots[next]) & mask;
+            // home 不在 (hole, next] 区间内时，该元素可以移到空位上
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                mSlots[hole] = mSlots[next];
+                mSlots[next] = EMPTY;
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        return true;
+    }
+
+    public void clear() {
+        if (mSlots.length > MIN_CAPACITY) {
+            mSlots = newSlots(MIN_CAPACITY);
+        } else {
+            Arrays.fill(mSlots, EMPTY);
+        }
+        mSize = 0;
+        mWidgets.clear();
+    }
+
+    public HashSet<Long> getIds() {
+        HashSet<Long> ids = new HashSet<Long>(mSize * 2);
+        for (long id : mSlots) {
+            if (id != EMPTY) {
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
+    public HashSet<AppWidgetAttribute> getWidgets() {
+        return new HashSet<AppWidgetAttribute>(mWidgets.values());
+    }
+
+    private void rehash(int capacity) {
+        long[] slots = newSlots(capacity);
+        for (long id : mSlots) {
+            if (id != EMPTY) {
+                slots[indexOf(slots, id)] = id;
+            }
+        }
+        mSlots = slots;
+    }
+
+    // 返回id所在的槽，不存在时返回它应放入的空槽
+    private static int indexOf(long[] slots, long id) {
+        int mask = slots.length - 1;
+        int index = hash(id) & mask;
+        while (slots[index] != EMPTY && slots[index] != id) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    // 便签ID是连续的自增值，打散后再取低位
+    private static int hash(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static int capacityFor(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private static long[] newSlots(int capacity) {
+        long[] slots = new long[capacity];
+        Arrays.fill(slots, EMPTY);
+        return slots;
+    }
+}
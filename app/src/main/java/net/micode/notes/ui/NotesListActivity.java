@@ -27,9 +27,11 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
 import android.preference.PreferenceManager;
 import android.text.Editable;
 import android.text.TextUtils;
@@ -39,6 +41,7 @@ import android.view.ActionMode;
 import android.view.ContextMenu;
 import android.view.ContextMenu.ContextMenuInfo;
 import android.view.Display;
+import android.view.GestureDetector;
 import android.view.HapticFeedbackConstants;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -50,16 +53,15 @@ import android.view.View.OnClickListener;
 import android.view.View.OnCreateContextMenuListener;
 import android.view.View.OnTouchListener;
 import android.view.inputmethod.InputMethodManager;
-import android.widget.AdapterView;
-import android.widget.AdapterView.OnItemClickListener;
-import android.widget.AdapterView.OnItemLongClickListener;
 import android.widget.Button;
 import android.widget.EditText;
-import android.widget.ListView;
 import android.widget.PopupMenu;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
 import net.micode.notes.R;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.NoteColumns;
@@ -69,6 +71,8 @@ import net.micode.notes.tool.BackupUtils;
 import net.micode.notes.tool.DataUtils;
 import net.micode.notes.tool.ResourceParser;
 import net.micode.notes.ui.NotesListAdapter.AppWidgetAttribute;
+import net.micode.notes.ui.NotesListAdapter.OnItemClickListener;
+import net.micode.notes.ui.NotesListAdapter.OnItemLongClickListener;
 import net.micode.notes.widget.NoteWidgetProvider_2x;
 import net.micode.notes.widget.NoteWidgetProvider_4x;
 
@@ -79,10 +83,8 @@ import java.io.InputStreamReader;
 import java.util.HashSet;
 
 public class NotesListActivity extends Activity implements OnClickListener, OnItemLongClickListener {
-    private static final int FOLDER_NOTE_LIST_QUERY_TOKEN = 0;
-    // 一个整型常量，用来标识查询笔记列表的后台查询任务的标记。
     private static final int FOLDER_LIST_QUERY_TOKEN = 1;
-    // 另一个整型常量，标识查询文件夹列表的后台查询任务的标记。
+    // 一个整型常量，标识查询文件夹列表的后台查询任务的标记。便签列表由 NotesListPager 分页加载。
     private static final int MENU_FOLDER_DELETE = 0;
     // 这些整型常量分别代表菜单选项中的删除文件夹、查看文件夹和更改文件夹名称的功能标识符。
     private static final int MENU_FOLDER_VIEW = 1;
@@ -100,8 +102,10 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
     private BackgroundQueryHandler mBackgroundQueryHandler;
     // 成员变量，用于处理后台数据库查询的处理器对象。
     private NotesListAdapter mNotesListAdapter;
+    // 成员变量，分页加载便签列表
+    private NotesListPager mNotesListPager;
     // 成员变量，表示适配器对象，用于管理笔记列表视图的数据
-    private ListView mNotesListView;
+    private RecyclerView mNotesListView;
     // 成员变量，表示笔记列表视图组件。
     private Button mAddNewNote;
     // 成员变量，表示用于添加新笔记的按钮组件。
@@ -119,6 +123,8 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
     // 成员变量，表示内容解析器对象，用于访问数据库
     private ModeCallback mModeCallBack;
     // 成员变量，表示多选模式回调对象
+    private ContentObserver mNotesObserver;
+    // 成员变量，便签数据变化时重新查询列表，由差异计算决定哪些项需要刷新
     private static final String TAG = "NotesListActivity";
     // 标识符，表示日志标签
     public static final int NOTES_LISTVIEW_SCROLL_RATE = 30;
@@ -127,11 +133,11 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
     // 成员变量，表示当前焦点的笔记数据对象
     private static final String NORMAL_SELECTION = NoteColumns.PARENT_ID + "=?";
     // 表示一个笔记列表查询的SQL语句，用于查询指定父文件夹ID下的所有笔记列表。
-    private static final String ROOT_FOLDER_SELECTION = "(" + NoteColumns.TYPE + "<>"
-            + Notes.TYPE_SYSTEM + " AND " + NoteColumns.PARENT_ID + "=?)" + " OR ("
-            + NoteColumns.ID + "=" + Notes.ID_CALL_RECORD_FOLDER + " AND "
-            + NoteColumns.NOTES_COUNT + ">0)";
+    private static final String ROOT_FOLDER_SELECTION = NoteColumns.PARENT_ID + "=? AND ("
+            + NoteColumns.TYPE + "<>" + Notes.TYPE_SYSTEM + " OR (" + NoteColumns.ID + "="
+            + Notes.ID_CALL_RECORD_FOLDER + " AND " + NoteColumns.NOTES_COUNT + ">0))";
     // 表示一个笔记列表查询的SQL语句，用于查询根文件夹下的所有笔记列表。
+    // 通话记录文件夹的父文件夹也是根文件夹，先按 parent_id 过滤可以直接按索引顺序分页读取。
     private final static int REQUEST_CODE_OPEN_NODE = 102;
     // 表示打开笔记列表请求的请求码
     private final static int REQUEST_CODE_NEW_NODE  = 103;
@@ -160,10 +166,10 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         if (resultCode == RESULT_OK
                 && (requestCode == REQUEST_CODE_OPEN_NODE || requestCode == REQUEST_CODE_NEW_NODE)) {
-            mNotesListAdapter.changeCursor(null);
-        } else {
-            super.onActivityResult(requestCode, resultCode, data);
+            // 不再清空列表，onStart中的查询结果与当前列表做差异比较，只刷新变化的项
+            return;
         }
+        super.onActivityResult(requestCode, resultCode, data);
     }
 
     // setAppInfoFromRawRes()方法用于设置应用介绍信息。
@@ -231,21 +237,68 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
     @Override
     protected void onStart() {
         super.onStart();
+        mContentResolver.registerContentObserver(Notes.CONTENT_NOTE_URI, true, mNotesObserver);
         startAsyncNotesListQuery();// 开始异步查询笔记列表
     }
 
+    @Override
+    protected void onStop() {
+        mContentResolver.unregisterContentObserver(mNotesObserver);
+        super.onStop();
+    }
+
     // initResources()方法用于初始化各种资源。
     private void initResources() {
         mContentResolver = this.getContentResolver();
         mBackgroundQueryHandler = new BackgroundQueryHandler(this.getContentResolver());
         mCurrentFolderId = Notes.ID_ROOT_FOLDER;
-        mNotesListView = (ListView) findViewById(R.id.notes_list);
-        mNotesListView.addFooterView(LayoutInflater.from(this).inflate(R.layout.note_list_footer, null),
-                null, false);
-        mNotesListView.setOnItemClickListener(new OnListItemClickListener());
-        mNotesListView.setOnItemLongClickListener(this);
+        mNotesListView = (RecyclerView) findViewById(R.id.notes_list);
+        mNotesListView.setLayoutManager(new LinearLayoutManager(this));
         mNotesListAdapter = new NotesListAdapter(this);
+        mNotesListAdapter.setOnItemClickListener(new OnListItemClickListener());
+        mNotesListAdapter.setOnItemLongClickListener(this);
         mNotesListView.setAdapter(mNotesListAdapter);
+        mNotesListPager = new NotesListPager(this, mNotesListAdapter);
+        mNotesListView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                // 接近已加载的末尾时预取下一页，布局变化后也会回调，列表不满一屏时会继续加载
+                LinearLayoutManager layoutManager =
+                        (LinearLayoutManager) recyclerView.getLayoutManager();
+                if (layoutManager.findLastVisibleItemPosition()
+                        >= mNotesListAdapter.getItemCount() - NotesListPager.PREFETCH_DISTANCE) {
+                    mNotesListPager.loadMore();
+                }
+            }
+        });
+        // 确认是按下便签而不是开始滑动时就开始在后台加载，抬起手指打开编辑界面时内容通常已经就绪；
+        // 按住超过点击判定时间或者快速点击后抬起都算确认
+        final GestureDetector prewarmDetector = new GestureDetector(this,
+                new GestureDetector.SimpleOnGestureListener() {
+                    @Override
+                    public void onShowPress(MotionEvent e) {
+                        prewarmNoteUnder(e);
+                    }
+
+                    @Override
+                    public boolean onSingleTapUp(MotionEvent e) {
+                        prewarmNoteUnder(e);
+                        return false;
+                    }
+                });
+        mNotesListView.addOnItemTouchListener(new RecyclerView.SimpleOnItemTouchListener() {
+            @Override
+            public boolean onInterceptTouchEvent(RecyclerView recyclerView, MotionEvent e) {
+                prewarmDetector.onTouchEvent(e);
+                return false;
+            }
+        });
+        mNotesObserver = new ContentObserver(new Handler()) {
+            @Override
+            public void onChange(boolean selfChange) {
+                mNotesListPager.refresh();
+            }
+        };
         mAddNewNote = (Button) findViewById(R.id.btn_new_note);
         mAddNewNote.setOnClickListener(this);
         mAddNewNote.setOnTouchListener(new NewNoteOnTouchListener());
@@ -256,11 +309,26 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
         mState = ListEditState.NOTE_LIST;
         mModeCallBack = new ModeCallback();
     }
+
+    // 多选模式下点击只切换选中状态，不会打开便签
+    private void prewarmNoteUnder(MotionEvent e) {
+        if (mNotesListAdapter.isInChoiceMode()) {
+            return;
+        }
+        View child = mNotesListView.findChildViewUnder(e.getX(), e.getY());
+        if (child instanceof NotesListItem) {
+            NoteItemData item = ((NotesListItem) child).getItemData();
+            if (item != null && item.getType() == Notes.TYPE_NOTE) {
+                WorkingNote.prewarm(this, item.getId());
+            }
+        }
+    }
+
     // 创建一个ModeCallback对象，用于处理多选模式下的事件。
-    private class ModeCallback implements ListView.MultiChoiceModeListener, OnMenuItemClickListener {
+    private class ModeCallback implements ActionMode.Callback, OnMenuItemClickListener {
         /*
-            ListView.MultiChoiceModeListener 是 Android 中用于处理 ListView 多选模式的接口。
-            当你需要在 ListView 中启用多选模式时，可以实现这个接口来处理多选模式下的各种事件。
+            ActionMode.Callback 是 Android 中用于处理上下文操作模式的接口。
+            RecyclerView 没有内置的多选模式，选中状态由适配器维护，长按时手动启动 ActionMode。
 
             OnMenuItemClickListener 是 Android 中用于处理菜单项点击事件的接口。
             当你需要在 Toolbar、ActionBar 或者 PopupMenu 等组件中处理菜单项点击事件时，可以实现这个接口
@@ -303,8 +371,6 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
             mActionMode = mode;
             // 设置适配器的选择模式为开启状态
             mNotesListAdapter.setChoiceMode(true);
-            // 禁用 ListView 的长按事件
-            mNotesListView.setLongClickable(false);
             // 隐藏添加新笔记按钮
             mAddNewNote.setVisibility(View.GONE);
             // 从布局文件中加载自定义视图
@@ -320,10 +386,21 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
             mDropDownMenu.setOnDropdownMenuItemClickListener(new PopupMenu.OnMenuItemClickListener() {
                 @Override
                 public boolean onMenuItemClick(MenuItem item) {
-                    // 切换所有笔记的选中状态
-                    mNotesListAdapter.selectAll(!mNotesListAdapter.isAllSelected());
-                    // 更新菜单状态
-                    updateMenu();
+                    if (mNotesListAdapter.isAllSelected()) {
+                        mNotesListAdapter.clearSelection();
+                        updateMenu();
+                        return true;
+                    }
+                    // 在后台查询所有便签的ID，未加载的分页也会被选中
+                    mNotesListPager.selectAll(new NotesListPager.SelectionCallback() {
+                        public void onSelectionLoaded(NoteSelection selection) {
+                            if (mNotesListAdapter.isInChoiceMode()) {
+                                mNotesListAdapter.setSelection(selection);
+                                // 更新菜单状态
+                                updateMenu();
+                            }
+                        }
+                    });
                     // 表示事件已处理
                     return true;
                 }
@@ -373,7 +450,6 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
 
         public void onDestroyActionMode(ActionMode mode) {
             mNotesListAdapter.setChoiceMode(false);
-            mNotesListView.setLongClickable(true);
             mAddNewNote.setVisibility(View.VISIBLE);
         }
 
@@ -455,8 +531,7 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
                     // 如果点击的是新建笔记按钮的透明部分，则将事件传递给列表视图
                     if (event.getY() < (event.getX() * (-0.12) + 94)) {
                         // 获取列表视图的最后一个子视图
-                        View view = mNotesListView.getChildAt(mNotesListView.getChildCount() - 1
-                                - mNotesListView.getFooterViewsCount());
+                        View view = mNotesListView.getChildAt(mNotesListView.getChildCount() - 1);
                         // 检查子视图是否有效，并且在指定范围内
                         if (view != null && view.getBottom() > start && (view.getTop() < (start + 94))) {
                             // 记录原始 Y 坐标
@@ -506,18 +581,10 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
         // 根据当前文件夹 ID 确定查询条件
         String selection = (mCurrentFolderId == Notes.ID_ROOT_FOLDER) ? ROOT_FOLDER_SELECTION
                 : NORMAL_SELECTION;
-        // 启动异步查询
-        mBackgroundQueryHandler.startQuery(
-                FOLDER_NOTE_LIST_QUERY_TOKEN,  // 查询标识符
-                null,                          // 查询参数（可选）
-                Notes.CONTENT_NOTE_URI,        // 内容 URI
-                NoteItemData.PROJECTION,       // 查询列
-                selection,                     // 查询条件
-                new String[] {                 // 查询条件参数
-                        String.valueOf(mCurrentFolderId)
-                },
-                NoteColumns.TYPE + " DESC," + NoteColumns.MODIFIED_DATE + " DESC"  // 排序字段
-        );
+        // 文件夹变化时从第一页开始加载，否则刷新已加载的部分
+        mNotesListPager.load(selection, new String[] {
+                String.valueOf(mCurrentFolderId)
+        });
     }
 
 
@@ -532,10 +599,6 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
         @Override
         protected void onQueryComplete(int token, Object cookie, Cursor cursor) {//在主线程中处理查询结果
             switch (token) {
-                case FOLDER_NOTE_LIST_QUERY_TOKEN:
-                    // 当查询完成时，更新笔记列表适配器的游标
-                    mNotesListAdapter.changeCursor(cursor);
-                    break;
                 case FOLDER_LIST_QUERY_TOKEN:
                     // 当查询完成时，处理文件夹列表
                     if (cursor != null && cursor.getCount() > 0) {
@@ -602,6 +665,9 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
 
 
     private void batchDelete() {
+        // 在主线程取出选中集合的副本，后台线程不访问适配器
+        final HashSet<Long> ids = mNotesListAdapter.getSelectedItemIds();
+        final HashSet<AppWidgetAttribute> selectedWidgets = mNotesListAdapter.getSelectedWidget();
         // 创建一个异步任务（AsyncTask）来执行批量删除操作
         new AsyncTask<Void, Void, HashSet<AppWidgetAttribute>>() {
             /*
@@ -611,15 +677,14 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
             @Override
             protected HashSet<AppWidgetAttribute> doInBackground(Void... unused) {
                 // 获取当前选中的小部件集合
-                HashSet<AppWidgetAttribute> widgets = mNotesListAdapter.getSelectedWidget();
+                HashSet<AppWidgetAttribute> widgets = selectedWidgets;
                 // 根据同步模式的不同，执行不同的操作
                 if (!isSyncMode()) {
                     // 如果不是同步模式，直接删除笔记
                     /*
                         DataUtils是作者自己定义的类，封装了笔记数据的操作，如插入、更新、删除等操作
                      */
-                    if (DataUtils.batchDeleteNotes(mContentResolver, mNotesListAdapter
-                            .getSelectedItemIds())) {
+                    if (DataUtils.batchDeleteNotes(mContentResolver, ids)) {
                         // 删除成功
                     } else {
                         // 删除失败，记录错误日志
@@ -627,8 +692,8 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
                     }
                 } else {
                     // 如果是同步模式，将删除的笔记移动到回收站文件夹
-                    if (!DataUtils.batchMoveToFolder(mContentResolver, mNotesListAdapter
-                            .getSelectedItemIds(), Notes.ID_TRASH_FOLER)) {
+                    if (!DataUtils.batchMoveToFolder(mContentResolver, ids,
+                            Notes.ID_TRASH_FOLER)) {
                         // 移动失败，记录错误日志
                         Log.e(TAG, "Move notes to trash folder error, should not happen");
                     }
@@ -1118,15 +1183,13 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
 
     private class OnListItemClickListener implements OnItemClickListener {
         @Override
-        public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+        public void onItemClick(View view, int position, long id) {
             // 确认视图是 NotesListItem 类型
             if (view instanceof NotesListItem) {
                 NoteItemData item = ((NotesListItem) view).getItemData();
                 // 如果处于选择模式
                 if (mNotesListAdapter.isInChoiceMode()) {
                     if (item.getType() == Notes.TYPE_NOTE) {
-                        // 调整位置以排除头部视图
-                        position = position - mNotesListView.getHeaderViewsCount();
                         // 切换选择状态
                         mModeCallBack.onItemCheckedStateChanged(null, position, id,
                                 !mNotesListAdapter.isSelectedItem(position));
@@ -1193,7 +1256,11 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
         );
     }
 
-    public boolean onItemLongClick(AdapterView<?> parent, View view, int position, long id) {
+    public boolean onItemLongClick(View view, int position, long id) {
+        // 选择模式下不响应长按
+        if (mNotesListAdapter.isInChoiceMode()) {
+            return true;
+        }
         // 确认视图是 NotesListItem 类型
         if (view instanceof NotesListItem) {
             mFocusNoteDataItem = ((NotesListItem) view).getItemData();
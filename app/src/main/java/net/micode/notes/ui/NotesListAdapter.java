@@ -17,26 +17,36 @@
 package net.micode.notes.ui;
 
 import android.content.Context;
-import android.database.Cursor;
-import android.util.Log;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.CursorAdapter;
+
+import androidx.recyclerview.widget.AsyncListDiffer;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.RecyclerView;
 
 import net.micode.notes.data.Notes;
 
-import java.util.Collection;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.List;
+
 
+/**
+ * 便签列表适配器。NotesListPager在后台线程分页生成不可变的NoteItemData快照，
+ * 再由AsyncListDiffer在后台计算差异，只有真正变化的项会被重新绑定
+ */
+public class NotesListAdapter extends RecyclerView.Adapter<NotesListAdapter.NoteViewHolder> {
+    // 局部刷新的类型，只更新复选框或联系人名称
+    private static final Object PAYLOAD_CHECKED = new Object();
+    private static final Object PAYLOAD_CALL_NAME = new Object();
 
-public class NotesListAdapter extends CursorAdapter {
-    private static final String TAG = "NotesListAdapter";
     private Context mContext;
-    private HashMap<Integer, Boolean> mSelectedIndex;
-    private int mNotesCount;
+    private NoteSelection mSelection;  // 按便签ID记录的选中集合
+    private int mNotesCount;           // 列表中的便签总数，包括未加载的分页
     private boolean mChoiceMode;
+    private ContactNameResolver mContactNameResolver;  // 后台解析通话记录的联系人名称
+    private final AsyncListDiffer<NoteItemData> mDiffer;
+    private OnItemClickListener mOnItemClickListener;
+    private OnItemLongClickListener mOnItemLongClickListener;
 
     // 内部类，用于存储小部件属性
     public static class AppWidgetAttribute {
@@ -44,34 +54,164 @@ public class NotesListAdapter extends CursorAdapter {
         public int widgetType;
     }
 
+    public interface OnItemClickListener {
+        void onItemClick(View view, int position, long id);
+    }
+
+    public interface OnItemLongClickListener {
+        boolean onItemLongClick(View view, int position, long id);
+    }
+
+    static class NoteViewHolder extends RecyclerView.ViewHolder {
+        final NotesListItem item;
+
+        NoteViewHolder(NotesListItem item) {
+            super(item);
+            this.item = item;
+        }
+    }
+
+    // 同一便签ID视为同一项，内容比较包含背景位置标志
+    private static final DiffUtil.ItemCallback<NoteItemData> DIFF_CALLBACK =
+            new DiffUtil.ItemCallback<NoteItemData>() {
+                @Override
+                public boolean areItemsTheSame(NoteItemData oldItem, NoteItemData newItem) {
+                    return oldItem.getId() == newItem.getId();
+                }
+
+                @Override
+                public boolean areContentsTheSame(NoteItemData oldItem, NoteItemData newItem) {
+                    return oldItem.isSameContent(newItem);
+                }
+            };
+
     // 构造函数
     public NotesListAdapter(Context context) {
-        super(context, null);
-        mSelectedIndex = new HashMap<Integer, Boolean>();
+        mSelection = new NoteSelection();
         mContext = context;
         mNotesCount = 0;
+        mDiffer = new AsyncListDiffer<NoteItemData>(this, DIFF_CALLBACK);
+        mContactNameResolver = new ContactNameResolver(context,
+                new ContactNameResolver.Callback() {
+                    public void onContactNamesResolved() {
+                        // 名称解析完成后只更新可见项的联系人名称
+                        notifyItemRangeChanged(0, getItemCount(), PAYLOAD_CALL_NAME);
+                    }
+                });
+        setHasStableIds(true);
+    }
+
+    public void setOnItemClickListener(OnItemClickListener listener) {
+        mOnItemClickListener = listener;
+    }
+
+    public void setOnItemLongClickListener(OnItemLongClickListener listener) {
+        mOnItemLongClickListener = listener;
+    }
+
+    /**
+     * 提交新的列表快照，差异在后台计算。notesCount是查询聚合得到的便签总数
+     */
+    public void submitNotes(List<NoteItemData> notes, final int notesCount) {
+        mDiffer.submitList(notes, new Runnable() {
+            public void run() {
+                mNotesCount = notesCount;
+            }
+        });
+    }
+
+    // 获取指定位置的数据快照
+    public NoteItemData getItem(int position) {
+        List<NoteItemData> items = mDiffer.getCurrentList();
+        if (position < 0 || position >= items.size()) {
+            return null;
+        }
+        return items.get(position);
+    }
+
+    @Override
+    public int getItemCount() {
+        return mDiffer.getCurrentList().size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mDiffer.getCurrentList().get(position).getId();
     }
 
     // 创建新视图
     @Override
-    public View newView(Context context, Cursor cursor, ViewGroup parent) {
-        return new NotesListItem(context);
+    public NoteViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        NotesListItem item = new NotesListItem(parent.getContext());
+        item.setLayoutParams(new RecyclerView.LayoutParams(
+                ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT));
+        final NoteViewHolder holder = new NoteViewHolder(item);
+        item.setOnClickListener(new View.OnClickListener() {
+            public void onClick(View v) {
+                int position = holder.getBindingAdapterPosition();
+                if (position != RecyclerView.NO_POSITION && mOnItemClickListener != null) {
+                    mOnItemClickListener.onItemClick(v, position, getItemId(position));
+                }
+            }
+        });
+        item.setOnLongClickListener(new View.OnLongClickListener() {
+            public boolean onLongClick(View v) {
+                int position = holder.getBindingAdapterPosition();
+                if (position != RecyclerView.NO_POSITION && mOnItemLongClickListener != null) {
+                    return mOnItemLongClickListener.onItemLongClick(v, position,
+                            getItemId(position));
+                }
+                return false;
+            }
+        });
+        return holder;
     }
 
     // 绑定视图
     @Override
-    public void bindView(View view, Context context, Cursor cursor) {
-        if (view instanceof NotesListItem) {
-            NoteItemData itemData = new NoteItemData(context, cursor);
-            ((NotesListItem) view).bind(context, itemData, mChoiceMode,
-                    isSelectedItem(cursor.getPosition()));
+    public void onBindViewHolder(NoteViewHolder holder, int position) {
+        NoteItemData itemData = mDiffer.getCurrentList().get(position);
+        holder.item.bind(mContext, itemData, getCallName(itemData), mChoiceMode,
+                isSelectedItem(position));
+    }
+
+    // 有局部刷新标记时只更新对应的控件
+    @Override
+    public void onBindViewHolder(NoteViewHolder holder, int position, List<Object> payloads) {
+        if (payloads.isEmpty()) {
+            onBindViewHolder(holder, position);
+            return;
+        }
+        for (Object payload : payloads) {
+            if (payload == PAYLOAD_CHECKED) {
+                holder.item.setChecked(mChoiceMode, isSelectedItem(position));
+            } else if (payload == PAYLOAD_CALL_NAME) {
+                holder.item.setCallName(getCallName(holder.item.getItemData()));
+            }
         }
     }
 
+    // 通话记录优先使用已解析的联系人名称，未解析时交给resolver在后台查询
+    private String getCallName(NoteItemData itemData) {
+        if (!itemData.isCallRecord()) {
+            return itemData.getCallName();
+        }
+        String name = mContactNameResolver.getName(itemData.getPhoneNumber());
+        return name != null ? name : itemData.getCallName();
+    }
+
     // 设置指定位置的项目为选中状态
     public void setCheckedItem(final int position, final boolean checked) {
-        mSelectedIndex.put(position, checked);
-        notifyDataSetChanged();
+        NoteItemData item = getItem(position);
+        if (item == null || item.getType() != Notes.TYPE_NOTE) {
+            return;
+        }
+        boolean changed = checked
+                ? mSelection.add(item.getId(), item.getWidgetId(), item.getWidgetType())
+                : mSelection.remove(item.getId());
+        if (changed) {
+            notifyItemChanged(position, PAYLOAD_CHECKED);
+        }
     }
 
     // 判断是否处于选择模式
@@ -81,75 +221,36 @@ public class NotesListAdapter extends CursorAdapter {
 
     // 设置选择模式
     public void setChoiceMode(boolean mode) {
-        mSelectedIndex.clear();
+        mSelection.clear();
         mChoiceMode = mode;
+        notifyItemRangeChanged(0, getItemCount(), PAYLOAD_CHECKED);
     }
 
-    // 全选或取消全选
-    public void selectAll(boolean checked) {
-        Cursor cursor = getCursor();
-        for (int i = 0; i < getCount(); i++) {
-            if (cursor.moveToPosition(i)) {
-                if (NoteItemData.getNoteType(cursor) == Notes.TYPE_NOTE) {
-                    setCheckedItem(i, checked);
-                }
-            }
-        }
+    // 取消全选
+    public void clearSelection() {
+        mSelection.clear();
+        notifyItemRangeChanged(0, getItemCount(), PAYLOAD_CHECKED);
+    }
+
+    // 替换选中集合，全选时由NotesListPager在后台查询生成
+    public void setSelection(NoteSelection selection) {
+        mSelection = selection;
+        notifyItemRangeChanged(0, getItemCount(), PAYLOAD_CHECKED);
     }
 
     // 获取所有选中项目的 ID
     public HashSet<Long> getSelectedItemIds() {
-        HashSet<Long> itemSet = new HashSet<Long>();
-        for (Integer position : mSelectedIndex.keySet()) {
-            if (mSelectedIndex.get(position) == true) {
-                Long id = getItemId(position);
-                if (id == Notes.ID_ROOT_FOLDER) {
-                    Log.d(TAG, "Wrong item id, should not happen");
-                } else {
-                    itemSet.add(id);
-                }
-            }
-        }
-        return itemSet;
+        return mSelection.getIds();
     }
 
-    // 获取所有选中小部件
+    // 获取所有选中项目中带有小部件的部分
     public HashSet<AppWidgetAttribute> getSelectedWidget() {
-        HashSet<AppWidgetAttribute> itemSet = new HashSet<AppWidgetAttribute>();
-        for (Integer position : mSelectedIndex.keySet()) {
-            if (mSelectedIndex.get(position) == true) {
-                Cursor c = (Cursor) getItem(position);
-                if (c != null) {
-                    AppWidgetAttribute widget = new AppWidgetAttribute();
-                    NoteItemData item = new NoteItemData(mContext, c);
-                    widget.widgetId = item.getWidgetId();
-                    widget.widgetType = item.getWidgetType();
-                    itemSet.add(widget);
-                    /**
-                     * 不要在这里关闭游标，只有适配器可以关闭它
-                     */
-                } else {
-                    Log.e(TAG, "Invalid cursor");
-                    return null;
-                }
-            }
-        }
-        return itemSet;
+        return mSelection.getWidgets();
     }
 
     // 获取选中项目的数量
     public int getSelectedCount() {
-        Collection<Boolean> values = mSelectedIndex.values();
-        if (values == null) {
-            return 0;
-        }
-        int count = 0;
-        for (Boolean value : values) {
-            if (value) {
-                count++;
-            }
-        }
-        return count;
+        return mSelection.size();
     }
 
     // 判断是否全部选中
@@ -160,37 +261,7 @@ public class NotesListAdapter extends CursorAdapter {
 
     // 判断指定位置的项目是否被选中
     public boolean isSelectedItem(final int position) {
-        Boolean selected = mSelectedIndex.get(position);
-        return selected != null && selected;
-    }
-
-    // 当内容发生变化时调用
-    @Override
-    protected void onContentChanged() {
-        super.onContentChanged();
-        calcNotesCount();
-    }
-
-    // 更改游标
-    @Override
-    public void changeCursor(Cursor cursor) {
-        super.changeCursor(cursor);
-        calcNotesCount();
-    }
-
-    // 计算笔记数量
-    private void calcNotesCount() {
-        mNotesCount = 0;
-        for (int i = 0; i < getCount(); i++) {
-            Cursor c = (Cursor) getItem(i);
-            if (c != null) {
-                if (NoteItemData.getNoteType(c) == Notes.TYPE_NOTE) {
-                    mNotesCount++;
-                }
-            } else {
-                Log.e(TAG, "Invalid cursor");
-                return;
-            }
-        }
+        NoteItemData item = getItem(position);
+        return item != null && mSelection.contains(item.getId());
     }
 }
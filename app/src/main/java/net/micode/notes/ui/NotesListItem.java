@@ -60,21 +60,15 @@ public class NotesListItem extends LinearLayout {
      *
      * @param context 上下文
      * @param data 数据对象
+     * @param callName 通话记录的联系人名称
      * @param choiceMode 是否处于选择模式
      * @param checked 是否选中
      */
-    public void bind(Context context, NoteItemData data, boolean choiceMode, boolean checked) {
-        // 如果处于选择模式且数据类型为笔记，则显示复选框并设置选中状态
-        if (choiceMode && data.getType() == Notes.TYPE_NOTE) {
-            mCheckBox.setVisibility(View.VISIBLE);
-            mCheckBox.setChecked(checked);
-        } else {
-            // 否则隐藏复选框
-            mCheckBox.setVisibility(View.GONE);
-        }
-
+    public void bind(Context context, NoteItemData data, String callName, boolean choiceMode,
+            boolean checked) {
         // 设置当前项的数据
         mItemData = data;
+        setChecked(choiceMode, checked);
 
         // 根据数据类型设置不同的视图属性
         if (data.getId() == Notes.ID_CALL_RECORD_FOLDER) {
@@ -88,7 +82,7 @@ public class NotesListItem extends LinearLayout {
         } else if (data.getParentId() == Notes.ID_CALL_RECORD_FOLDER) {
             // 如果是通话记录文件夹中的条目
             mCallName.setVisibility(View.VISIBLE); // 显示呼叫名称
-            mCallName.setText(data.getCallName()); // 设置呼叫名称文本
+            mCallName.setText(callName); // 设置呼叫名称文本
             mTitle.setTextAppearance(context, R.style.TextAppearanceSecondaryItem); // 设置标题样式
             mTitle.setText(DataUtils.getFormattedSnippet(data.getSnippet())); // 设置标题文本
             if (data.hasAlert()) {
@@ -132,6 +126,34 @@ public class NotesListItem extends LinearLayout {
     }
 
 
+    /**
+     * 只更新复选框，选择状态变化时不必重新绑定整项。
+     *
+     * @param choiceMode 是否处于选择模式
+     * @param checked 是否选中
+     */
+    public void setChecked(boolean choiceMode, boolean checked) {
+        // 如果处于选择模式且数据类型为笔记，则显示复选框并设置选中状态
+        if (choiceMode && mItemData.getType() == Notes.TYPE_NOTE) {
+            mCheckBox.setVisibility(View.VISIBLE);
+            mCheckBox.setChecked(checked);
+        } else {
+            // 否则隐藏复选框
+            mCheckBox.setVisibility(View.GONE);
+        }
+    }
+
+    /**
+     * 只更新通话记录的联系人名称。
+     *
+     * @param callName 联系人名称
+     */
+    public void setCallName(String callName) {
+        if (mItemData.getParentId() == Notes.ID_CALL_RECORD_FOLDER) {
+            mCallName.setText(callName);
+        }
+    }
+
     /**
      * 设置背景资源。
      *
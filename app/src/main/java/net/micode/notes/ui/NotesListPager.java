@@ -0,0 +1,325 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.ui;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.NoteColumns;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 按 (type DESC, modified_date DESC, _id) 的键集分页加载便签列表。
+ * 首屏只查询一页，滚动接近已加载的末尾时再从最后一项的键继续查询下一页，
+ * 首屏耗时与文件夹大小无关。查询和快照构建都在后台线程完成
+ */
+public class NotesListPager {
+    private static final String TAG = "NotesListPager";
+
+    // 每页加载的行数
+    public static final int PAGE_SIZE = 50;
+
+    // 距离已加载的末尾不足该数量时预取下一页
+    public static final int PREFETCH_DISTANCE = 20;
+
+    // _id 作为最后的排序键保证顺序唯一，升序时与索引的行号顺序一致，不需要额外排序
+    static final String SORT_ORDER = NoteColumns.TYPE + " DESC," + NoteColumns.MODIFIED_DATE
+            + " DESC," + NoteColumns.ID;
+
+    // 从上一页最后一项之后继续：(type, modified_date) 不大于该项，且排除该项及之前同键的行。
+    // 行值比较可以直接在索引上定位起点，不必跳过前面已加载的行
+    private static final String KEYSET_SELECTION = "(" + NoteColumns.TYPE + ","
+            + NoteColumns.MODIFIED_DATE + ")<=(?,?) AND NOT (" + NoteColumns.TYPE + "=? AND "
+            + NoteColumns.MODIFIED_DATE + "=? AND " + NoteColumns.ID + "<=?)";
+
+    // 列表中的便签总数由查询聚合得到，不需要遍历已加载的行
+    private static final String[] COUNT_PROJECTION = new String[] {
+            "COUNT(*)"
+    };
+
+    // 全选只需要ID和小部件属性
+    private static final String[] SELECTION_PROJECTION = new String[] {
+            NoteColumns.ID,
+            NoteColumns.WIDGET_ID,
+            NoteColumns.WIDGET_TYPE
+    };
+
+    private static final String NOTE_TYPE_SELECTION = " AND " + NoteColumns.TYPE + "="
+            + Notes.TYPE_NOTE;
+
+    public interface SelectionCallback {
+        void onSelectionLoaded(NoteSelection selection);
+    }
+
+    // 所有列表共用一个后台线程，分页请求按提交顺序依次执行
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+
+    private final Context mContext;
+    private final ContentResolver mContentResolver;
+    private final NotesListAdapter mAdapter;
+    private final Handler mMainHandler;
+
+    // 以下字段只在主线程访问
+    private String mSelection;
+    private String[] mSelectionArgs;
+    private int mGeneration;          // 查询条件变化后丢弃旧查询的结果
+    private boolean mLoading;         // 正在加载下一页
+    private boolean mHasMore;         // 是否还有未加载的行
+    private boolean mRefreshQueued;   // 已有尚未执行的刷新
+
+    // 以下字段只在后台线程访问
+    private final ArrayList<NoteItemData> mRows;
+    private int mRowsGeneration;
+    private int mNotesCount;
+
+    public NotesListPager(Context context, NotesListAdapter adapter) {
+        mContext = context.getApplicationContext();
+        mContentResolver = context.getContentResolver();
+        mAdapter = adapter;
+        mMainHandler = new Handler(Looper.getMainLooper());
+        mRows = new ArrayList<NoteItemData>();
+    }
+
+    /**
+     * 加载指定条件的列表。条件与当前相同时只刷新已加载的行，保留滚动位置，
+     * 否则从第一页重新加载
+     */
+    public void load(String selection, String[] selectionArgs) {
+        if (selection.equals(mSelection) && Arrays.equals(selectionArgs, mSelectionArgs)) {
+            refresh();
+            return;
+        }
+        mSelection = selection;
+        mSelectionArgs = selectionArgs;
+        mGeneration++;
+        mLoading = true;
+        mHasMore = false;
+        mRefreshQueued = false;
+        submit(false, PAGE_SIZE);
+    }
+
+    /**
+     * 数据变化后重新查询已加载的行数，连续的变化只执行一次
+     */
+    public void refresh() {
+        if (mSelection == null || mRefreshQueued) {
+            return;
+        }
+        mRefreshQueued = true;
+        submit(false, -1);
+    }
+
+    /**
+     * 加载下一页，正在加载或已全部加载时忽略
+     */
+    public void loadMore() {
+        if (mLoading || !mHasMore) {
+            return;
+        }
+        mLoading = true;
+        submit(true, PAGE_SIZE);
+    }
+
+    /**
+     * 在后台查询当前列表中所有便签的ID，生成全选集合后在主线程回调，
+     * 未加载的分页也包含在内，列表本身不需要全部加载
+     */
+    public void selectAll(final SelectionCallback callback) {
+        if (mSelection == null) {
+            return;
+        }
+        final int generation = mGeneration;
+        final String selection = "(" + mSelection + ")" + NOTE_TYPE_SELECTION;
+        final String[] selectionArgs = mSelectionArgs;
+        sExecutor.execute(new Runnable() {
+            public void run() {
+                final NoteSelection result;
+                Cursor cursor = null;
+                try {
+                    cursor = mContentResolver.query(Notes.CONTENT_NOTE_URI,
+                            SELECTION_PROJECTION, selection, selectionArgs, null);
+                    if (cursor == null) {
+                        Log.e(TAG, "Query note ids failed");
+                        return;
+                    }
+                    result = new NoteSelection(cursor.getCount());
+                    while (cursor.moveToNext()) {
+                        result.add(cursor.getLong(0), cursor.getInt(1), cursor.getInt(2));
+                    }
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "select all notes failed: " + e.toString());
+                    return;
+                } finally {
+                    if (cursor != null) {
+                        cursor.close();
+                    }
+                }
+                mMainHandler.post(new Runnable() {
+                    public void run() {
+                        if (generation == mGeneration) {
+                            callback.onSelectionLoaded(result);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    public boolean hasMore() {
+        return mHasMore;
+    }
+
+    /**
+     * @param append 从已加载的最后一行之后继续，否则从头查询
+     * @param limit 查询的行数，-1表示与已加载的行数相同
+     */
+    private void submit(final boolean append, final int limit) {
+        final int generation = mGeneration;
+        final String selection = mSelection;
+        final String[] selectionArgs = mSelectionArgs;
+        sExecutor.execute(new Runnable() {
+            public void run() {
+                if (!append && limit < 0) {
+                    mMainHandler.post(new Runnable() {
+                        public void run() {
+                            mRefreshQueued = false;
+                        }
+                    });
+                }
+                if (append && generation != mRowsGeneration) {
+                    // 条件已经变化，旧列表的下一页没有意义
+                    return;
+                }
+
+                int pageLimit = limit;
+                if (pageLimit < 0) {
+                    // 刷新时重新查询已加载的行数，避免列表变短导致滚动位置跳动
+                    pageLimit = generation == mRowsGeneration
+                            ? Math.max(PAGE_SIZE, mRows.size()) : PAGE_SIZE;
+                }
+
+                final ArrayList<NoteItemData> page;
+                int notesCount = mNotesCount;
+                try {
+                    page = queryPage(append, pageLimit, selection, selectionArgs);
+                    if (!append) {
+                        notesCount = queryNotesCount(selection, selectionArgs);
+                    }
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "load notes list failed: " + e.toString());
+                    mMainHandler.post(new Runnable() {
+                        public void run() {
+                            if (generation == mGeneration) {
+                                mLoading = false;
+                            }
+                        }
+                    });
+                    return;
+                }
+
+                if (!append) {
+                    mRows.clear();
+                    mRowsGeneration = generation;
+                    mNotesCount = notesCount;
+                }
+                mRows.addAll(page);
+                final boolean complete = page.size() < pageLimit;
+                ArrayList<NoteItemData> positioned = NoteItemData.applyPositions(mRows, complete);
+                mRows.clear();
+                mRows.addAll(positioned);
+
+                final List<NoteItemData> snapshot = Collections.unmodifiableList(positioned);
+                final int count = mNotesCount;
+                mMainHandler.post(new Runnable() {
+                    public void run() {
+                        if (generation != mGeneration) {
+                            return;
+                        }
+                        mLoading = false;
+                        mHasMore = !complete;
+                        mAdapter.submitNotes(snapshot, count);
+                    }
+                });
+            }
+        });
+    }
+
+    // 后台线程执行，查询一页并转换为快照，游标读完即关闭
+    private ArrayList<NoteItemData> queryPage(boolean append, int limit, String selection,
+            String[] selectionArgs) {
+        String[] args = selectionArgs;
+        if (append && !mRows.isEmpty()) {
+            NoteItemData last = mRows.get(mRows.size() - 1);
+            String type = String.valueOf(last.getType());
+            String modified = String.valueOf(last.getModifiedDate());
+            selection = "(" + selection + ") AND " + KEYSET_SELECTION;
+            args = new String[selectionArgs.length + 5];
+            System.arraycopy(selectionArgs, 0, args, 0, selectionArgs.length);
+            args[selectionArgs.length] = type;
+            args[selectionArgs.length + 1] = modified;
+            args[selectionArgs.length + 2] = type;
+            args[selectionArgs.length + 3] = modified;
+            args[selectionArgs.length + 4] = String.valueOf(last.getId());
+        }
+
+        Uri uri = Notes.CONTENT_NOTE_URI.buildUpon().appendQueryParameter(
+                Notes.QUERY_PARAMETER_LIMIT, String.valueOf(limit)).build();
+
+        ArrayList<NoteItemData> page = new ArrayList<NoteItemData>();
+        Cursor cursor = mContentResolver.query(uri, NoteItemData.PROJECTION, selection, args,
+                SORT_ORDER);
+        if (cursor == null) {
+            Log.e(TAG, "Query notes list failed");
+            return page;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                page.add(new NoteItemData(mContext, cursor));
+            }
+        } finally {
+            cursor.close();
+        }
+        return page;
+    }
+
+    // 后台线程执行，用聚合查询统计列表中的便签数
+    private int queryNotesCount(String selection, String[] selectionArgs) {
+        Cursor cursor = mContentResolver.query(Notes.CONTENT_NOTE_URI, COUNT_PROJECTION,
+                "(" + selection + ")" + NOTE_TYPE_SELECTION, selectionArgs, null);
+        if (cursor == null) {
+            Log.e(TAG, "Query notes count failed");
+            return 0;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package net.micode.notes.gtask.remote;
+
+import net.micode.notes.gtask.data.Node;
+import net.micode.notes.gtask.data.Task;
+import net.micode.notes.gtask.data.TaskList;
+import net.micode.notes.gtask.exception.BatchRejectedException;
+import net.micode.notes.gtask.exception.NetworkFailureException;
+import net.micode.notes.tool.GTaskStringUtils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs {@link GTaskClient} against {@link LocalGTaskTransport}.
+ */
+public class GTaskClientTest {
+    private LocalGTaskTransport mServer;
+
+    private GTaskClient mClient;
+
+    @Before
+    public void setUp() {
+        mServer = new LocalGTaskTransport();
+        mClient = new GTaskClient();
+        assertTrue(mClient.login(mServer));
+    }
+
+    private TaskList createList(String name) throws NetworkFailureException {
+        TaskList list = new TaskList();
+        list.setName(name);
+        mClient.createTaskList(list, null);
+        mClient.commitUpdate();
+        return list;
+    }
+
+    private List<Task> queueTasks(TaskList list, int count) throws NetworkFailureException {
+        ArrayList<Task> tasks = new ArrayList<Task>();
+        for (int i = 0; i < count; i++) {
+            Task task = new Task();
+            task.setName("task " + i);
+            list.addChildTask(task);
+            mClient.createTask(task, null);
+            tasks.add(task);
+        }
+        return tasks;
+    }
+
+    private static List<String> gids(List<Task> tasks) {
+        ArrayList<String> gids = new ArrayList<String>();
+        for (Task task : tasks) {
+            gids.add(task.getGid());
+        }
+        return gids;
+    }
+
+    @Test
+    public void createResultsAreMappedToTheirNodes() throws Exception {
+        final ArrayList<Node> assigned = new ArrayList<Node>();
+        GTaskClient.GidCallback callback = new GTaskClient.GidCallback() {
+            public void onGidAssigned(Node node) {
+                assigned.add(node);
+            }
+        };
+        TaskList first = new TaskList();
+        first.setName("first");
+        TaskList second = new TaskList();
+        second.setName("second");
+        mClient.createTaskList(first, callback);
+        mClient.createTaskList(second, callback);
+        mClient.commitUpdate();
+
+        assertNotNull(first.getGid());
+        assertNotNull(second.getGid());
+        assertNotEquals(first.getGid(), second.getGid());
+        assertEquals("first", mServer.getNode(first.getGid())
+                .getString(GTaskStringUtils.GTASK_JSON_NAME));
+        assertEquals("second", mServer.getNode(second.getGid())
+                .getString(GTaskStringUtils.GTASK_JSON_NAME));
+        assertEquals(2, assigned.size());
+        assertSame(first, assigned.get(0));
+        assertSame(second, assigned.get(1));
+    }
+
+    @Test
+    public void tasksCreatedInOneBatchKeepTheirOrder() throws Exception {
+        TaskList list = createList("list");
+        List<Task> tasks = queueTasks(list, 3);
+        mClient.commitUpdate();
+
+        assertEquals(gids(tasks), mServer.getTaskIds(list.getGid()));
+    }
+
+    @Test
+    public void rejectedBatchIsSplitAndSentOnce() throws Exception {
+        TaskList list = createList("list");
+        mServer.setMaxActions(2);
+        List<Task> tasks = queueTasks(list, 5);
+        mClient.commitUpdate();
+
+        assertEquals(5, new HashSet<String>(gids(tasks)).size());
+        assertEquals(gids(tasks), mServer.getTaskIds(list.getGid()));
+    }
+
+    @Test
+    public void rejectedSingleActionFails() throws Exception {
+        mServer.setMaxActions(0);
+        TaskList list = new TaskList();
+        list.setName("list");
+        mClient.createTaskList(list, null);
+        try {
+            mClient.commitUpdate();
+            fail("a refused single action must fail the update");
+        } catch (BatchRejectedException e) {
+            // expected
+        }
+        assertNull(list.getGid());
+    }
+
+    @Test
+    public void serverErrorFailsWithoutResending() throws Exception {
+        TaskList list = createList("list");
+        queueTasks(list, 3);
+        mServer.setStatusCode(503);
+        int requests = mServer.getRequestCount();
+        try {
+            mClient.commitUpdate();
+            fail("a 503 response must fail the update");
+        } catch (NetworkFailureException e) {
+            // expected
+        }
+        assertEquals(requests + 1, mServer.getRequestCount());
+    }
+}
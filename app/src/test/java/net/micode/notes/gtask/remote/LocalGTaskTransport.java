@@ -0,0 +1,343 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import net.micode.notes.tool.GTaskStringUtils;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * An in-memory stand-in for the task server, installed with {@link
+ * GTaskClient#setTransport(GTaskTransport)} to run the client without
+ * network. It answers the login page and the create, update, move and
+ * get_all actions the client sends and keeps the order of every list.
+ * {@link #setStatusCode(int)} makes it answer every request with an error
+ * status instead, {@link #setMaxActions(int)} refuses too large batches.
+ */
+public class LocalGTaskTransport implements GTaskTransport {
+    private static final String LOGIN_COOKIE = "GTL";
+
+    // internal field of a stored task, the list it belongs to
+    private static final String KEY_LIST = "list";
+
+    private final LinkedHashMap<String, JSONObject> mLists =
+            new LinkedHashMap<String, JSONObject>();
+
+    private final HashMap<String, JSONObject> mTasks = new HashMap<String, JSONObject>();
+
+    // task gids of every list in list order
+    private final HashMap<String, ArrayList<String>> mOrder =
+            new HashMap<String, ArrayList<String>>();
+
+    // tombstones of the tasks moved out of a list, reported as deleted there
+    private final HashMap<String, LinkedHashMap<String, Long>> mMovedOut =
+            new HashMap<String, LinkedHashMap<String, Long>>();
+
+    private long mNextId = 1;
+
+    // increases with every change, used both as last_modified and as sync point
+    private long mClock = 0;
+
+    private int mStatusCode = 200;
+
+    private int mMaxActions = Integer.MAX_VALUE;
+
+    private boolean mLoggedIn = false;
+
+    private int mRequests = 0;
+
+    private static class LocalResponse implements Response {
+        private final int mStatusCode;
+
+        private final String mBody;
+
+        LocalResponse(int statusCode, String body) {
+            mStatusCode = statusCode;
+            mBody = body;
+        }
+
+        public int getStatusCode() {
+            return mStatusCode;
+        }
+
+        public Reader getReader() {
+            return new StringReader(mBody);
+        }
+
+        public void close() {
+        }
+    }
+
+    /**
+     * Status of all following responses, 200 answers normally
+     */
+    public synchronized void setStatusCode(int statusCode) {
+        mStatusCode = statusCode;
+    }
+
+    /**
+     * Batches with more actions are refused with 413 before any of them is
+     * applied
+     */
+    public synchronized void setMaxActions(int maxActions) {
+        mMaxActions = maxActions;
+    }
+
+    /**
+     * Number of requests answered so far, e.g. to count the batches of a sync
+     */
+    public synchronized int getRequestCount() {
+        return mRequests;
+    }
+
+    /**
+     * Returns the stored list or task, or null if there is none
+     */
+    public synchronized JSONObject getNode(String id) {
+        JSONObject node = mTasks.get(id);
+        return node != null ? node : mLists.get(id);
+    }
+
+    /**
+     * Returns the gids of the tasks in the list in list order
+     */
+    public synchronized List<String> getTaskIds(String listId) {
+        ArrayList<String> order = mOrder.get(listId);
+        return order == null ? new ArrayList<String>() : new ArrayList<String>(order);
+    }
+
+    public synchronized void open(int maxConnections) {
+        mLoggedIn = false;
+    }
+
+    public synchronized Response get(String url) throws IOException {
+        mRequests++;
+        if (mStatusCode != 200) {
+            return new LocalResponse(mStatusCode, "");
+        }
+        mLoggedIn = true;
+        try {
+            JSONArray lists = new JSONArray();
+            for (JSONObject list : mLists.values()) {
+                if (!list.optBoolean(GTaskStringUtils.GTASK_JSON_DELETED)) {
+                    lists.put(list);
+                }
+            }
+            JSONObject t = new JSONObject();
+            t.put(GTaskStringUtils.GTASK_JSON_LISTS, lists);
+            JSONObject setup = new JSONObject();
+            setup.put("v", 1);
+            setup.put("t", t);
+            return new LocalResponse(200, "<html><script>_setup(" + setup + ")}</script></html>");
+        } catch (JSONException e) {
+            throw new IOException(e.toString());
+        }
+    }
+
+    public synchronized Response postForm(String url, String name, String value)
+            throws IOException {
+        mRequests++;
+        if (mStatusCode != 200) {
+            return new LocalResponse(mStatusCode, "");
+        }
+        if (!mLoggedIn) {
+            return new LocalResponse(401, "");
+        }
+        try {
+            JSONObject request = new JSONObject(value);
+            JSONArray actions = request.getJSONArray(GTaskStringUtils.GTASK_JSON_ACTION_LIST);
+            if (actions.length() > mMaxActions) {
+                return new LocalResponse(413, "");
+            }
+            JSONObject response = new JSONObject();
+            JSONArray results = new JSONArray();
+            for (int i = 0; i < actions.length(); i++) {
+                JSONObject action = actions.getJSONObject(i);
+                String type = action.getString(GTaskStringUtils.GTASK_JSON_ACTION_TYPE);
+                if (GTaskStringUtils.GTASK_JSON_ACTION_TYPE_CREATE.equals(type)) {
+                    results.put(create(action));
+                } else if (GTaskStringUtils.GTASK_JSON_ACTION_TYPE_UPDATE.equals(type)) {
+                    update(action);
+                } else if (GTaskStringUtils.GTASK_JSON_ACTION_TYPE_MOVE.equals(type)) {
+                    move(action);
+                } else if (GTaskStringUtils.GTASK_JSON_ACTION_TYPE_GETALL.equals(type)) {
+                    getAll(action, response);
+                } else {
+                    return new LocalResponse(400, "");
+                }
+            }
+            response.put(GTaskStringUtils.GTASK_JSON_RESULTS, results);
+            return new LocalResponse(200, response.toString());
+        } catch (JSONException e) {
+            return new LocalResponse(400, "");
+        }
+    }
+
+    public synchronized boolean hasCookie(String name) {
+        return mLoggedIn && LOGIN_COOKIE.contains(name);
+    }
+
+    public synchronized void close() {
+        mLoggedIn = false;
+    }
+
+    private JSONObject create(JSONObject action) throws JSONException {
+        JSONObject entity = action.getJSONObject(GTaskStringUtils.GTASK_JSON_ENTITY_DELTA);
+        String id = String.valueOf(mNextId++);
+        JSONObject node = new JSONObject();
+        node.put(GTaskStringUtils.GTASK_JSON_ID, id);
+        node.put(GTaskStringUtils.GTASK_JSON_NAME,
+                entity.optString(GTaskStringUtils.GTASK_JSON_NAME));
+        node.put(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED, ++mClock);
+        if (GTaskStringUtils.GTASK_JSON_TYPE_GROUP.equals(
+                entity.optString(GTaskStringUtils.GTASK_JSON_ENTITY_TYPE))) {
+            mLists.put(id, node);
+            mOrder.put(id, new ArrayList<String>());
+        } else {
+            String listId = action.getString(GTaskStringUtils.GTASK_JSON_LIST_ID);
+            if (!mLists.containsKey(listId)) {
+                throw new JSONException("no list " + listId);
+            }
+            if (entity.has(GTaskStringUtils.GTASK_JSON_NOTES)) {
+                node.put(GTaskStringUtils.GTASK_JSON_NOTES,
+                        entity.getString(GTaskStringUtils.GTASK_JSON_NOTES));
+            }
+            node.put(GTaskStringUtils.GTASK_JSON_DELETED, false);
+            node.put(KEY_LIST, listId);
+            mTasks.put(id, node);
+            insert(listId, id, action.optString(GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID));
+        }
+
+        JSONObject result = new JSONObject();
+        result.put(GTaskStringUtils.GTASK_JSON_ACTION_ID,
+                action.getInt(GTaskStringUtils.GTASK_JSON_ACTION_ID));
+        result.put(GTaskStringUtils.GTASK_JSON_NEW_ID, id);
+        return result;
+    }
+
+    private void update(JSONObject action) throws JSONException {
+        JSONObject node = getNode(action.getString(GTaskStringUtils.GTASK_JSON_ID));
+        if (node == null) {
+            throw new JSONException("no node " + action.getString(GTaskStringUtils.GTASK_JSON_ID));
+        }
+        JSONObject entity = action.getJSONObject(GTaskStringUtils.GTASK_JSON_ENTITY_DELTA);
+        String[] fields = {
+                GTaskStringUtils.GTASK_JSON_NAME,
+                GTaskStringUtils.GTASK_JSON_NOTES,
+                GTaskStringUtils.GTASK_JSON_DELETED,
+                GTaskStringUtils.GTASK_JSON_COMPLETED
+        };
+        for (String field : fields) {
+            if (entity.has(field)) {
+                node.put(field, entity.get(field));
+            }
+        }
+        node.put(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED, ++mClock);
+    }
+
+    private void move(JSONObject action) throws JSONException {
+        String id = action.getString(GTaskStringUtils.GTASK_JSON_ID);
+        JSONObject task = mTasks.get(id);
+        if (task == null) {
+            throw new JSONException("no task " + id);
+        }
+        String sourceId = task.getString(KEY_LIST);
+        String listId = action.optString(GTaskStringUtils.GTASK_JSON_DEST_LIST, sourceId);
+        if (!mLists.containsKey(listId)) {
+            throw new JSONException("no list " + listId);
+        }
+
+        mClock++;
+        mOrder.get(sourceId).remove(id);
+        if (!listId.equals(sourceId)) {
+            // the old list only learns about the move from a tombstone
+            LinkedHashMap<String, Long> movedOut = mMovedOut.get(sourceId);
+            if (movedOut == null) {
+                movedOut = new LinkedHashMap<String, Long>();
+                mMovedOut.put(sourceId, movedOut);
+            }
+            movedOut.put(id, mClock);
+            task.put(KEY_LIST, listId);
+        }
+        insert(listId, id, action.optString(GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID));
+        task.put(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED, mClock);
+    }
+
+    // a task without a prior sibling goes to the head of the list
+    private void insert(String listId, String id, String priorId) throws JSONException {
+        ArrayList<String> order = mOrder.get(listId);
+        int index = 0;
+        if (priorId.length() > 0) {
+            index = order.indexOf(priorId) + 1;
+            if (index == 0) {
+                throw new JSONException("no prior sibling " + priorId);
+            }
+        }
+        order.add(index, id);
+    }
+
+    private void getAll(JSONObject action, JSONObject response) throws JSONException {
+        String listId = action.getString(GTaskStringUtils.GTASK_JSON_LIST_ID);
+        long syncPoint = action.optLong(GTaskStringUtils.GTASK_JSON_LATEST_SYNC_POINT, 0);
+        boolean withDeleted = action.optBoolean(GTaskStringUtils.GTASK_JSON_GET_DELETED, false);
+        ArrayList<String> order = mOrder.get(listId);
+        if (order == null) {
+            throw new JSONException("no list " + listId);
+        }
+
+        JSONArray tasks = new JSONArray();
+        String priorId = "";
+        for (String id : order) {
+            JSONObject task = mTasks.get(id);
+            if (task.getLong(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED) > syncPoint
+                    && (withDeleted || !task.getBoolean(GTaskStringUtils.GTASK_JSON_DELETED))) {
+                JSONObject node = new JSONObject(task.toString());
+                node.remove(KEY_LIST);
+                node.put(GTaskStringUtils.GTASK_JSON_LIST_ID, listId);
+                node.put(GTaskStringUtils.GTASK_JSON_PARENT_ID, listId);
+                node.put(GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID, priorId);
+                tasks.put(node);
+            }
+            priorId = id;
+        }
+        LinkedHashMap<String, Long> movedOut = mMovedOut.get(listId);
+        if (withDeleted && movedOut != null) {
+            for (String id : movedOut.keySet()) {
+                long modified = movedOut.get(id);
+                if (modified > syncPoint && !order.contains(id)) {
+                    JSONObject tombstone = new JSONObject();
+                    tombstone.put(GTaskStringUtils.GTASK_JSON_ID, id);
+                    tombstone.put(GTaskStringUtils.GTASK_JSON_DELETED, true);
+                    tombstone.put(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED, modified);
+                    tasks.put(tombstone);
+                }
+            }
+        }
+        response.put(GTaskStringUtils.GTASK_JSON_TASKS, tasks);
+        response.put(GTaskStringUtils.GTASK_JSON_LATEST_SYNC_POINT, mClock);
+    }
+}